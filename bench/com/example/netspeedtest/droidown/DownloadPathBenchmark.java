@@ -0,0 +1,324 @@
+package com.example.netspeedtest.droidown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下载线程每次读取的热路径评测：从响应流读到缓存、写入存储、更新进度，对应原来DownloadThread.run()中的
+ * inStream.read(buffer)、RandomAccessFile.write和update()。数据来自内存中的合成流或者本机LocalTestServer的回环连接，
+ * 组合不同的缓存大小、连接数、存储后端和进度记录方式，每种组合先预热再测量多轮，报告吞吐量、每MB分配的内存和锁竞争。
+ * 每条连接的请求在计时开始前就已经发出，计时只包括读取和写入。
+ * 分配量依赖HotSpot的com.sun.management.ThreadMXBean，其他虚拟机上显示为-1。
+ * <p>
+ * 运行: javac -encoding UTF-8 -d out src/.../droidown/*.java bench/.../droidown/DownloadPathBenchmark.java &amp;&amp; java -cp out com.example.netspeedtest.droidown.DownloadPathBenchmark
+ * <p>
+ * 可以用系统属性缩小或者扩大组合，多个值用逗号分隔：
+ * -Dsource=memory,socket -Dcache=5120,65536 -Dconnections=1,4,8 -Dstorage=rwd,rw,channel,discard -Dprogress=synchronized,striped
+ * -Dbytes=每轮的总长度 -Dwarmup=预热轮数 -Diterations=测量轮数 -Ddir=临时文件目录
+ */
+public final class DownloadPathBenchmark {
+    private static final double MB = 1024 * 1024;
+
+    private static final String[] SOURCES = split(System.getProperty("source", "memory,socket"));
+    private static final String[] CACHE_SIZES = split(System.getProperty("cache", "5120,65536,262144"));
+    private static final String[] CONNECTIONS = split(System.getProperty("connections", "1,4,8"));
+    private static final String[] STORAGES = split(System.getProperty("storage", "rwd,rw,channel,discard"));
+    private static final String[] PROGRESS = split(System.getProperty("progress", "synchronized,striped"));
+    private static final long BYTES = Long.getLong("bytes", 64L * 1024 * 1024);
+    private static final int WARMUP = Integer.getInteger("warmup", 2);
+    private static final int ITERATIONS = Integer.getInteger("iterations", 3);
+    private static final File DIR = new File(System.getProperty("dir", System.getProperty("java.io.tmpdir")));
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static LocalTestServer server;  // socket数据源使用的本机服务器
+
+    /**
+     * 进度记录方式
+     */
+    private interface Progress {
+        /**
+         * 记录一次读取
+         *
+         * @param threadId 线程id，从1开始
+         * @param position 读取后线程在文件中的位置
+         * @param size     读到的长度
+         */
+        void update(int threadId, long position, int size);
+
+        long sum();
+    }
+
+    /**
+     * 原来的进度记录方式，所有线程争同一把锁，位置装箱后放进ConcurrentHashMap
+     */
+    private static final class SynchronizedProgress implements Progress {
+        private final Map<Integer, Long> threadData = new ConcurrentHashMap<Integer, Long>();
+        private long downloadedSize;
+
+        @Override
+        public synchronized void update(int threadId, long position, int size) {
+            threadData.put(threadId, position);
+            downloadedSize += size;
+        }
+
+        @Override
+        public synchronized long sum() {
+            return downloadedSize;
+        }
+    }
+
+    /**
+     * 现在的进度记录方式，累加到线程独占的计数槽
+     */
+    private static final class StripedProgress implements Progress {
+        private final ProgressCounter counter;
+
+        StripedProgress(int threads) {
+            this.counter = new ProgressCounter(threads);
+        }
+
+        @Override
+        public void update(int threadId, long position, int size) {
+            counter.add(threadId, size);
+        }
+
+        @Override
+        public long sum() {
+            return counter.sum();
+        }
+    }
+
+    /**
+     * 内存中的合成响应流，每次最多返回一个TCP窗口的数据，不分配对象
+     */
+    private static final class SyntheticStream extends InputStream {
+        private static final int MAX_READ = 64 * 1024;  // 每次读取最多返回的长度，接近套接字接收缓冲区的大小
+        private static final byte[] DATA = new byte[MAX_READ];
+        private long remaining;
+
+        SyntheticStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0) return -1;
+            remaining--;
+            return DATA[0];
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0) return -1;
+            int n = (int) Math.min(Math.min(len, MAX_READ), remaining);
+            System.arraycopy(DATA, 0, b, off, n);
+            remaining -= n;
+            return n;
+        }
+    }
+
+    /**
+     * 一轮评测的结果
+     */
+    private static final class Sample {
+        double mbPerSecond; // 吞吐量
+        double allocatedPerMb;  // 每MB分配的字节数，不支持时为-1
+        long blockedCount;  // 所有线程进入synchronized时被阻塞的次数
+        double blockedMillis;   // 所有线程被阻塞的总时间，不支持时为-1
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (THREADS.isThreadContentionMonitoringSupported()) {
+            THREADS.setThreadContentionMonitoringEnabled(true);
+        }
+        if (allocatedBytes() < 0) {
+            System.out.println("allocation tracking not supported by this VM");
+        }
+        System.out.printf("%-7s %7s %5s %-8s %-13s %16s %12s %10s %10s%n",
+                "source", "cache", "conns", "storage", "progress", "MB/s", "alloc B/MB", "blocked", "blocked ms");
+        try {
+            for (String source : SOURCES) {
+                for (String cache : CACHE_SIZES) {
+                    for (String connections : CONNECTIONS) {
+                        for (String storage : STORAGES) {
+                            for (String progress : PROGRESS) {
+                                run(source, Integer.parseInt(cache), Integer.parseInt(connections), storage, progress);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    /**
+     * 评测一种组合，预热后测量多轮，打印平均值，吞吐量附带标准差
+     */
+    private static void run(String source, int cacheSize, int connections, String storage, String progress) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            iterate(source, cacheSize, connections, storage, progress);
+        }
+        double[] rates = new double[ITERATIONS];
+        double allocated = 0, blockedMillis = 0;
+        long blockedCount = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            Sample sample = iterate(source, cacheSize, connections, storage, progress);
+            rates[i] = sample.mbPerSecond;
+            allocated += sample.allocatedPerMb;
+            blockedCount += sample.blockedCount;
+            blockedMillis += sample.blockedMillis;
+        }
+        double mean = 0;
+        for (double rate : rates) {
+            mean += rate / ITERATIONS;
+        }
+        double variance = 0;
+        for (double rate : rates) {
+            variance += (rate - mean) * (rate - mean) / ITERATIONS;
+        }
+        System.out.printf("%-7s %7d %5d %-8s %-13s %8.1f +- %5.1f %12.0f %10d %10.1f%n", source, cacheSize, connections, storage, progress,
+                mean, Math.sqrt(variance), allocated / ITERATIONS, blockedCount / ITERATIONS, blockedMillis / ITERATIONS);
+    }
+
+    /**
+     * 运行一轮：每条线程负责文件中连续的一段，读完自己的一段后结束
+     */
+    private static Sample iterate(String source, final int cacheSize, int connections, String storageName, String progressName) throws Exception {
+        final DownloadStorage storage = createStorage(storageName);
+        File file = File.createTempFile("droidown-bench", ".tmp", DIR);
+        storage.open(file, BYTES);
+        final Progress progress = "synchronized".equals(progressName) ? new SynchronizedProgress() : new StripedProgress(connections);
+        final InputStream[] streams = new InputStream[connections];
+        final DownloadSegment[] segments = new DownloadSegment[connections];
+        for (int i = 0; i < connections; i++) {
+            long start = BYTES * i / connections;
+            long end = BYTES * (i + 1) / connections - 1;
+            segments[i] = new DownloadSegment(i + 1, start, end, start);
+            streams[i] = open(source, start, end);  // 计时之前发出请求
+        }
+        final CountDownLatch ready = new CountDownLatch(connections);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(connections);
+        final AtomicLong allocated = new AtomicLong();
+        final AtomicLong blockedCount = new AtomicLong();
+        final AtomicLong blockedMillis = new AtomicLong();
+        final IOException[] failure = new IOException[1];
+        for (int i = 0; i < connections; i++) {
+            final int threadId = i + 1;
+            final InputStream in = streams[i];
+            final DownloadSegment segment = segments[i];
+            new Thread("bench-" + threadId) {
+                @Override
+                public void run() {
+                    try {
+                        byte[] buffer = new byte[cacheSize];
+                        ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+                        ready.countDown();
+                        start.await();
+                        long allocatedBefore = allocatedBytes();
+                        ThreadInfo before = THREADS.getThreadInfo(getId());
+                        int n;
+                        while (!segment.isComplete() && (n = in.read(buffer)) != -1) {
+                            wrapper.clear();
+                            wrapper.limit(n);
+                            storage.write(wrapper, segment.getPosition());
+                            segment.advance(n); // 两种进度记录方式都要推进分段，写入位置相同
+                            progress.update(threadId, segment.getPosition(), n);
+                        }
+                        ThreadInfo after = THREADS.getThreadInfo(getId());
+                        long allocatedAfter = allocatedBytes();
+                        allocated.addAndGet(allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore);
+                        blockedCount.addAndGet(after.getBlockedCount() - before.getBlockedCount());
+                        blockedMillis.addAndGet(after.getBlockedTime() < 0 ? -1 : after.getBlockedTime() - before.getBlockedTime());
+                        in.close();
+                    } catch (IOException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    } catch (InterruptedException ignored) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        storage.close();
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        if (progress.sum() != BYTES) {
+            throw new IllegalStateException("progress " + progress.sum() + " != " + BYTES);
+        }
+        Sample sample = new Sample();
+        sample.mbPerSecond = BYTES / MB / (elapsed / 1e9);
+        sample.allocatedPerMb = allocated.get() < 0 ? -1 : allocated.get() / (BYTES / MB);
+        sample.blockedCount = blockedCount.get();
+        sample.blockedMillis = blockedMillis.get() < 0 ? -1 : blockedMillis.get();
+        return sample;
+    }
+
+    private static DownloadStorage createStorage(String name) {
+        if ("rwd".equals(name) || "rw".equals(name)) return new RandomAccessFileStorage(name);
+        if ("channel".equals(name)) return new FileChannelStorage();
+        if ("discard".equals(name)) return new DiscardStorage();
+        throw new IllegalArgumentException("unknown storage " + name);
+    }
+
+    /**
+     * 打开一段数据的响应流
+     */
+    private static InputStream open(String source, long start, long end) throws IOException {
+        if ("memory".equals(source)) return new SyntheticStream(end - start + 1);
+        if (!"socket".equals(source)) throw new IllegalArgumentException("unknown source " + source);
+        if (server == null) {
+            server = new LocalTestServer(BYTES);
+            server.start(0);
+        }
+        HttpURLConnection http = HttpConnector.open(server.getUrl("/bench.bin"), "bytes=" + start + "-" + end);
+        if (http.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            throw new IOException("Unexpected response code " + http.getResponseCode());
+        }
+        return http.getInputStream();
+    }
+
+    /**
+     * 获取当前线程累计分配的字节数
+     *
+     * @return 字节数，虚拟机不支持时为-1
+     */
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static String[] split(String values) {
+        return values.split(",");
+    }
+}
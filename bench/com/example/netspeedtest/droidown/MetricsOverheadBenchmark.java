@@ -0,0 +1,132 @@
+package com.example.netspeedtest.droidown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+/**
+ * 评测连接统计对下载吞吐量的影响。同一个读取热路径(读流、限速、写存储、推进分段、累加计数槽)先以内存流为数据源，
+ * 分别在不记录和记录ReadRecorder的情况下交替测量多轮，两者之差就是每次读取的统计开销；
+ * 内存流快得离谱，直接比较吞吐量没有意义，所以再从本机LocalTestServer的回环连接读取测出每次读取的实际耗时，
+ * 统计开销占这个耗时的比例就是吞吐量的损失，真实网络每次读取更慢，比例只会更低。开销不低于1%时以状态码1退出。
+ * <p>
+ * 运行: javac -encoding UTF-8 -d out src/.../droidown/*.java bench/.../droidown/MetricsOverheadBenchmark.java &amp;&amp; java -cp out com.example.netspeedtest.droidown.MetricsOverheadBenchmark
+ * <p>
+ * -Dcache=每次读取的长度，多个值用逗号分隔 -Dbytes=每轮的总长度 -Dwarmup=预热轮数 -Diterations=测量轮数
+ */
+public final class MetricsOverheadBenchmark {
+    private static final double MB = 1024 * 1024;
+    private static final String[] CACHE_SIZES = System.getProperty("cache", "16384,65536,262144,1048576").split(",");
+    private static final long BYTES = Long.getLong("bytes", 1024L * 1024 * 1024);
+    private static final int WARMUP = Integer.getInteger("warmup", 3);
+    private static final int ITERATIONS = Integer.getInteger("iterations", 10);
+
+    /**
+     * 内存中的无限数据流，每次读取复制一整块
+     */
+    private static final class MemoryStream extends InputStream {
+        private final byte[] data;
+
+        MemoryStream(int size) {
+            this.data = new byte[size];
+        }
+
+        @Override
+        public int read() {
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int length = Math.min(len, data.length);
+            System.arraycopy(data, 0, b, off, length);
+            return length;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        DownloadExecutor executor = new DownloadExecutor(new URL("http://127.0.0.1/"),
+                new File(System.getProperty("java.io.tmpdir")), 1);
+        LocalTestServer server = new LocalTestServer(BYTES);
+        server.start(0);
+        boolean ok = true;
+        for (String cache : CACHE_SIZES) {
+            int size = Integer.parseInt(cache.trim());
+            DownloadMetrics metrics = new DownloadMetrics(1);
+            ReadRecorder recorder = new ReadRecorder(metrics.getConnection(1), true);
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            InputStream stream = new MemoryStream(size);
+            for (int i = 0; i < WARMUP; i++) {
+                run(executor, stream, buffer, null);
+                run(executor, stream, buffer, recorder);
+            }
+            long plain = 0, recorded = 0;
+            long readsBefore = metrics.getConnection(1).getReads();
+            for (int i = 0; i < ITERATIONS; i++) {  // 交替测量，抵消频率和缓存状态的漂移
+                plain += run(executor, stream, buffer, null);
+                recorded += run(executor, stream, buffer, recorder);
+            }
+            long reads = metrics.getConnection(1).getReads() - readsBefore;
+            double cost = Math.max(0, recorded - plain) / (double) reads;   // 每次读取的统计开销，纳秒
+            long socketNanos = 0, socketReads = 0;
+            for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+                HttpURLConnection http = (HttpURLConnection) server.getUrl("/file.bin").openConnection();
+                InputStream socket = http.getInputStream();
+                long before = metrics.getConnection(1).getReads();
+                long nanos = run(executor, socket, buffer, recorder);
+                if (i >= WARMUP) {
+                    socketNanos += nanos;
+                    socketReads += metrics.getConnection(1).getReads() - before;
+                }
+                socket.close();
+            }
+            double perRead = socketNanos / (double) socketReads;    // 回环连接每次读取的耗时，纳秒
+            double overhead = cost * 100 / perRead;
+            System.out.printf("cache=%-8d memory %8.1f MB/s  statistics %5.1f ns/read  loopback %8.1f MB/s %8.1f ns/read  overhead %5.2f%%%n",
+                    size, BYTES * ITERATIONS / MB / (plain / 1e9), cost, BYTES * ITERATIONS / MB / (socketNanos / 1e9), perRead, overhead);
+            ok &= overhead < 1;
+        }
+        server.stop();
+        System.out.println(ok ? "metrics overhead is under 1%" : "metrics overhead is 1% or more");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 读取一轮，与DownloadWorker.download()中的循环体相同
+     *
+     * @param recorder 为null时不记录统计
+     * @return 耗时，纳秒
+     */
+    private static long run(DownloadExecutor executor, InputStream stream, ByteBuffer buffer, ReadRecorder recorder) throws IOException {
+        DownloadStorage storage = new DiscardStorage();
+        ProgressCounter progress = new ProgressCounter(1);
+        DownloadSegment segment = new DownloadSegment(1, 0, BYTES - 1, 0);
+        byte[] array = buffer.array();
+        long begin = System.nanoTime();
+        if (recorder != null) {
+            recorder.start(begin);
+        }
+        int offset;
+        while (!segment.isComplete() && (offset = stream.read(array)) != -1) {
+            if (recorder != null) {
+                recorder.read(offset, System.nanoTime());
+            }
+            executor.reserveBandwidth(offset);
+            int length = (int) Math.min(offset, segment.getRemaining());
+            buffer.clear();
+            buffer.limit(length);
+            storage.write(buffer, segment.getPosition());
+            progress.add(1, segment.advance(length));
+        }
+        long end = System.nanoTime();
+        if (recorder != null) {
+            recorder.flush(end);
+        }
+        return end - begin;
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.netspeedtest.droidown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+/**
+ * 检查进度传递的稳态分配量：下载线程每次读取的热路径(读流、连接统计、限速、写存储、推进分段、累加计数槽、累计镜像流量)，
+ * 以及监视循环每次通知进度时更新快照、界面线程复制快照的路径。预热让JIT完成编译后，用HotSpot的线程分配计数测量多轮，
+ * 除了每轮开始时新建的分段，每次读取或者每次通知分配的字节数应该为0，否则以状态码1退出。其他虚拟机上不支持分配计数，只打印提示。
+ * <p>
+ * 运行: javac -encoding UTF-8 -d out src/.../droidown/*.java bench/.../droidown/ProgressAllocationBenchmark.java &amp;&amp; java -cp out com.example.netspeedtest.droidown.ProgressAllocationBenchmark
+ * <p>
+ * -Dreads=每轮读取次数 -Dwarmup=预热轮数 -Diterations=测量轮数 -Dcache=每次读取的长度
+ */
+public final class ProgressAllocationBenchmark {
+    private static final int READS = Integer.getInteger("reads", 20000);
+    private static final int WARMUP = Integer.getInteger("warmup", 5);
+    private static final int ITERATIONS = Integer.getInteger("iterations", 5);
+    private static final int CACHE_SIZE = Integer.getInteger("cache", BufferPool.MIN_ADAPTIVE_SIZE);
+
+    /**
+     * 内存中的无限数据流，读取时只复制数据
+     */
+    private static final class MemoryStream extends InputStream {
+        private final byte[] data = new byte[CACHE_SIZE];
+
+        @Override
+        public int read() {
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int length = Math.min(len, data.length);
+            System.arraycopy(data, 0, b, off, length);
+            return length;
+        }
+    }
+
+    /**
+     * 被测量的路径
+     */
+    private interface Path {
+        /**
+         * 执行一轮
+         *
+         * @param count 次数
+         */
+        void run(int count) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (allocatedBytes() < 0) {
+            System.out.println("thread allocation counting is not supported by this VM");
+            return;
+        }
+        final DownloadExecutor executor = new DownloadExecutor(new URL("http://127.0.0.1/"),
+                new File(System.getProperty("java.io.tmpdir")), 1);
+        final DownloadStorage storage = new DiscardStorage();
+        final ProgressCounter progress = new ProgressCounter(1);
+        final DownloadMirror mirror = new DownloadMirror(new URL("http://127.0.0.1/"), 0);
+        final InputStream stream = new MemoryStream();
+        final ByteBuffer buffer = BufferPool.getDefault().acquire(CACHE_SIZE, false);
+        final byte[] array = buffer.array();
+        final ReadRecorder recorder = new ReadRecorder(new DownloadMetrics(1).getConnection(1), false);  // CPU时间每100ms才查询一次，不在每次读取的路径上
+        final boolean[] checksum = new boolean[1];
+        Path read = new Path() {
+            @Override
+            public void run(int count) throws IOException {
+                DownloadSegment segment = new DownloadSegment(1, 0, Long.MAX_VALUE - 1, 0);
+                recorder.start(System.nanoTime());
+                for (int i = 0; i < count; i++) {   // 与DownloadWorker.download()中的循环体相同
+                    int offset = stream.read(array);
+                    recorder.read(offset, System.nanoTime());
+                    mirror.add(offset);
+                    executor.reserveBandwidth(offset);
+                    int length = (int) Math.min(offset, segment.getRemaining());
+                    buffer.clear();
+                    buffer.limit(length);
+                    storage.write(buffer, segment.getPosition());
+                    progress.add(1, checksum[0] ? segment.advance(buffer, 0, length) : segment.advance(length));
+                }
+            }
+        };
+        final ProgressSnapshot target = new ProgressSnapshot();
+        Path notify = new Path() {
+            @Override
+            public void run(int count) {
+                for (int i = 0; i < count; i++) {   // 监视循环更新快照，界面线程复制快照
+                    executor.publishProgress(progress.sum(), i);
+                    executor.readProgress(target);
+                }
+            }
+        };
+        boolean ok = report("read", read, READS);
+        checksum[0] = true;
+        ok &= report("read+crc32c", read, READS / 4);
+        ok &= report("notify", notify, READS * 50);
+        if (target.getSequence() == 0) {
+            throw new IllegalStateException("snapshot never published");
+        }
+        System.out.println(ok ? "steady state is allocation free" : "steady state allocates");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 预热后测量多轮，打印每次操作的分配量和耗时
+     *
+     * @return 每次操作平均分配的字节数是否不到1
+     */
+    private static boolean report(String name, Path path, int count) throws IOException {
+        for (int i = 0; i < WARMUP; i++) {
+            path.run(count);
+        }
+        long overhead = allocatedBytes();
+        overhead = allocatedBytes() - overhead; // 读取分配计数本身的分配量
+        long allocated = 0;
+        long nanos = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long begin = System.nanoTime();
+            long before = allocatedBytes();
+            path.run(count);
+            long after = allocatedBytes();
+            nanos += System.nanoTime() - begin;
+            allocated += Math.max(0, after - before - overhead);
+        }
+        long operations = (long) count * ITERATIONS;
+        System.out.printf("%-12s %10d ops  %8.1f ns/op  %8.4f bytes/op  (%d bytes in total)%n",
+                name, operations, (double) nanos / operations, (double) allocated / operations, allocated);
+        return allocated < operations;  // 每轮开始时创建的分段等少量对象不计，只要求每次操作平均不到1字节
+    }
+
+    /**
+     * 当前线程累计分配的字节数，不支持时返回-1
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.netspeedtest.droidown;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 对比下载线程每次读取后更新进度的开销：原来的synchronized update()加装箱的ConcurrentHashMap，与每线程独占计数槽的ProgressCounter。
+ * 线程数增加时前者的耗时随之上升(所有线程排队争同一把锁)，后者基本保持不变。
+ * <p>
+ * 运行: javac -encoding UTF-8 -d out src/.../droidown/*.java bench/.../droidown/ProgressBenchmark.java &amp;&amp; java -cp out com.example.netspeedtest.droidown.ProgressBenchmark
+ */
+public final class ProgressBenchmark {
+    private static final int UPDATES = 5000000;    // 每条线程的更新次数
+    private static final int READ_SIZE = 1024 * 5;  // 模拟每次读取的长度
+
+    /**
+     * 原来的进度记录方式
+     */
+    private static final class SynchronizedProgress {
+        private final Map<Integer, Long> threadData = new ConcurrentHashMap<Integer, Long>();
+        private long downloadedSize;
+
+        synchronized void update(int threadId, int size, long pos) {
+            threadData.put(threadId, pos);
+            downloadedSize += size;
+        }
+    }
+
+    private interface Updater {
+        void run(int threadId);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final SynchronizedProgress[] legacy = new SynchronizedProgress[1];
+        final ProgressCounter[] striped = new ProgressCounter[1];
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            legacy[0] = new SynchronizedProgress();
+            long legacyNanos = measure(threads, new Updater() {
+                @Override
+                public void run(int threadId) {
+                    SynchronizedProgress progress = legacy[0];
+                    long pos = 0;
+                    for (int i = 0; i < UPDATES; i++) {
+                        pos += READ_SIZE;
+                        progress.update(threadId, READ_SIZE, pos);
+                    }
+                }
+            });
+            striped[0] = new ProgressCounter(threads);
+            long stripedNanos = measure(threads, new Updater() {
+                @Override
+                public void run(int threadId) {
+                    ProgressCounter progress = striped[0];
+                    DownloadSegment segment = new DownloadSegment(threadId, 0, Long.MAX_VALUE - 1, 0);
+                    for (int i = 0; i < UPDATES; i++) {
+                        progress.add(threadId, segment.advance(READ_SIZE));
+                    }
+                }
+            });
+            if (striped[0].sum() != (long) threads * UPDATES * READ_SIZE) {
+                throw new IllegalStateException("lost updates: " + striped[0].sum());
+            }
+            System.out.printf("threads=%d  synchronized update(): %6.1f ns/op  ProgressCounter: %6.1f ns/op%n",
+                    threads, (double) legacyNanos / UPDATES, (double) stripedNanos / UPDATES);
+        }
+    }
+
+    /**
+     * 多条线程同时执行更新，返回总耗时
+     */
+    private static long measure(int threads, final Updater updater) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final int threadId = i + 1;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        updater.run(threadId);
+                    } catch (InterruptedException ignored) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - begin;
+    }
+}
@@ -5,6 +5,12 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 import android.app.Activity;
@@ -17,13 +23,16 @@ import android.os.Message;
 import android.util.Log;
 import android.view.View;
 import android.view.animation.Animation;
-import android.view.animation.RotateAnimation;
+import android.view.animation.Transformation;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.TextView;
 import com.example.netspeedtest.droidown.DownloadExecutor;
 import com.example.netspeedtest.droidown.DownloadListener;
 import com.example.netspeedtest.droidown.DownloadTask;
+import com.example.netspeedtest.droidown.LatencyProbe;
+import com.example.netspeedtest.droidown.ProgressSnapshot;
+import com.example.netspeedtest.droidown.ServerSelector;
 
 public class MainActivity extends Activity
 {
@@ -38,7 +47,22 @@ public class MainActivity extends Activity
 	private DownloadTask downloadTask;
 	private final String urlString ="http://down.sandai.net/thunder7/Thunder_dl_7.9.34.4908.exe";      //30M
 //	private final String urlString ="http://mirrors.zju.edu.cn/ubuntu-releases/14.04.2/ubuntu-14.04.2-desktop-amd64.iso";   //990M
+	private final String[] serverUrls ={urlString,
+			"http://mirrors.zju.edu.cn/ubuntu-releases/14.04.2/ubuntu-14.04.2-desktop-amd64.iso"};	// 候选测速服务器，本地没有服务器列表文件时使用
+	private final String serverListName ="netspeedtest_servers.txt";	// 下载目录中的服务器列表文件，每行一个地址
 	private final int threadMax =5; // 线程个数
+	private final int minConnections =2;	// 自动调节连接数时开始的连接数
+	private final int maxConnections =16;	// 自动调节连接数时允许的最大连接数
+	private final double connectionGain =0.1;	// 每增加一条连接至少要提高10%的速度
+	private final double convergenceBand =0.05;	// 速度稳定在±5%之内就结束测试
+	private final long maxTestTime =15*1000;	// 测试最长时间
+	private final long maxTestBytes =100*1024*1024;	// 测试最多消耗的流量
+	private final ProgressSnapshot uiProgress =new ProgressSnapshot();	// 界面线程反复使用的进度快照
+	private final char[] speedChars =new char[16];	// 格式化速度文字用的缓存，setText(char[])不需要每次拼接字符串
+	private NeedleAnimation needleAnimation;	// 指针转动的动画，每次只修改角度后重新开始
+	private volatile DownloadExecutor progressSource;	// 正在通知进度的下载器
+	private final ExecutorService selectionExecutor =Executors.newSingleThreadExecutor();	// 选择服务器的后台线程，界面销毁时一起关闭
+	private Future<?> selection;	// 正在进行的服务器选择
 
 	private Handler handler=new Handler()
 	{
@@ -49,13 +73,20 @@ public class MainActivity extends Activity
 			// TODO Auto-generated method stub
 			if(msg.what==0x123)
 			{
-				tv_now_speed.setText(msg.arg1+"KB/S");
-				tv_ave_speed.setText(msg.arg2+"KB/S");
-				startAnimation(msg.arg1);
+				DownloadExecutor downloader=progressSource;
+				if(downloader==null) return;
+				downloader.readProgress(uiProgress);	// 到界面线程再读取最新的进度，积压的通知只处理一次
+				int cur_speed=(int) (uiProgress.getCurrentSpeed()/1024);
+				setSpeedText(tv_now_speed, cur_speed);
+				setSpeedText(tv_ave_speed, (int) (uiProgress.getAverageSpeed()/1024));
+				startAnimation(cur_speed);
 			}
 			if(msg.what==0x100)
 			{
+				progressSource=null;
+				removeMessages(0x123);
 				tv_now_speed.setText("0KB/S");
+				tv_ave_speed.setText(msg.arg2+"KB/S");
 				startAnimation(0);
 				btn.setText("开始测试");
 				btn.setEnabled(true);
@@ -90,7 +121,8 @@ public class MainActivity extends Activity
 				// TODO Auto-generated method stub
 				ConnectivityManager connectivityManager=(ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
 				NetworkInfo networkInfo=connectivityManager.getActiveNetworkInfo();
-				tv_type.setText(networkInfo.getTypeName());
+				final String networkType=networkInfo.getTypeName();
+				tv_type.setText(networkType);
 				
 				
 				btn.setText("测试中");
@@ -100,28 +132,68 @@ public class MainActivity extends Activity
 //				info.totalByte=1024;
 //				new DownloadThread().start();
 //				new GetInfoThread().start();
-				beginDownload();
+				selection=selectionExecutor.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						URL url=selectServer(networkType);	// 选择服务器需要联网，不能在主线程中进行
+						if(!Thread.currentThread().isInterrupted())
+						{
+							beginDownload(url);	// 界面已经销毁时不再开始测试
+						}
+					}
+				});
 			}
 		});
 	}
-	private void beginDownload(){
-		File file = new File(getDownloadPath());
-		try {
-			downloadTask = new DownloadTask(urlString,file,Integer.valueOf(threadMax));
-			downloadTask.setTaskStatusListener(downloadListener);
-			downloadTask.start();
-		} catch (MalformedURLException e) {
-			downloadTask =  null;
-			e.printStackTrace();
+	@Override
+	protected void onDestroy()
+	{
+		if(selection!=null)
+		{
+			selection.cancel(true);	// 中断还在进行的服务器选择
 		}
-		if(downloadTask !=null){
-			handler.postDelayed(new Runnable() {
-				@Override
-				public void run() {
-					downloadTask.getDownloadExecutor().pause();
+		selectionExecutor.shutdownNow();
+		super.onDestroy();
+	}
+	/**
+	 * 并行探测候选服务器，选出当前网络下延迟低、吞吐量高的服务器，同一种网络下的结果会缓存一段时间
+	 */
+	private URL selectServer(String networkType){
+		try {
+			List<URL> candidates=new ArrayList<URL>();
+			File serverList=new File(getDownloadPath(), serverListName);
+			if (serverList.isFile()) {
+				candidates.addAll(ServerSelector.readCandidates(serverList));
+			}
+			if (candidates.isEmpty()) {
+				for (String url : serverUrls) {
+					candidates.add(new URL(url));
 				}
-			},15*1000);
+			}
+			return new ServerSelector(candidates).select(networkType);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();	// 界面销毁时被取消，保留中断状态让调用者放弃
+			return null;
+		} catch (Exception e) {
+			Log.w("Test", "server selection failed: "+e);
+			try {
+				return new URL(urlString);
+			} catch (MalformedURLException ignored) {
+				return null;
+			}
 		}
+	}
+	private void beginDownload(URL url){
+		File file = new File(getDownloadPath());
+		downloadTask = new DownloadTask(url,file,Integer.valueOf(threadMax));
+		downloadTask.setTaskStatusListener(downloadListener);
+		downloadTask.setMeasureOnly(true);	// 测速不需要保存文件
+		downloadTask.setStopCondition(convergenceBand, maxTestTime, maxTestBytes);	// 速度收敛或者达到上限时自动结束，不再固定测15秒
+		downloadTask.setAutoConnections(minConnections, maxConnections, connectionGain);	// 弱网少开连接，快速网络多开连接
+		downloadTask.setLatencyProbe(new LatencyProbe(url));	// 同时测量空闲和满载时的延迟
+		downloadTask.start();
 
 	}
 
@@ -138,32 +210,21 @@ public class MainActivity extends Activity
 
 		@Override
 		public void onProgressing(DownloadExecutor downloader, long downloadedSize) {
-			double sum,counter;
-			int cur_speed,ave_speed;
-			try
+			progressSource=downloader;
+			if(!handler.hasMessages(0x123))
 			{
-					sum =downloader.getDownloadedSize();
-					counter = downloader.getNowSpentTime();
-
-					ave_speed=(int) (sum/counter*1000);
-					cur_speed =ave_speed;
-					Log.e("Test", "cur_speed:"+cur_speed/1024+"KB/S ave_speed:"+ave_speed/1024);
-					Message msg=new Message();
-					msg.arg1=((int)cur_speed/1024);
-					msg.arg2=((int)ave_speed/1024);
-					msg.what=0x123;
-					handler.sendMessage(msg);
-
-			} catch (Exception e)
-			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				handler.sendEmptyMessage(0x123);	// 空消息取自Message的对象池，速度由界面线程从快照中读取
 			}
 		}
 
 		@Override
 		public void onPause(DownloadExecutor downloader, long downloadedSize) {
-			handler.sendEmptyMessage(0x100);
+			Log.i("Test", "connections:"+downloader.getConnectionCount()+" curve:"+Arrays.toString(downloader.getConnectionCurve())+" "+Arrays.toString(downloader.getConnectionCurveSpeeds()));
+			logLatency(downloader.getLatencyProbe());
+			logMetrics(downloader);
+			Message msg=handler.obtainMessage(0x100);
+			msg.arg2=(int) (downloader.getSteadySpeed()/1024);	// 测试结果为排除了爬升阶段的稳态速度
+			handler.sendMessage(msg);
 		}
 
 		@Override
@@ -173,12 +234,25 @@ public class MainActivity extends Activity
 
 		@Override
 		public void onFinish(DownloadExecutor downloader) {
+			logLatency(downloader.getLatencyProbe());
+			logMetrics(downloader);
 
-			handler.sendEmptyMessage(0x100);
+			Message msg=handler.obtainMessage(0x100);
+			msg.arg2=(int) (downloader.getSteadySpeed()/1024);
+			handler.sendMessage(msg);
 		}
 	};
 
 
+	private void logLatency(LatencyProbe probe){
+		if (probe == null) return;
+		Log.i("Test", "idle latency:"+probe.getIdleTtfb()+" loaded latency:"+probe.getLoadedTtfb()+" bufferbloat:"+probe.getGrade());
+	}
+
+	private void logMetrics(DownloadExecutor downloader){
+		Log.i("Test", "metrics:"+downloader.getMetrics().toJson());	// 测速结果偏低时根据各连接的首字节时间、停顿和错误排查
+	}
+
 	class GetInfoThread extends Thread
 	{
 
@@ -243,11 +317,69 @@ public class MainActivity extends Activity
 	{
 		cur_degree=getDegree(cur_speed);
 		
-		RotateAnimation rotateAnimation=new RotateAnimation(last_degree, cur_degree, Animation.RELATIVE_TO_SELF, 1.0f, Animation.RELATIVE_TO_SELF, 0.5f);
-		rotateAnimation.setFillAfter(true);
-		rotateAnimation.setDuration(1000);
+		if(needleAnimation==null)
+		{
+			needleAnimation=new NeedleAnimation();
+			needleAnimation.setFillAfter(true);
+			needleAnimation.setDuration(1000);
+		}
+		needleAnimation.setDegrees(last_degree, cur_degree);
 		last_degree=cur_degree;
-		needle.startAnimation(rotateAnimation);
+		needle.startAnimation(needleAnimation);	// 重新开始同一个动画，不再每次创建RotateAnimation
+	}
+
+	/**
+	 * 把"xxxKB/S"写进字符缓存后显示，不创建字符串
+	 */
+	private void setSpeedText(TextView view, int kb)
+	{
+		int length=0;
+		if(kb<0) kb=0;
+		do
+		{
+			speedChars[length++]=(char) ('0'+kb%10);
+			kb/=10;
+		} while(kb>0);
+		for(int i=0,j=length-1;i<j;i++,j--)
+		{
+			char c=speedChars[i];
+			speedChars[i]=speedChars[j];
+			speedChars[j]=c;
+		}
+		speedChars[length++]='K';
+		speedChars[length++]='B';
+		speedChars[length++]='/';
+		speedChars[length++]='S';
+		view.setText(speedChars, 0, length);
+	}
+
+	/**
+	 * 绕指针右端中点转动的动画，与RotateAnimation相同，但是可以修改角度后重复使用
+	 */
+	private static class NeedleAnimation extends Animation
+	{
+		private float fromDegrees,toDegrees;
+		private float pivotX,pivotY;
+
+		void setDegrees(float fromDegrees, float toDegrees)
+		{
+			this.fromDegrees=fromDegrees;
+			this.toDegrees=toDegrees;
+		}
+
+		@Override
+		public void initialize(int width, int height, int parentWidth, int parentHeight)
+		{
+			super.initialize(width, height, parentWidth, parentHeight);
+			pivotX=resolveSize(RELATIVE_TO_SELF, 1.0f, width, parentWidth);
+			pivotY=resolveSize(RELATIVE_TO_SELF, 0.5f, height, parentHeight);
+		}
+
+		@Override
+		protected void applyTransformation(float interpolatedTime, Transformation t)
+		{
+			t.getMatrix().setRotate(fromDegrees+(toDegrees-fromDegrees)*interpolatedTime, pivotX, pivotY);
+		}
 	}
 	
 	private int getDegree(double cur_speed)
@@ -0,0 +1,131 @@
+package com.example.netspeedtest.droidown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 所有下载器共享的读取缓冲区池，缓冲区按2的幂分级，用完归还后由下一条连接或者重试的作业直接取用，不再每次新建。
+ * 堆缓冲区用于InputStream.read(byte[])，直接缓冲区用于SocketChannel，两者分开存放。
+ * 缓冲区的大小由每条连接的实际速度决定：保证一次读取大约能装下20ms的数据，
+ * 慢速连接用小缓冲区不浪费内存，快速连接用大缓冲区减少系统调用和进度更新的次数
+ */
+final class BufferPool {
+    static final int MAX_SIZE = 1024 * 1024;    // 按速度调整时缓冲区的最大长度
+    static final int MIN_ADAPTIVE_SIZE = 64 * 1024; // 按速度调整时缓冲区的最小长度
+    private static final int MIN_SHIFT = 12;    // 最小的一级是4KB
+    private static final int MAX_SHIFT = 24;    // 最大的一级是16MB，更大的缓冲区不入池
+    private static final double FILL_SECONDS = 0.02;    // 一次读取期望装下的数据时长
+    private static final BufferPool DEFAULT = new BufferPool(16 * 1024 * 1024);
+
+    private final long maxRetained; // 池中最多保留的总字节数，超过后归还的缓冲区直接丢弃
+    private final AtomicLong retained = new AtomicLong();   // 池中保留的总字节数
+    private final AtomicLong allocations = new AtomicLong();    // 池中没有合适的缓冲区而新建的次数
+    private final ConcurrentLinkedQueue<ByteBuffer>[] heap = newLevels();   // 各级空闲的堆缓冲区
+    private final ConcurrentLinkedQueue<ByteBuffer>[] direct = newLevels(); // 各级空闲的直接缓冲区
+
+    /**
+     * 创建一个缓冲区池
+     *
+     * @param maxRetained 池中最多保留的总字节数
+     */
+    BufferPool(long maxRetained) {
+        this.maxRetained = maxRetained;
+    }
+
+    /**
+     * 获取所有下载器共享的缓冲区池，最多保留16MB
+     *
+     * @return 缓冲区池
+     */
+    static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})  // 不能直接创建泛型数组
+    private static ConcurrentLinkedQueue<ByteBuffer>[] newLevels() {
+        ConcurrentLinkedQueue<ByteBuffer>[] levels = new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+        return levels;
+    }
+
+    /**
+     * 根据连接的速度计算合适的缓冲区长度
+     *
+     * @param bytesPerSecond 连接的速度，字节/秒
+     * @param minSize        最小长度，通常是设置的缓存大小
+     * @return 2的幂，在max(minSize, 64KB)和max(minSize, 1MB)之间
+     */
+    static int sizeFor(double bytesPerSecond, int minSize) {
+        int min = Math.max(minSize, MIN_ADAPTIVE_SIZE);
+        int max = Math.max(minSize, MAX_SIZE);
+        return roundUp((int) Math.max(min, Math.min(max, bytesPerSecond * FILL_SECONDS)));
+    }
+
+    /**
+     * 向上取整到2的幂，不小于最小的一级
+     */
+    private static int roundUp(int size) {
+        int rounded = Integer.highestOneBit(Math.max(size, 1 << MIN_SHIFT));
+        return rounded < size ? rounded << 1 : rounded;
+    }
+
+    /**
+     * 借出一个缓冲区，长度向上取整到2的幂
+     *
+     * @param size     需要的长度
+     * @param isDirect 是否需要直接缓冲区
+     * @return position为0、limit为容量的缓冲区
+     */
+    ByteBuffer acquire(int size, boolean isDirect) {
+        int capacity = roundUp(size);
+        int level = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+        if (level < (isDirect ? direct : heap).length) {
+            ByteBuffer buffer = (isDirect ? direct : heap)[level].poll();
+            if (buffer != null) {
+                retained.addAndGet(-capacity);
+                buffer.clear();
+                return buffer;
+            }
+        }
+        allocations.incrementAndGet();
+        return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * 归还缓冲区，归还后不能再使用
+     *
+     * @param buffer 从acquire()借出的缓冲区，为null时忽略
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        int capacity = buffer.capacity();
+        int level = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+        if (Integer.bitCount(capacity) != 1 || level < 0 || level >= heap.length) return;
+        if (retained.addAndGet(capacity) > maxRetained) {
+            retained.addAndGet(-capacity);  // 池已经满了，交给垃圾回收
+            return;
+        }
+        (buffer.isDirect() ? direct : heap)[level].offer(buffer);
+    }
+
+    /**
+     * 获取池中保留的总字节数
+     *
+     * @return 字节数
+     */
+    long getRetainedBytes() {
+        return retained.get();
+    }
+
+    /**
+     * 获取新建缓冲区的次数，复用良好时只在开始时增加
+     *
+     * @return 次数
+     */
+    long getAllocations() {
+        return allocations.get();
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.netspeedtest.droidown;
+
+/**
+ * 一条连接的统计数据：流量、请求的建连时间和首字节时间、每次读取长度的分布、停顿、重试和最后一次错误。
+ * 连接的id与进度计数槽一致，同一id的连接出错重连后继续累计。读取路径上的计数先记在ReadRecorder中，每100ms汇总一次，
+ * 下载进行中随时可以查询，各方法都是线程安全的
+ */
+public final class ConnectionMetrics {
+    static final int BUCKETS = 32;  // 读取长度按2的幂分组，第i组为[2^i, 2^(i+1))
+
+    private final int id;   // 连接id
+    private long bytes; // 从网络读到的数据长度
+    private long reads; // 读取次数
+    private final long[] readSizes = new long[BUCKETS]; // 读取长度的分布
+    private long stalls;    // 停顿次数
+    private long stallNanos;    // 停顿的总时间，纳秒
+    private long requests;  // 成功的请求数
+    private long connects;  // 新建的TCP连接数，复用长连接的请求不计
+    private long connectNanos;  // 新建TCP连接的总时间，纳秒
+    private long firstByteNanos;    // 各请求从发出到收到响应头的总时间，纳秒
+    private long maxFirstByteNanos; // 最长的首字节时间，纳秒
+    private long cpuNanos;  // 下载线程占用的CPU时间，纳秒，多路复用引擎不按连接统计
+    private int failures;   // 出错次数
+    private int retries;    // 出错后重新连接的次数
+    private String lastError;   // 最后一次错误的异常类名
+    private RetryPolicy.ErrorClass lastErrorClass;  // 最后一次错误的分类
+
+    ConnectionMetrics(int id) {
+        this.id = id;
+    }
+
+    /**
+     * 记录一个成功的请求
+     *
+     * @param connectNanos   新建TCP连接的时间，复用长连接时为-1
+     * @param firstByteNanos 从发出请求到收到响应头的时间
+     */
+    synchronized void addRequest(long connectNanos, long firstByteNanos) {
+        if (connectNanos >= 0) {
+            this.connects++;
+            this.connectNanos += connectNanos;
+        }
+        this.requests++;
+        this.firstByteNanos += firstByteNanos;
+        this.maxFirstByteNanos = Math.max(this.maxFirstByteNanos, firstByteNanos);
+    }
+
+    /**
+     * 汇总读取路径上的计数
+     */
+    synchronized void addReads(long bytes, long[] readSizes, long stalls, long stallNanos, long cpuNanos) {
+        this.bytes += bytes;
+        for (int i = 0; i < BUCKETS; i++) {
+            this.reads += readSizes[i];
+            this.readSizes[i] += readSizes[i];
+        }
+        this.stalls += stalls;
+        this.stallNanos += stallNanos;
+        this.cpuNanos += cpuNanos;
+    }
+
+    /**
+     * 记录一次错误
+     *
+     * @param e        错误
+     * @param error    错误的分类
+     * @param retrying 是否会重新连接
+     */
+    synchronized void addFailure(Exception e, RetryPolicy.ErrorClass error, boolean retrying) {
+        this.failures++;
+        if (retrying) {
+            this.retries++;
+        }
+        this.lastError = e.getClass().getName();
+        this.lastErrorClass = error;
+    }
+
+    /**
+     * 获取连接id
+     *
+     * @return 从1开始的id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * 获取从网络读到的数据长度，包括为了复用连接读完的多余数据
+     *
+     * @return 字节数
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * 获取读取次数
+     *
+     * @return 次数
+     */
+    public synchronized long getReads() {
+        return reads;
+    }
+
+    /**
+     * 获取读取长度的分布，第i个元素是长度在[2^i, 2^(i+1))之间的读取次数
+     *
+     * @return 32个元素的数组副本
+     */
+    public synchronized long[] getReadSizes() {
+        return readSizes.clone();
+    }
+
+    /**
+     * 获取停顿次数，连续两次读到数据之间超过500ms(不含限速等待)算作一次停顿
+     *
+     * @return 次数
+     */
+    public synchronized long getStalls() {
+        return stalls;
+    }
+
+    /**
+     * 获取停顿的总时间
+     *
+     * @return 毫秒
+     */
+    public synchronized long getStallTime() {
+        return stallNanos / 1000000;
+    }
+
+    /**
+     * 获取成功的请求数
+     *
+     * @return 请求数
+     */
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    /**
+     * 获取新建TCP连接的平均时间，复用长连接的请求不计
+     *
+     * @return 毫秒，没有新建过连接时为0
+     */
+    public synchronized double getConnectTime() {
+        return connects > 0 ? connectNanos / 1e6 / connects : 0;
+    }
+
+    /**
+     * 获取请求的平均首字节时间，即从发出请求到收到响应头的时间
+     *
+     * @return 毫秒，没有成功的请求时为0
+     */
+    public synchronized double getFirstByteTime() {
+        return requests > 0 ? firstByteNanos / 1e6 / requests : 0;
+    }
+
+    /**
+     * 获取最长的首字节时间
+     *
+     * @return 毫秒
+     */
+    public synchronized double getMaxFirstByteTime() {
+        return maxFirstByteNanos / 1e6;
+    }
+
+    /**
+     * 获取下载线程为这条连接占用的CPU时间，多路复用引擎的CPU时间只计入DownloadMetrics的总数
+     *
+     * @return 毫秒，系统不支持线程CPU时间时为0
+     */
+    public synchronized long getCpuTime() {
+        return cpuNanos / 1000000;
+    }
+
+    /**
+     * 获取出错次数
+     *
+     * @return 次数
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * 获取出错后重新连接的次数
+     *
+     * @return 次数
+     */
+    public synchronized int getRetries() {
+        return retries;
+    }
+
+    /**
+     * 获取最后一次错误的异常类名
+     *
+     * @return 类名，没有出过错时为null
+     */
+    public synchronized String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * 获取最后一次错误的分类
+     *
+     * @return 分类，没有出过错时为null
+     */
+    public synchronized RetryPolicy.ErrorClass getLastErrorClass() {
+        return lastErrorClass;
+    }
+
+    /**
+     * 把统计数据写成JSON对象
+     *
+     * @param json 输出
+     */
+    synchronized void appendJson(StringBuilder json) {
+        json.append("{\"id\":").append(id)
+                .append(",\"bytes\":").append(bytes)
+                .append(",\"requests\":").append(requests)
+                .append(",\"connects\":").append(connects)
+                .append(",\"connectTime\":").append(connects > 0 ? connectNanos / 1000 / connects / 1000.0 : 0)
+                .append(",\"firstByteTime\":").append(requests > 0 ? firstByteNanos / 1000 / requests / 1000.0 : 0)
+                .append(",\"maxFirstByteTime\":").append(maxFirstByteNanos / 1000 / 1000.0)
+                .append(",\"reads\":").append(reads)
+                .append(",\"readSizes\":{");
+        boolean first = true;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (readSizes[i] == 0) continue;
+            json.append(first ? "\"" : ",\"").append(1L << i).append("\":").append(readSizes[i]);  // 键为该组的最小长度
+            first = false;
+        }
+        json.append("},\"stalls\":").append(stalls)
+                .append(",\"stallTime\":").append(stallNanos / 1000000)
+                .append(",\"cpuTime\":").append(cpuNanos / 1000000)
+                .append(",\"failures\":").append(failures)
+                .append(",\"retries\":").append(retries)
+                .append(",\"lastError\":").append(lastError != null ? "\"" + lastError + "\"" : "null")
+                .append(",\"lastErrorClass\":").append(lastErrorClass != null ? "\"" + lastErrorClass + "\"" : "null")
+                .append('}');
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.netspeedtest.droidown;
+
+/**
+ * 连接数调节器，从少量连接开始，每次增加一条连接并在速度稳定后比较增加前后的速度，
+ * 增益超过阈值就继续增加，否则撤掉最后增加的连接并停止调节
+ */
+final class ConnectionTuner {
+    private final int min;  // 开始时的连接数
+    private final int max;  // 允许的最大连接数
+    private final double threshold; // 每增加一条连接至少带来的速度增益比例
+    private final long settle;  // 改变连接数后等待速度稳定的时间，毫秒
+    private final int[] connections;    // 调节曲线上每一点的连接数
+    private final double[] speeds;  // 调节曲线上每一点的速度
+    private int points; // 调节曲线的点数
+    private int current;    // 当前的连接数
+    private long changeTime;    // 上一次改变连接数的时间
+    private boolean finished;   // 是否已经停止调节
+
+    /**
+     * 初始化调节器
+     *
+     * @param min       开始时的连接数
+     * @param max       允许的最大连接数
+     * @param threshold 每增加一条连接至少带来的速度增益比例，例如0.1表示10%
+     * @param settle    改变连接数后等待速度稳定的时间，毫秒
+     */
+    ConnectionTuner(int min, int max, double threshold, long settle) {
+        this.min = Math.max(1, Math.min(min, max));
+        this.max = Math.max(1, max);
+        this.threshold = threshold;
+        this.settle = settle;
+        this.connections = new int[this.max];
+        this.speeds = new double[this.max];
+    }
+
+    /**
+     * 重新开始调节
+     *
+     * @param now   当前时间，毫秒
+     * @param limit 外部限制的最大连接数，0为不限制
+     * @return 开始时的连接数
+     */
+    synchronized int reset(long now, int limit) {
+        int max = limitOf(limit);
+        this.points = 0;
+        this.current = Math.min(min, max);
+        this.changeTime = now;
+        this.finished = current >= max;
+        return current;
+    }
+
+    /**
+     * 根据当前速度决定连接数，改变连接数后至少等待settle毫秒才会再次评估。
+     * 外部限制低于当前连接数时降到限制值并停止调节，调节曲线上只记录实际使用过的连接数
+     *
+     * @param now   当前时间，毫秒
+     * @param speed 当前的瞬时速度
+     * @param limit 外部限制的最大连接数，0为不限制
+     * @return 应该使用的连接数
+     */
+    synchronized int update(long now, double speed, int limit) {
+        int max = limitOf(limit);
+        if (current > max) {
+            current = max;  // 降低连接数后的速度不能和之前的点比较，调节到此为止
+            finished = true;
+            changeTime = now;
+            return current;
+        }
+        if (finished || now - changeTime < settle) return current;
+        connections[points] = current;
+        speeds[points] = speed;
+        points++;
+        if (points > 1 && speed < speeds[points - 2] * (1 + threshold)) {
+            current--;  // 最后增加的连接没有带来足够的增益，撤掉它
+            finished = true;
+        } else if (current < max) {
+            current++;
+        } else {
+            finished = true;
+        }
+        changeTime = now;
+        return current;
+    }
+
+    /**
+     * 计算外部限制下允许的最大连接数
+     *
+     * @param limit 外部限制的最大连接数，0为不限制
+     * @return 连接数
+     */
+    private int limitOf(int limit) {
+        return limit > 0 ? Math.min(max, limit) : max;
+    }
+
+    /**
+     * 判断调节是否已经结束
+     *
+     * @return 结束了为true，否则为false
+     */
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * 获取当前的连接数
+     *
+     * @return 连接数
+     */
+    synchronized int getCurrent() {
+        return current;
+    }
+
+    /**
+     * 获取调节曲线上每一点的连接数
+     *
+     * @return 连接数数组的副本
+     */
+    synchronized int[] getConnections() {
+        int[] copy = new int[points];
+        System.arraycopy(connections, 0, copy, 0, points);
+        return copy;
+    }
+
+    /**
+     * 获取调节曲线上每一点的速度
+     *
+     * @return 速度数组的副本，字节/秒
+     */
+    synchronized double[] getSpeeds() {
+        double[] copy = new double[points];
+        System.arraycopy(speeds, 0, copy, 0, points);
+        return copy;
+    }
+}
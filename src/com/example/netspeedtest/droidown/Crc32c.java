@@ -0,0 +1,80 @@
+package com.example.netspeedtest.droidown;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CRC32C(Castagnoli)校验和，Android没有java.util.zip.CRC32C，这里用slicing-by-8查表法实现，每次处理8个字节。
+ * 校验和的值可以保存下来以后继续累加，与zlib的crc32(crc, buf, len)用法相同
+ */
+final class Crc32c {
+    private static final int POLY = 0x82F63B78;  // 反射形式的Castagnoli多项式
+    private static final int[][] TABLE = new int[8][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLE[0][n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            for (int k = 1; k < 8; k++) {
+                TABLE[k][n] = (TABLE[k - 1][n] >>> 8) ^ TABLE[0][TABLE[k - 1][n] & 0xFF];
+            }
+        }
+    }
+
+    private Crc32c() {
+    }
+
+    /**
+     * 在已有的校验和上累加数组中的数据
+     *
+     * @param crc    已有的校验和，空数据的校验和为0
+     * @param array  数据
+     * @param offset 开始位置
+     * @param length 长度
+     * @return 新的校验和
+     */
+    static int update(int crc, byte[] array, int offset, int length) {
+        int[] t0 = TABLE[0], t1 = TABLE[1], t2 = TABLE[2], t3 = TABLE[3];
+        int[] t4 = TABLE[4], t5 = TABLE[5], t6 = TABLE[6], t7 = TABLE[7];
+        crc = ~crc;
+        while (length >= 8) {
+            int lo = crc ^ ((array[offset] & 0xFF) | (array[offset + 1] & 0xFF) << 8
+                    | (array[offset + 2] & 0xFF) << 16 | (array[offset + 3] & 0xFF) << 24);
+            int hi = (array[offset + 4] & 0xFF) | (array[offset + 5] & 0xFF) << 8
+                    | (array[offset + 6] & 0xFF) << 16 | (array[offset + 7] & 0xFF) << 24;
+            crc = t7[lo & 0xFF] ^ t6[(lo >>> 8) & 0xFF] ^ t5[(lo >>> 16) & 0xFF] ^ t4[lo >>> 24]
+                    ^ t3[hi & 0xFF] ^ t2[(hi >>> 8) & 0xFF] ^ t1[(hi >>> 16) & 0xFF] ^ t0[hi >>> 24];
+            offset += 8;
+            length -= 8;
+        }
+        while (length-- > 0) {
+            crc = (crc >>> 8) ^ t0[(crc ^ array[offset++]) & 0xFF];
+        }
+        return ~crc;
+    }
+
+    /**
+     * 在已有的校验和上累加缓冲区中的数据，按绝对位置读取，不改变缓冲区的position
+     *
+     * @param crc    已有的校验和，空数据的校验和为0
+     * @param buffer 数据缓冲区，可以是直接缓冲区
+     * @param offset 开始位置
+     * @param length 长度
+     * @return 新的校验和
+     */
+    static int update(int crc, ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            return update(crc, buffer.array(), buffer.arrayOffset() + offset, length);
+        }
+        int[] t0 = TABLE[0];
+        crc = ~crc;
+        for (int i = offset, end = offset + length; i < end; i++) {   // 直接缓冲区逐字节读取，避免复制到数组
+            crc = (crc >>> 8) ^ t0[(crc ^ buffer.get(i)) & 0xFF];
+        }
+        return ~crc;
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.netspeedtest.droidown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 只测速时使用的存储后端，数据直接丢弃，不在磁盘上留下任何文件
+ */
+public final class DiscardStorage implements DownloadStorage {
+
+    @Override
+    public void open(File saveFile, long fileSize) {
+    }
+
+    @Override
+    public void write(ByteBuffer src, long position) {
+        src.position(src.limit());
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        throw new IOException("Discarded data can not be read back");
+    }
+
+    @Override
+    public void force() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return false;
+    }
+}
@@ -1,18 +1,29 @@
 package com.example.netspeedtest.droidown;
 
+import android.util.Base64;
 import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -22,17 +33,27 @@ import java.util.regex.Pattern;
 public final class DownloadExecutor {
     private static final String TAG = "DownloadExecutor";   // 设置LogCat日志标签
     private static final String SUFFIX = ".droidown.adl";   // 下载未完成前为文件添加的后缀名
+    private static final long INITIAL_STREAM_TTL = 1000 * 5;    // 初始化请求的响应流最多保留的时间，毫秒
+    private static final long VERIFY_CHUNK = 1024 * 1024 * 4;   // 下载过程中监视循环每次醒来最多读回校验的长度
+    private static final int REFETCH_LIMIT = 8; // 一次下载中重新下载校验失败分段的最多次数
+    private static final long MIRROR_CHECK_TIMEOUT = 1000 * 5;  // 初始化时等待镜像校验的最长时间，毫秒
     private DownloadLogger logger;  // 下载进度信息记录器
     private DownloadListener listener;  // 下载进度监听器
-    private DownloadThread[] threads;   // 根据线程数设置下载线程池
-    private Map<Integer, Long> threadData;  // 缓存各线程下载的长度
+    private DownloadStorage storage = new FileChannelStorage();  // 下载数据的存储后端
+    private DownloadWorker[] threads;   // 根据线程数设置下载作业
+    private DownloadWorkerPool workerPool = DownloadWorkerPool.getDefault();   // 运行下载作业的共享线程池
+    private SegmentScheduler scheduler; // 分段调度器，记录各分段的下载进度
     private URL downloadUrl;    // 下载路径
+    private final List<URL> mirrorUrls = new ArrayList<URL>();  // 主下载地址之外的镜像地址
+    private MirrorBalancer mirrors; // 初始化时通过校验的镜像，包括主下载地址
     private File saveDir;   // 下载保存到的文件夹
     private File saveFile;  // 数据保存到的本地文件
     private File logFile;   // 与下载文件对应的配置文件
     private boolean initialized;    // 初始化下载标志
     private boolean downloading;    // 下载进行中标志
-    private boolean paused; // 停止下载标志
+    private volatile boolean paused; // 停止下载标志，下载线程每次读取都会检查
+    private volatile boolean rangeServed;   // 服务器声明过支持Range或者返回过206，之后偶尔忽略Range返回200的是中间的代理，可以重试
+    private volatile StopReason stopReason; // 下载停止的原因
     private boolean finished;   // 完成下载标志
     private boolean failed; // 下载失败标志
     private long remoteLastModified;    // 远程文件最后一次被修改的时间，断点续传时有用
@@ -40,11 +61,44 @@ public final class DownloadExecutor {
     private long spentTime; // 下载过程使用了的时间
 	private long nowSpentTime;
     private long fileSize;  // 原始文件长度
-    private long downloadedSize;    // 已下载文件长度
-    private long block; // 每条线程下载的长度
-    private long delay = 1000 * 5;  // 下载不正常时重新连接的等待时间
-    private int retryLimit = 35;    // 下载不正常时重新连接的最大次数
-    private int cacheSize = 1024 * 5;   // 下载缓冲区大小
+    private ProgressCounter progress;   // 各下载线程的下载长度计数器，汇总得到已下载文件长度
+    private final ThroughputSampler sampler = new ThroughputSampler(1024);  // 下载速度采样器
+    private final SteadyStateDetector detector = new SteadyStateDetector(); // 稳态检测器
+    private final ProgressSnapshot snapshot = new ProgressSnapshot();   // 最近一次通知的进度，复制给使用方时不创建新对象
+    private volatile DownloadMetrics metrics;   // 最近一次下载的统计数据
+    private ConnectionTuner tuner;  // 连接数调节器，为null时使用固定的连接数
+    private LatencyProbe latencyProbe;  // 延迟探测器，为null时不测量延迟
+    private boolean multiplexed;    // 是否使用单线程多路复用的下载引擎
+    private SelectorEngine engine;  // 多路复用下载引擎，使用线程引擎时为null
+    private InputStream initialStream;  // 初始化请求的响应流，交给第一个下载开头分段的线程继续读取
+    private long initialTime;   // 初始化请求返回的时间
+    private final AtomicLong requestCount = new AtomicLong();   // 下载线程发出的请求数
+    private final AtomicLong firstByteTime = new AtomicLong(); // 下载线程各请求首字节时间的总和，纳秒
+    private volatile int connectionCount;   // 当前使用的连接数，id大于该值的下载线程会自行退出
+    private volatile boolean stopping;  // 下载循环已经结束，所有下载线程都要退出
+    private volatile int connectionLimit;   // 外部限制的最大连接数，0为不限制
+    private volatile RateLimiter rateLimiter;   // 该下载器的限速器，为null时不限速
+    private long timeLimit; // 单次下载的最长时间，0为不限制
+    private long byteLimit; // 单次下载的最大长度，0为不限制
+    private long block = 1024 * 1024;   // 初始切分时每个分段的长度
+    private RetryPolicy retryPolicy = new RetryPolicy();  // 连接出错时的重试策略
+    private volatile RuntimeException failure;  // 重试策略放弃下载时记录的错误，由监视循环抛出
+    private final Object monitor = new Object();    // 监视循环在上面等待分段完成、出错或暂停的事件
+    private boolean signaled;   // 是否有还没有被监视循环处理的事件，由monitor保护
+    private long progressInterval = 900;    // 通知下载进度的间隔，毫秒
+    private int cacheSize = BufferPool.MIN_ADAPTIVE_SIZE;   // 下载缓冲区的初始大小，之后按每条连接的速度在它和1MB之间调整
+    private BufferPool bufferPool = BufferPool.getDefault();    // 借出读取缓冲区的共享池
+    private long checkpointInterval = 1000 * 3; // 两次检查点之间的最长时间
+    private long checkpointBytes = 1024 * 1024 * 8; // 两次检查点之间最多下载的长度
+    private long checkpointTime;    // 上一次检查点的时间
+    private long checkpointedSize;  // 上一次检查点时已下载的长度
+    private boolean verifying = true;   // 是否为分段计算校验和并校验整个文件的摘要
+    private boolean readingBack;    // 是否在下载过程中把完成的分段读回与校验和比较
+    private String expectedAlgorithm;   // 期望摘要的算法，MD5或者SHA-256
+    private byte[] expectedDigest;  // 期望的整个文件的摘要，为null时只校验分段
+    private boolean digestProvided; // 期望的摘要是否由调用者提供，调用者提供的摘要优先于响应头
+    private IntegrityVerifier verifier; // 本次下载使用的完整性校验器，不校验时为null
+    private byte[] digest;  // 下载完成时计算出的整个文件的摘要
 
     /**
      * 获取文件的下载路径
@@ -74,25 +128,289 @@ public final class DownloadExecutor {
     }
 
     /**
-     * 获取下载线程出错时重新连接的等待时间
+     * 获取初始切分时每个分段的长度
+     *
+     * @return 字节数
+     */
+    public long getSegmentSize() {
+        return block;
+    }
+
+    /**
+     * 设置初始切分时每个分段的长度，需要在下载初始化之前设置。分段越小调度越灵活，但重新发起请求的次数越多
+     *
+     * @param segmentSize 字节数
+     */
+    public void setSegmentSize(long segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("the segment size must be positive");
+        }
+        this.block = segmentSize;
+    }
+
+    /**
+     * 获取当前分段的数量，空闲线程拆分分段后数量会增加，本方法应该在下载初始化后才调用
+     *
+     * @return 分段数
+     */
+    public int getSegmentCount() {
+        return scheduler != null ? scheduler.getSegmentCount() : 0;
+    }
+
+    /**
+     * 开启连接数自动调节。下载从min条连接开始，速度稳定后每次增加一条连接，只要增加后的速度增益不低于gain就继续增加，
+     * 否则撤掉最后增加的那条连接并保持当前连接数，需要在下载开始之前设置
+     *
+     * @param min  开始时的连接数
+     * @param max  允许的最大连接数
+     * @param gain 每增加一条连接至少带来的速度增益比例，例如0.1表示10%
+     */
+    public void setAutoConnections(int min, int max, double gain) {
+        if (isDownloading()) {
+            throw new IllegalStateException("can't change the connections while downloading");
+        }
+        this.tuner = new ConnectionTuner(min, max, gain, 2000);
+        if (max > this.threads.length) {    // 按最大连接数扩充下载线程池和计数槽
+            long downloaded = getDownloadedSize();
+            this.threads = new DownloadWorker[max];
+            this.progress = new ProgressCounter(max);
+            HttpConnector.ensurePoolSize(max);
+            this.progress.reset(downloaded);
+            this.logger.setThreadSize(max);
+        }
+    }
+
+    /**
+     * 判断是否开启了连接数自动调节
+     *
+     * @return 开启了为true，否则为false
+     */
+    public boolean isAutoConnections() {
+        return tuner != null;
+    }
+
+    /**
+     * 获取当前使用的连接数，开启自动调节时为调节后选定的连接数
+     *
+     * @return 连接数
+     */
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * 获取外部限制的最大连接数
+     *
+     * @return 连接数，0为不限制
+     */
+    public int getConnectionLimit() {
+        return connectionLimit;
+    }
+
+    /**
+     * 限制最多使用的连接数，固定连接数和自动调节的连接数都不会超过该值，下载进行中设置时在下一次检查线程状态时生效
+     *
+     * @param limit 连接数，0为不限制
+     */
+    public void setConnectionLimit(int limit) {
+        this.connectionLimit = Math.max(0, limit);
+    }
+
+    /**
+     * 获取该下载器的限速
+     *
+     * @return 字节/秒，0为不限速
+     */
+    public long getRateLimit() {
+        RateLimiter limiter = rateLimiter;
+        return limiter != null ? limiter.getRate() : 0;
+    }
+
+    /**
+     * 设置该下载器的限速，可以在下载进行中修改。所有下载器还共享RateLimiter.global()的全局限速
+     *
+     * @param bytesPerSecond 速度，字节/秒，0为不限速
+     * @param burst          允许突发的字节数，0时取1秒的量
+     */
+    public void setRateLimit(long bytesPerSecond, long burst) {
+        if (bytesPerSecond <= 0) {
+            this.rateLimiter = null;    // 不限速时读循环里连锁都不用加
+        } else if (this.rateLimiter != null) {
+            this.rateLimiter.setRate(bytesPerSecond, burst);
+        } else {
+            this.rateLimiter = new RateLimiter(bytesPerSecond, burst);
+        }
+    }
+
+    /**
+     * 按读到的字节数扣除该下载器和全局限速器的令牌
+     *
+     * @param bytes 读到的字节数
+     * @return 需要等待的时间，纳秒，不需要等待时为0
+     */
+    long reserveBandwidth(int bytes) {
+        long wait = RateLimiter.global().reserve(bytes);
+        RateLimiter limiter = this.rateLimiter;
+        if (limiter != null) {
+            wait = Math.max(wait, limiter.reserve(bytes));
+        }
+        return wait;
+    }
+
+    /**
+     * 获取连接数自动调节过程中每一步的连接数，与getConnectionCurveSpeeds()一一对应
+     *
+     * @return 连接数数组，没有开启自动调节时为空数组
+     */
+    public int[] getConnectionCurve() {
+        return tuner != null ? tuner.getConnections() : new int[0];
+    }
+
+    /**
+     * 获取连接数自动调节过程中每一步测得的速度，与getConnectionCurve()一一对应
+     *
+     * @return 速度数组，字节/秒
+     */
+    public double[] getConnectionCurveSpeeds() {
+        return tuner != null ? tuner.getSpeeds() : new double[0];
+    }
+
+    /**
+     * 获取运行下载作业的线程池
+     *
+     * @return 线程池
+     */
+    public DownloadWorkerPool getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * 设置运行下载作业的线程池，默认使用所有任务共享的线程池
+     *
+     * @param workerPool 线程池
+     */
+    public void setWorkerPool(DownloadWorkerPool workerPool) {
+        if (isDownloading()) {
+            throw new IllegalStateException("can't change the worker pool while downloading");
+        }
+        this.workerPool = workerPool;
+    }
+
+    /**
+     * 判断是否使用单线程多路复用的下载引擎
+     *
+     * @return 是为true，否则为false
+     */
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    /**
+     * 添加一个提供同一个文件的镜像地址，需要在下载初始化之前调用。初始化时长度或者最后修改时间与主下载地址不一致的镜像会被忽略，
+     * 下载时每个请求按各镜像的速度选择镜像，快的镜像分到更多的分段，太慢或者连续出错的镜像会被弃用
+     *
+     * @param url 镜像地址
+     */
+    public void addMirror(URL url) {
+        if (isInitialized()) {
+            throw new IllegalStateException("can't add a mirror after initialization");
+        }
+        if (!this.mirrorUrls.contains(url)) {
+            this.mirrorUrls.add(url);
+        }
+    }
+
+    /**
+     * 添加一个提供同一个文件的镜像地址，需要在下载初始化之前调用
+     *
+     * @param url 镜像地址
+     * @throws MalformedURLException
+     */
+    public void addMirror(String url) throws MalformedURLException {
+        addMirror(new URL(url));
+    }
+
+    /**
+     * 获取初始化时通过校验的镜像，第一个是主下载地址，可以查看每个镜像的速度和下载长度
+     *
+     * @return 镜像列表，初始化之前为空
+     */
+    public List<DownloadMirror> getMirrors() {
+        return this.mirrors != null ? this.mirrors.getMirrors() : Collections.<DownloadMirror>emptyList();
+    }
+
+    /**
+     * 设置是否使用单线程多路复用的下载引擎，所有连接由一个Selector驱动，不需要为每条连接开一条线程。
+     * 只支持http地址，https地址和使用镜像的下载仍然使用每条连接一条线程的引擎
+     *
+     * @param multiplexed 是否使用多路复用引擎
+     */
+    public void setMultiplexed(boolean multiplexed) {
+        if (isDownloading()) {
+            throw new IllegalStateException("can't change the engine while downloading");
+        }
+        this.multiplexed = multiplexed;
+    }
+
+    /**
+     * 获取延迟探测器
+     *
+     * @return 延迟探测器，没有设置时为null
+     */
+    public LatencyProbe getLatencyProbe() {
+        return latencyProbe;
+    }
+
+    /**
+     * 设置延迟探测器，下载开始前先测量空闲时的延迟，下载过程中在后台测量满载时的延迟
+     *
+     * @param latencyProbe 延迟探测器，为null时不测量延迟
+     */
+    public void setLatencyProbe(LatencyProbe latencyProbe) {
+        this.latencyProbe = latencyProbe;
+    }
+
+    /**
+     * 获取连接出错时的重试策略
+     *
+     * @return 重试策略
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * 设置连接出错时的重试策略
+     *
+     * @param retryPolicy 重试策略
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        if (isDownloading()) {
+            throw new IllegalStateException("can't change the retry policy while downloading");
+        }
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * 获取下载线程出错时退避的初始等待时间，第一次重试总是立即进行
      *
      * @return 毫秒
      */
     public long getDelay() {
-        return delay;
+        return retryPolicy.getBaseDelay();
     }
 
     /**
-     * 设置下载线程出错时重新连接的等待时间
+     * 设置下载线程出错时退避的初始等待时间，第一次重试总是立即进行
      *
      * @param millis 毫秒
      */
     public void setDelay(long millis) {
-        this.delay = millis;
+        retryPolicy.setBaseDelay(millis);
     }
 
     /**
-     * 获取下载线程缓冲区大小
+     * 获取下载线程缓冲区的初始大小
      *
      * @return 缓冲区大小
      */
@@ -101,7 +419,8 @@ public final class DownloadExecutor {
     }
 
     /**
-     * 设置下载线程缓冲区大小。如果当前正在下载中，会在下载暂停后生效
+     * 设置下载线程缓冲区的初始大小，也是按速度调整时的下限。缓冲区从所有下载器共享的池中借用，
+     * 每条连接下载一段时间后按实际速度换成能装下约20ms数据的缓冲区，最大1MB。如果当前正在下载中，会在下载暂停后生效
      *
      * @param cacheSize 缓冲区大小
      */
@@ -110,21 +429,189 @@ public final class DownloadExecutor {
     }
 
     /**
-     * 获得允许下载线程的最大重新连接次数
+     * 获得平均每条下载线程连续重新连接的最大次数
      *
      * @return 最大重新连接次数
      */
     public int getRetryLimit() {
-        return retryLimit;
+        return retryPolicy.getRetryLimit();
     }
 
     /**
-     * 设置允许下载线程的最大重新连接次数
+     * 设置平均每条下载线程连续重新连接的最大次数，所有线程合计的次数按线程数折算，任何一条线程下载成功都会重新计数
      *
      * @param times 要设定的值
      */
     public void setRetryLimit(int times) {
-        this.retryLimit = times;
+        retryPolicy.setRetryLimit(times);
+    }
+
+    /**
+     * 判断是否处于只测速不保存的模式
+     *
+     * @return 是为true，否则为false
+     */
+    public boolean isMeasureOnly() {
+        return !storage.isPersistent();
+    }
+
+    /**
+     * 设置只测速不保存的模式，需要在下载初始化之前设置。该模式下读到的数据直接丢弃，不预分配文件、不生成下载记录也不重命名文件，
+     * 测得的速度只反映网络而不受存储速度限制，下载无法断点续传
+     *
+     * @param measureOnly 是否只测速
+     */
+    public void setMeasureOnly(boolean measureOnly) {
+        if (measureOnly) {
+            this.storage = new DiscardStorage();
+        } else if (!this.storage.isPersistent()) {
+            this.storage = new FileChannelStorage();
+        }
+    }
+
+    /**
+     * 判断是否校验下载的数据
+     *
+     * @return 校验为true，否则为false
+     */
+    public boolean isVerifying() {
+        return verifying;
+    }
+
+    /**
+     * 设置是否校验下载的数据，默认校验，需要在下载开始之前设置。校验时下载线程为每个分段累加CRC32C校验和；
+     * 服务器在响应头中提供了摘要或者调用了setExpectedDigest时，还会按顺序计算整个文件的摘要，按顺序到达的数据直接计入，
+     * 其余的数据在下载过程中读回计入。摘要不一致时读回全部分段与校验和比较，不一致的分段单独重新下载，
+     * 全部一致说明服务器发来的内容本身是错的，下载失败。只测速时不保存数据，不进行校验
+     *
+     * @param verifying 是否校验
+     */
+    public void setVerifying(boolean verifying) {
+        this.verifying = verifying;
+    }
+
+    /**
+     * 判断是否在下载过程中读回校验分段
+     *
+     * @return 读回为true，否则为false
+     */
+    public boolean isReadingBack() {
+        return readingBack;
+    }
+
+    /**
+     * 设置是否在下载过程中把已经完成的连续分段读回与校验和比较，默认不读回，需要在下载开始之前设置，只在校验时有效。
+     * 读回可以及早发现写错位置、进度计错和磁盘上的损坏，代价是把整个文件再读一遍，整个文件的摘要也改为从读回的数据计算
+     *
+     * @param readingBack 是否读回
+     */
+    public void setReadingBack(boolean readingBack) {
+        this.readingBack = readingBack;
+    }
+
+    /**
+     * 设置期望的整个文件的摘要，优先于服务器在Content-MD5、Digest、Content-Digest响应头中提供的摘要
+     *
+     * @param algorithm 摘要算法，"MD5"或者"SHA-256"
+     * @param hex       十六进制表示的摘要，为null时使用服务器提供的摘要
+     */
+    public void setExpectedDigest(String algorithm, String hex) {
+        if (hex == null) {
+            this.digestProvided = false;
+            this.expectedAlgorithm = null;
+            this.expectedDigest = null;
+            return;
+        }
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Invalid digest " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        this.digestProvided = true;
+        this.expectedAlgorithm = algorithm.toUpperCase(Locale.US);
+        this.expectedDigest = bytes;
+    }
+
+    /**
+     * 获取下载完成时计算出的整个文件的摘要
+     *
+     * @return 十六进制表示的摘要，没有期望的摘要因而没有计算时返回null
+     */
+    public String getDigest() {
+        if (this.digest == null) return null;
+        StringBuilder hex = new StringBuilder(this.digest.length * 2);
+        for (byte b : this.digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * 获取整个文件摘要的算法
+     *
+     * @return "MD5"或者"SHA-256"，没有期望的摘要时返回null
+     */
+    public String getDigestAlgorithm() {
+        return expectedAlgorithm;
+    }
+
+    /**
+     * 获取下载数据的存储后端
+     *
+     * @return 存储后端
+     */
+    public DownloadStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * 设置下载数据的存储后端，需要在下载初始化之前设置，默认为共享FileChannel按位置写入的FileChannelStorage
+     *
+     * @param storage 存储后端
+     */
+    public void setStorage(DownloadStorage storage) {
+        if (storage == null) {
+            throw new IllegalArgumentException("the storage can't be null");
+        }
+        this.storage = storage;
+    }
+
+    /**
+     * 获取两次检查点之间的最长时间，检查点会把数据同步到存储设备并写入下载记录
+     *
+     * @return 毫秒
+     */
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * 设置两次检查点之间的最长时间，间隔越短崩溃后需要重新下载的数据越少，但同步存储设备的次数越多
+     *
+     * @param millis 毫秒
+     */
+    public void setCheckpointInterval(long millis) {
+        this.checkpointInterval = millis;
+    }
+
+    /**
+     * 获取两次检查点之间最多下载的长度
+     *
+     * @return 字节数
+     */
+    public long getCheckpointBytes() {
+        return checkpointBytes;
+    }
+
+    /**
+     * 设置两次检查点之间最多下载的长度，达到时间或长度其中之一就会进行检查点
+     *
+     * @param bytes 字节数
+     */
+    public void setCheckpointBytes(long bytes) {
+        this.checkpointBytes = bytes;
     }
 
     /**
@@ -144,46 +631,329 @@ public final class DownloadExecutor {
 		return nowSpentTime;
 	}
     /**
-     * 获取下载的创建日期时间，本方法应该在下载初始化后才调用
+     * 获取下载速度的采样间隔
+     *
+     * @return 毫秒
+     */
+    public long getSampleInterval() {
+        return sampler.getInterval();
+    }
+
+    /**
+     * 设置下载速度的采样间隔，默认100毫秒，采样器最多保留最近1024个采样用于计算分位数
+     *
+     * @param millis 毫秒
+     */
+    public void setSampleInterval(long millis) {
+        sampler.setInterval(millis);
+    }
+
+    /**
+     * 设置计算瞬时速度的滑动窗口长度，同时也是平滑速度的时间常数，默认1000毫秒
+     *
+     * @param millis 毫秒
+     */
+    public void setSampleWindow(long millis) {
+        sampler.setWindow(millis);
+    }
+
+    /**
+     * 获取当前的瞬时下载速度，即最近一个滑动窗口内的平均速度
+     *
+     * @return 字节/秒
+     */
+    public double getCurrentSpeed() {
+        return sampler.getWindowRate();
+    }
+
+    /**
+     * 获取指数加权平滑后的下载速度，比瞬时速度波动小
+     *
+     * @return 字节/秒
+     */
+    public double getSmoothedSpeed() {
+        return sampler.getEwmaRate();
+    }
+
+    /**
+     * 获取本次下载开始以来的平均速度
+     *
+     * @return 字节/秒
+     */
+    public double getAverageSpeed() {
+        return sampler.getAverageRate();
+    }
+
+    /**
+     * 获取本次下载中瞬时速度的峰值
+     *
+     * @return 字节/秒
+     */
+    public double getPeakSpeed() {
+        return sampler.getPeakRate();
+    }
+
+    /**
+     * 获取各采样间隔速度的分位数，例如10、50、90分别对应p10、p50、p90
+     *
+     * @param percentile 0到100之间的百分位
+     * @return 字节/秒
+     */
+    public double getSpeedPercentile(double percentile) {
+        return sampler.getPercentileRate(percentile);
+    }
+
+    /**
+     * 获取速度收敛的判定范围
+     *
+     * @return 置信区间相对半宽，0为不检测收敛
+     */
+    public double getConvergenceBand() {
+        return detector.getBand();
+    }
+
+    /**
+     * 设置速度收敛的判定范围。爬升阶段结束后，稳态速度均值的95%置信区间相对半宽不超过该值时自动停止下载，
+     * 例如0.05表示速度已经稳定在±5%之内。默认为0，即不因收敛而停止
+     *
+     * @param band 置信区间相对半宽
+     */
+    public void setConvergenceBand(double band) {
+        detector.setBand(band);
+    }
+
+    /**
+     * 获取单次下载的最长时间
+     *
+     * @return 毫秒，0为不限制
+     */
+    public long getTimeLimit() {
+        return timeLimit;
+    }
+
+    /**
+     * 设置单次下载的最长时间，从调用download()开始计算，包括初始化的时间，达到后自动停止下载
+     *
+     * @param millis 毫秒，0为不限制
+     */
+    public void setTimeLimit(long millis) {
+        this.timeLimit = millis;
+    }
+
+    /**
+     * 获取单次下载的最大长度
+     *
+     * @return 字节数，0为不限制
+     */
+    public long getByteLimit() {
+        return byteLimit;
+    }
+
+    /**
+     * 设置单次下载的最大长度，达到后自动停止下载，用于控制测速消耗的流量
+     *
+     * @param bytes 字节数，0为不限制
+     */
+    public void setByteLimit(long bytes) {
+        this.byteLimit = bytes;
+    }
+
+    /**
+     * 获取排除了爬升阶段之后的稳态速度，爬升阶段尚未结束时返回本次下载的平均速度
+     *
+     * @return 字节/秒
+     */
+    public double getSteadySpeed() {
+        return detector.isRampFinished() ? detector.getSteadyRate() : sampler.getAverageRate();
+    }
+
+    /**
+     * 判断稳态速度是否已经收敛
+     *
+     * @return 收敛了为true，否则为false
+     */
+    public boolean isConverged() {
+        return detector.isConverged();
+    }
+
+    /**
+     * 获取下载停止的原因
+     *
+     * @return 停止原因，下载进行中或者正常完成时为null
+     */
+    public StopReason getStopReason() {
+        return stopReason;
+    }
+
+    /**
+     * 获取下载的创建日期时间，本方法应该在下载初始化后才调用
+     *
+     * @return 毫秒数的型式
+     */
+    public long getCreateDateTime() {
+        return createDateTime;
+    }
+
+    /**
+     * 获取下载到本地的文件名称，本方法应该在下载初始化后才调用
+     *
+     * @return 文件名称
+     */
+    public String getFileName() {
+        return saveFile.getName().replace(DownloadExecutor.SUFFIX, "");
+    }
+
+    /**
+     * 获取下载文件大小，本方法应该在下载初始化后才调用
+     *
+     * @return 文件的字节数
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * 获取当前已经下载到本地的文件大小，本方法应该在下载初始化后才调用
+     *
+     * @return 已经下载的文件大小
+     */
+    public long getDownloadedSize() {
+        return progress.sum();  // 读取时才汇总各线程的计数
+    }
+
+    /**
+     * 把最近一次通知的进度复制到使用方持有的快照中，快照可以反复使用，适合在界面线程中定时读取
+     *
+     * @param target 使用方持有的快照
+     * @return target
+     */
+    public ProgressSnapshot readProgress(ProgressSnapshot target) {
+        return snapshot.copyTo(target);
+    }
+
+    /**
+     * 更新进度快照，由监视循环在通知进度前调用
+     *
+     * @param downloadedSize 已下载的数据长度
+     * @param elapsedMillis  本次下载已经花费的时间
+     */
+    void publishProgress(long downloadedSize, long elapsedMillis) {
+        snapshot.update(downloadedSize, fileSize, elapsedMillis, sampler.getWindowRate(), sampler.getEwmaRate(),
+                sampler.getAverageRate(), connectionCount);
+    }
+
+    /**
+     * 获取最近一次下载的统计数据，下载进行中可以随时查询，结束后可以用DownloadMetrics.toJson()导出
+     *
+     * @return 统计数据，还没有开始下载时各项都为0
+     */
+    public DownloadMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 记录一个阶段的耗时
+     *
+     * @param name  阶段的名字
+     * @param begin 阶段开始的时间，纳秒
+     * @return 当前时间，作为下一个阶段开始的时间
+     */
+    private long endPhase(String name, long begin) {
+        long now = System.nanoTime();
+        this.metrics.addPhase(name, now - begin);
+        return now;
+    }
+
+    /**
+     * 结束统计，在通知完成、暂停或者失败之前调用，回调中就能导出完整的统计数据
+     *
+     * @param metrics 本次下载的统计数据
+     * @param cpuTime 上次累计时监视循环所在线程的CPU时间
+     */
+    private void finishMetrics(DownloadMetrics metrics, long cpuTime) {
+        metrics.addCpuTime(DownloadMetrics.threadCpuTime() - cpuTime);
+        metrics.finish();
+    }
+
+    /**
+     * 退出下载
+     */
+    public void pause() {
+        stop(StopReason.PAUSED);
+    }
+
+    /**
+     * 停止下载并记录原因，只记录第一次停止的原因
      *
-     * @return 毫秒数的型式
+     * @param reason 停止原因
      */
-    public long getCreateDateTime() {
-        return createDateTime;
+    private void stop(StopReason reason) {
+        if (!this.paused) {
+            this.stopReason = reason;
+        }
+        this.paused = true; // 设置退出标志为true
+        wake();
     }
 
     /**
-     * 获取下载到本地的文件名称，本方法应该在下载初始化后才调用
+     * 唤醒监视循环，分段完成、连接出错或者暂停时调用
+     */
+    void wake() {
+        synchronized (monitor) {
+            signaled = true;
+            monitor.notifyAll();
+        }
+    }
+
+    /**
+     * 等待事件或者超时
      *
-     * @return 文件名称
+     * @param millis 最长等待时间，毫秒
+     * @throws InterruptedException
      */
-    public String getFileName() {
-        return saveFile.getName().replace(DownloadExecutor.SUFFIX, "");
+    private void await(long millis) throws InterruptedException {
+        long deadline = System.nanoTime() / 1000000 + millis;
+        synchronized (monitor) {
+            long left = millis;
+            while (!signaled && left > 0) {
+                monitor.wait(left);
+                left = deadline - System.nanoTime() / 1000000;
+            }
+            signaled = false;
+        }
     }
 
     /**
-     * 获取下载文件大小，本方法应该在下载初始化后才调用
+     * 获取通知下载进度的间隔
      *
-     * @return 文件的字节数
+     * @return 毫秒
      */
-    public long getFileSize() {
-        return fileSize;
+    public long getProgressInterval() {
+        return progressInterval;
     }
 
     /**
-     * 获取当前已经下载到本地的文件大小，本方法应该在下载初始化后才调用
+     * 设置通知下载进度的间隔，例如显示仪表盘时设为16到100毫秒，在后台时设为5000毫秒，可以在下载进行中修改。
+     * 下载完成、暂停和出错不受该间隔影响，会在发生时立即处理
      *
-     * @return 已经下载的文件大小
+     * @param millis 毫秒
      */
-    public long getDownloadedSize() {
-        return downloadedSize;
+    public void setProgressInterval(long millis) {
+        this.progressInterval = Math.max(1, millis);
+        wake(); // 让新的间隔立即生效
     }
 
     /**
-     * 退出下载
+     * 判断服务器是否声明过支持Range或者已经返回过206响应，之后忽略Range的响应按临时错误重试，而不是认为服务器不支持Range
+     *
+     * @return 是为true，否则为false
      */
-    public void pause() {
-        this.paused = true; // 设置退出标志为true
+    boolean isRangeServed() {
+        return rangeServed;
+    }
+
+    void setRangeServed() {
+        this.rangeServed = true;
     }
 
     /**
@@ -205,7 +975,7 @@ public final class DownloadExecutor {
     }
 
     /**
-     * 初始化一个下载器，默认的下载线程数量为1条，缓存空间为1024 * 5字节，下载遇到问题时会重新连接35次，每次等待时间1000 * 5毫秒
+     * 初始化一个下载器，默认的下载线程数量为1条，缓存空间从64KB开始按速度调整，下载遇到问题时按RetryPolicy重新连接：第一次立即重试，之后从500毫秒开始指数退避，最长等待30秒，平均每条连接连续失败35次时放弃
      *
      * @param downloadUrl 下载路径
      * @param saveDir     文件保存目录
@@ -217,7 +987,7 @@ public final class DownloadExecutor {
     }
 
     /**
-     * 初始化一个下载器，默认的下载线程数量为1条，缓存空间为1024 * 5字节，下载遇到问题时会重新连接35次，每次等待时间1000 * 5毫秒
+     * 初始化一个下载器，默认的下载线程数量为1条，缓存空间从64KB开始按速度调整，下载遇到问题时按RetryPolicy重新连接：第一次立即重试，之后从500毫秒开始指数退避，最长等待30秒，平均每条连接连续失败35次时放弃
      *
      * @param downloadUrl 下载路径
      * @param saveDir     文件保存目录
@@ -229,15 +999,14 @@ public final class DownloadExecutor {
             throw new IllegalArgumentException("the directory to save the file, which can't be null");
         }
         this.saveDir = saveDir;
-        this.threads = new DownloadThread[(threadSize != null && threadSize > 0 ? threadSize : 1)]; // 根据下载的线程数创建下载线程池
-        this.threadData = new ConcurrentHashMap<Integer, Long>();
-        for (int i = 0; i < this.threads.length; i++) { // 遍历线程池
-            this.threadData.put(i + 1, 0L);    // 初始化每条线程已经下载的数据长度为0
-        }
+        this.threads = new DownloadWorker[(threadSize != null && threadSize > 0 ? threadSize : 1)]; // 根据下载的线程数创建下载线程池
+        this.progress = new ProgressCounter(this.threads.length);
+        this.metrics = new DownloadMetrics(this.threads.length);
+        HttpConnector.ensurePoolSize(this.threads.length);  // 让每条连接用完后都能留在连接池中
         this.remoteLastModified = 520 * 1314;   // 避免赋值-1、0、1这类即可
 
         this.logger = new DownloadLogger();
-        this.logger.setThreadData(this.threadData);
+        this.logger.setThreadSize(this.threads.length);
     }
 
     /**
@@ -261,33 +1030,34 @@ public final class DownloadExecutor {
         this.logFile = downloadLog;
         this.saveDir = downloadLog.getAbsoluteFile().getParentFile();
         this.saveFile = new File(saveDir, logFile.getName().replace(DownloadLogger.SUFFIX, DownloadExecutor.SUFFIX));    // 下载文件应该和记录文件在同一目录
+        this.downloadUrl = logger.getDownloadUrl();
+        this.mirrorUrls.addAll(logger.getMirrors());
+        this.fileSize = logger.getFileSize();
+        this.block = logger.getBlock();
+        this.threads = new DownloadWorker[logger.getThreadSize() > 0 ? logger.getThreadSize() : 1];
+        this.progress = new ProgressCounter(this.threads.length);
+        this.metrics = new DownloadMetrics(this.threads.length);
+        HttpConnector.ensurePoolSize(this.threads.length);
         if (saveFile.exists()) {
             this.createDateTime = logger.getCreateDateTime();
             this.spentTime = logger.getSpentTime();
-            this.downloadedSize = logger.getDownloadedSize();
-            this.threadData = logger.getThreadData();
+            this.scheduler = new SegmentScheduler(logger.getSegments());
+            this.progress.reset(scheduler.getDownloadedSize());    // 以分段记录为准，保证与分段进度一致
         } else {    // 如果同目录下只有下载记录而没有下载文件，只好重新下载
             this.createDateTime = System.currentTimeMillis();
             this.spentTime = 0;
-            this.downloadedSize = 0;
-            this.threadData = new ConcurrentHashMap<Integer, Long>();
-            for (int i = 0; i < logger.getThreadData().size(); i++) { // 遍历线程池
-                this.threadData.put(i + 1, 0L);    // 初始化每条线程已经下载的数据长度为0
-            }
-            this.logger.setThreadData(this.threadData);
-            this.logger.setDownloadedSize(this.downloadedSize);
+            this.progress.reset(0);
+            this.scheduler = new SegmentScheduler(this.fileSize, this.block);    // 重新切分所有分段
+            this.logger.setSegments(scheduler.snapshot());
+            this.logger.setDownloadedSize(0);
             this.logger.setSpentTime(this.spentTime);
             this.logger.setCreateDateTime(this.createDateTime);
 
             this.logger.write(this.logFile);    // 更新下载记录
         }
-        this.threads = new DownloadThread[this.threadData.size()];
-        this.downloadUrl = logger.getDownloadUrl();
-        this.fileSize = logger.getFileSize();
-        this.block = logger.getBlock();
 
         this.remoteLastModified = logger.getRemoteLastModified();
-        print("已经下载的长度" + this.downloadedSize + "个字节"); // 打印出已经下载的数据总和
+        print("已经下载的长度" + getDownloadedSize() + "个字节"); // 打印出已经下载的数据总和
     }
 
     /**
@@ -305,21 +1075,19 @@ public final class DownloadExecutor {
     public void initialize() {
         if (isInitialized()) return;    // 防止二次初始化，提高效率
         try {
-            HttpURLConnection conn = (HttpURLConnection) downloadUrl.openConnection();  // 建立一个远程连接句柄，此时尚未真正连接
-            conn.setConnectTimeout(5 * 1000);   // 设置连接超时时间为5秒
-            conn.setRequestMethod("GET");   // 设置请求方式为GET
-            conn.setRequestProperty("Accept", "image/gif, image/jpeg, image/pjpeg, image/pjpeg, application/x-shockwave-flash, application/xaml+xml, application/vnd.ms-xpsdocument, application/x-ms-xbap, application/x-ms-application, application/vnd.ms-excel, application/vnd.ms-powerpoint, application/msword, */*");    //设置客户端可以接受的媒体类型
-            conn.setRequestProperty("Accept-Language", "zh-CN");    // 设置客户端语言
-            conn.setRequestProperty("Referer", downloadUrl.toString());    // 设置请求的来源页面，便于服务端进行来源统计
-            conn.setRequestProperty("Charset", "UTF-8");    // 设置客户端编码
-            conn.setRequestProperty("User-Agent", "Mozilla/4.0 (compatible; MSIE 8.0; Windows NT 5.2; Trident/4.0; .NET CLR 1.1.4322; .NET CLR 2.0.50727; .NET CLR 3.0.04506.30; .NET CLR 3.0.4506.2152; .NET CLR 3.5.30729)");    //设置用户代理
-            conn.setRequestProperty("Connection", "Keep-Alive");    // 设置Connection的方式
+            HttpURLConnection conn = HttpConnector.open(downloadUrl, null);  // 建立一个远程连接句柄，此时尚未真正连接
             conn.connect(); // 和远程资源建立真正的连接，但尚无返回的数据流
             printResponseHeader(conn);  // 服务器响应返回的HTTP头字段集合
             if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {  // 此处的请求会打开返回流并获取返回的状态码，用于检查是否请求成功，当返回码为200时执行下面的代码
+                if ("bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"))) {
+                    setRangeServed();   // 服务器声明了支持Range
+                }
+                readExpectedDigest(conn);
                 // 根据URL指向服务器上同名资源与本地已下载文件对比判断是否适用断点续传
                 long lastModified = conn.getLastModified();
                 if (lastModified == this.remoteLastModified) {
+                    conn.disconnect();  // 继续之前的下载，不需要从头开始的数据
+                    checkMirrors();
                     this.initialized = true;
                     if (this.listener != null) {
                         this.listener.onInitialization(this, null);    // 通知下载初始化完成
@@ -339,35 +1107,43 @@ public final class DownloadExecutor {
                 }
                 this.logger.setFileSize(this.fileSize);
 
-                this.downloadedSize = 0;    // 设置已经下载的长度为0
-                this.logger.setDownloadedSize(this.downloadedSize);
+                this.progress.reset(0);    // 设置已经下载的长度为0
+                this.logger.setDownloadedSize(0);
 
                 String filename = getFileName(conn);    // 获取文件名称
                 this.saveFile = new File(saveDir, filename + DownloadExecutor.SUFFIX);    // 根据文件保存目录和文件名构建保存文件
                 this.logFile = new File(saveDir, filename + DownloadLogger.SUFFIX);
 
                 // 对downloadUrl的重新赋值需要在getFileName(conn)之后
-                this.downloadUrl = conn.getURL();   // 获取最终的URL以保证将要运行的DownloadThread目标一致
+                this.downloadUrl = conn.getURL();   // 获取最终的URL以保证将要运行的DownloadWorker目标一致
                 this.logger.setDownloadUrl(this.downloadUrl);
 
-                this.block = (this.fileSize % this.threads.length) == 0 ? this.fileSize / this.threads.length : this.fileSize / this.threads.length + 1;    // 计算每条线程下载的数据长度
+                this.scheduler = new SegmentScheduler(this.fileSize, this.block);    // 把文件切分成分段，由空闲的线程按需领取
                 this.logger.setBlock(this.block);
+                this.logger.setSegments(scheduler.snapshot());
 
                 this.spentTime = 0;
                 this.logger.setSpentTime(this.spentTime);
                 this.createDateTime = System.currentTimeMillis();
                 this.logger.setCreateDateTime(this.createDateTime);
+                this.logger.setMirrors(new ArrayList<URL>(this.mirrorUrls));
+                checkMirrors();
 
-                if (!saveDir.exists() && saveDir.mkdirs()) {    // 如果指定的文件不存在，则创建目录，此处可以创建多层目录
-                    print("'" + saveDir + "' has been created");
+                if (this.storage.isPersistent()) {    // 只测速时不需要在磁盘上留下任何文件
+                    if (!saveDir.exists() && saveDir.mkdirs()) {    // 如果指定的文件不存在，则创建目录，此处可以创建多层目录
+                        print("'" + saveDir + "' has been created");
+                    }
+                    this.logger.write(this.logFile);
                 }
-                this.logger.write(this.logFile);
 
+                this.initialStream = conn.getInputStream();   // 不丢弃已经开始传输的响应体，由下载开头分段的线程接着读取
+                this.initialTime = System.nanoTime() / 1000000;
                 this.initialized = true;
                 if (this.listener != null) {
                     this.listener.onInitialization(this, null);    // 通知下载初始化完成
                 }
             } else {
+                HttpConnector.discardError(conn, new byte[1024]);
                 Log.w(TAG, "服务器响应错误:" + conn.getResponseCode() + conn.getResponseMessage()); // 打印错误
                 throw new RuntimeException("Server response error ");   // 抛出运行时服务器返回异常
             }
@@ -389,12 +1165,12 @@ public final class DownloadExecutor {
         for (int i = 0; ; i++) {    // 无限循环遍历
             String mine = conn.getHeaderField(i);   // 从返回的流中获取特定索引的头字段值
             if (mine == null) break;    // 如果遍历到了返回头末尾这退出循环
-            if ("content-disposition".equals(conn.getHeaderFieldKey(i).toLowerCase())) {    // 获取content-disposition返回头字段，里面可能会包含文件名
-                Matcher m = Pattern.compile(".*filename=(.*)").matcher(mine.toLowerCase()); // 使用正则表达式查询文件名
-                if (m.find()) return m.group(1);    // 如果有符合正则表达规则的字符串
+            if ("content-disposition".equalsIgnoreCase(conn.getHeaderFieldKey(i))) {   // 状态行的键为null    // 获取content-disposition返回头字段，里面可能会包含文件名
+                Matcher m = Pattern.compile("filename\\s*=\\s*\"?([^\";]+)\"?", Pattern.CASE_INSENSITIVE).matcher(mine);   // 使用正则表达式查询文件名，去掉引号，保留大小写
+                if (m.find()) return m.group(1).trim(); // 如果有符合正则表达规则的字符串
             }
         }
-        String filename = this.downloadUrl.toString().substring(this.downloadUrl.toString().lastIndexOf('/') + 1);    // 从下载路径的字符串中获取文件名称
+        String filename = this.downloadUrl.getPath().substring(this.downloadUrl.getPath().lastIndexOf('/') + 1);  // 从下载路径中获取文件名称，不包括查询参数
         if ("".equals(filename.trim())) {   // 如果获取不到文件名称
             filename = UUID.randomUUID() + ".suffix";  // 由网卡上的标识数字(每个网卡都有唯一的标识号)以及 CPU 时钟的唯一数字生成的的一个 16 字节的二进制作为文件名
         }
@@ -417,88 +1193,531 @@ public final class DownloadExecutor {
         if (isDownloading() || isFinished()) return;    // 如果下载已经开始或已经完成，就不要再执行下载
         this.downloading = true;
         this.paused = false; // 设置退出标志为false
+        this.stopReason = null;
+        this.failure = null;
+        this.retryPolicy.reset();
+        long beginTime = System.nanoTime() / 1000000;   // 限制下载时间使用单调时钟
         this.failed = false;
         long startTime = System.currentTimeMillis();
 	    nowSpentTime =0;
+        DownloadMetrics metrics = new DownloadMetrics(this.threads.length);
+        this.metrics = metrics; // 每次下载重新统计
+        long cpuTime = DownloadMetrics.threadCpuTime(); // 监视循环所在线程的CPU时间
         try {
+            long phaseTime = System.nanoTime();
+            if (this.latencyProbe != null) {
+                takeInitialStream(-1);  // 提前调用过initialize()时，初始化请求的响应体还在传输，会抬高空闲延迟
+                this.latencyProbe.measureIdle();    // 在初始化请求和下载连接占用链路之前测量空闲延迟作为基准
+                phaseTime = endPhase("idleLatency", phaseTime);
+            }
             if (!isInitialized()) { // 如果下载没有初始化，先初始化
                 initialize();
+                phaseTime = endPhase("initialize", phaseTime);
             }
             if (this.listener != null) {
                 this.listener.onStart(this);  // 通知下载开始
             }
-            RandomAccessFile randOut = new RandomAccessFile(this.saveFile, "rwd");  // The file is opened for reading and writing. Every change of the file's content must be written synchronously to the target device.
-            if (this.fileSize > 0) {
-                randOut.setLength(this.fileSize);    // 设置文件的大小
-            }
-            randOut.close();    //关闭该文件，使设置生效
-            for (int i = 0; i < this.threads.length; i++) { // 开启线程进行下载
-                int threadId = i + 1;
-                long downloadedLength = this.threadData.get(threadId);    // 通过特定的线程ID获取该线程已经下载的数据长度
-                if (downloadedLength < this.block) { // 判断线程是否已经完成下载,否则继续下载
-                    this.threads[i] = new DownloadThread(this, threadId, downloadedLength, false);    // 初始化特定id的线程
-                    this.threads[i].setPriority(7); // 设置线程的优先级，Thread.NORM_PRIORITY = 5 Thread.MIN_PRIORITY = 1 Thread.MAX_PRIORITY = 10
-                    this.threads[i].start();    // 启动线程
-                } else {
-                    this.threads[i] = null; // 表明在线程已经完成下载任务
-                }
+            phaseTime = System.nanoTime();
+            this.storage.open(this.saveFile, this.fileSize);    // 打开存储，必要时预分配文件大小
+            this.digest = null;
+            this.verifier = this.verifying && this.storage.isPersistent()
+                    ? new IntegrityVerifier(this.storage, this.fileSize, createDigest(), Math.max(this.cacheSize, 64 * 1024), this.readingBack) : null;
+            this.checkpointTime = startTime;
+            this.checkpointedSize = getDownloadedSize();
+            this.connectionCount = 0;
+            this.stopping = false;
+            if (this.multiplexed && this.mirrors.getMirrors().size() > 1) {
+                Log.i(TAG, "multiplexed engine connects to a single server, using threads for mirrors");
+            } else if (this.multiplexed && SelectorEngine.supports(this.downloadUrl)) {
+                takeInitialStream(-1);  // 多路复用引擎自己发出请求，用不上初始化请求的响应流
+                this.engine = new SelectorEngine(this, this.downloadUrl, this.scheduler, this.storage, this.progress,
+                        this.remoteLastModified, this.cacheSize, this.verifier, this.retryPolicy, this.threads.length,
+                        this.requestCount, this.firstByteTime, metrics);
+            }
+            phaseTime = endPhase("open", phaseTime);
+            setConnectionCount(this.tuner != null ? this.tuner.reset(System.nanoTime() / 1000000, this.connectionLimit) : this.threads.length);
+            if (this.latencyProbe != null) {
+                this.latencyProbe.start();  // 下载过程中在后台测量满载延迟
             }
-            int threadFailCount = 0;
-            while (!paused && this.downloadedSize < this.fileSize) {   // 循环判断所有线程是否完成下载
-                Thread.sleep(900);
-                for (int i = 0; i < this.threads.length; i++) {
-                    if (this.threads[i] != null && !this.threads[i].isFinished() && !this.threads[i].isWorking()) { // 如果发现线程未完成下载且失败了,重新在已经下载的数据长度的基础上下载
-                        for (int j = 0; j < this.threads.length; j++) {
-                            if (this.threads[j] != null && this.threads[j].isWorking()) {
-                                break;  // 只要有1条下载线程能正常工作，就继续尝试恢复没能正常工作的下载线程
-                            }
-                            if (j + 1 == this.threads.length && ++threadFailCount > this.retryLimit) {  // 进入这里说明已经没有下载线程能正常工作且超过了重新连接的最大限制数
-                                throw new RuntimeException("No download thread functional ");
-                            }
+            long downloadedSize = getDownloadedSize();
+            long progressTime = 0;  // 下一次通知进度的时间
+            synchronized (monitor) {
+                signaled = false;
+            }
+            this.sampler.reset(System.nanoTime() / 1000000, downloadedSize);
+            this.detector.reset(System.nanoTime() / 1000000, downloadedSize);
+            long startSize = downloadedSize;
+            boolean corrupted = false;  // 下载过程中是否发现了校验失败的分段
+            while (!paused && downloadedSize < this.fileSize) {   // 循环判断所有线程是否完成下载
+                long now = System.nanoTime() / 1000000;   // 采样使用单调时钟，不受系统时间调整影响
+                await(Math.min(this.sampler.getInterval(), Math.max(0, progressTime - now)));   // 到了采样或通知进度的时间，或者有事件发生时醒来
+                now = System.nanoTime() / 1000000;
+                downloadedSize = getDownloadedSize();
+                if (this.sampler.sample(now, downloadedSize)) {
+                    this.mirrors.sample(now);
+                    metrics.checkGc();
+                    long cpu = DownloadMetrics.threadCpuTime();
+                    metrics.addCpuTime(cpu - cpuTime);
+                    cpuTime = cpu;
+                    if (this.tuner != null && !this.tuner.isFinished()) {
+                        int count = this.tuner.update(now, this.sampler.getWindowRate(), this.connectionLimit);  // 调节器只给出限制之内的连接数，比较的就是实际使用的连接数
+                        if (count != this.connectionCount) {
+                            setConnectionCount(count);
+                            this.detector.reset(now, downloadedSize);   // 连接数变化后重新检测爬升和稳态
                         }
-                        this.threads[i] = new DownloadThread(this, i + 1, this.threadData.get(i + 1), true);    //重新开辟下载线程
-                        this.threads[i].setPriority(7); // 设置下载的优先级
-                        this.threads[i].start();    // 开始下载线程
                     }
+                    this.detector.update(now, downloadedSize);
+                    if (this.detector.isConverged()) {
+                        stop(StopReason.CONVERGED); // 速度已经稳定，继续下载只会浪费时间和流量
+                    } else if (this.timeLimit > 0 && now - beginTime >= this.timeLimit) {
+                        stop(StopReason.TIME_LIMIT);
+                    } else if (this.byteLimit > 0 && downloadedSize - startSize >= this.byteLimit) {
+                        stop(StopReason.BYTE_LIMIT);
+                    }
+                }
+                RuntimeException error = this.engine != null ? this.engine.getError() : this.failure;
+                if (error != null) {
+                    throw error;    // 连接出错时由事件处理重试，这里只检查重试策略是否已经放弃
+                }
+                if (this.connectionLimit > 0 && this.connectionCount > this.connectionLimit) {
+                    setConnectionCount(this.connectionLimit);   // 等待多出的线程交还分段并退出
+                    this.detector.reset(now, downloadedSize);   // 连接数变化后重新检测爬升和稳态
+                }
+                if (this.verifier != null && !corrupted) {
+                    corrupted = this.verifier.verify(this.scheduler, VERIFY_CHUNK) != null;    // 校验失败的分段等全部分段完成后再重新下载
                 }
 	            nowSpentTime = System.currentTimeMillis() - startTime;
-                if (this.listener != null) {
-
-                    this.listener.onProgressing(this, this.downloadedSize);  // 通知目前已经下载完成的数据长度
+                if (now >= progressTime && !paused && downloadedSize < this.fileSize) {   // 完成和暂停由循环之后的回调通知
+                    progressTime = now + this.progressInterval;
+                    publishProgress(downloadedSize, nowSpentTime);
+                    if (this.listener != null) {
+                        this.listener.onProgressing(this, downloadedSize);  // 通知目前已经下载完成的数据长度
+                    }
+                }
+                if (this.storage.isPersistent() && (System.currentTimeMillis() - this.checkpointTime >= this.checkpointInterval
+                        || downloadedSize - this.checkpointedSize >= this.checkpointBytes)) {
+                    checkpoint(this.spentTime + nowSpentTime);  // 定期把数据和下载记录一起同步到存储设备
                 }
             }
-            if (this.downloadedSize == this.fileSize) {
+            if (this.engine != null) {
+                this.engine.stop(); // 多路复用引擎不在threads中，同样要先停下，校验和重新下载分段时不能再领取分段或者写入存储
+            }
+            stopWorkers();  // 等待下载作业全部退出，之后的进度不会再变化，校验和关闭存储时也不会有作业写入
+            downloadedSize = getDownloadedSize();
+            publishProgress(downloadedSize, System.currentTimeMillis() - startTime);    // 暂停和完成的回调中也能读到最终的进度
+            phaseTime = endPhase("transfer", phaseTime);
+            if (downloadedSize == this.fileSize && this.verifier != null) {
+                verifyAll();    // 重命名之前确认数据完整，无法修复时抛出异常
+                phaseTime = endPhase("verify", phaseTime);
+            }
+            if (downloadedSize == this.fileSize) {
                 this.finished = true;
-                boolean isLogFileDeleted = this.logFile.delete();
-                File newName = new File(saveDir, saveFile.getName().replace(DownloadExecutor.SUFFIX, ""));
-                boolean isSaveFileRenamed = this.saveFile.renameTo(newName);
-                if (isLogFileDeleted && isSaveFileRenamed) {
-                    print("location of the downloaded file: " + newName);
+                this.storage.force();
+                this.storage.close();   // 重命名之前先关闭文件
+                if (this.storage.isPersistent()) {
+                    boolean isLogFileDeleted = this.logFile.delete();
+                    File newName = new File(saveDir, saveFile.getName().replace(DownloadExecutor.SUFFIX, ""));
+                    boolean isSaveFileRenamed = this.saveFile.renameTo(newName);
+                    if (isLogFileDeleted && isSaveFileRenamed) {
+                        print("location of the downloaded file: " + newName);
+                    }
                 }
+                endPhase("finish", phaseTime);
+                finishMetrics(metrics, cpuTime);
                 if (this.listener != null) {
                     this.listener.onFinish(this);  // 通知下载完成
                 }
             } else {
+                finishMetrics(metrics, cpuTime);
                 if (this.listener != null) {
-                    this.listener.onPause(this, this.downloadedSize);  // 通知下载被暂停了
+                    this.listener.onPause(this, downloadedSize);  // 通知下载被暂停了
                 }
             }
 
         } catch (Exception e) {
             this.failed = true;
+            finishMetrics(metrics, cpuTime);
             if (this.listener != null) {
                 this.listener.onFailure(this, e);  // 通知下载失败
             }
             throw new RuntimeException("Download error ", e);    //抛出文件下载异常
 
         } finally {
+            if (this.latencyProbe != null) {
+                this.latencyProbe.stop();
+            }
+            if (this.engine != null) {
+                try {
+                    this.engine.stop(); // 等待引擎关闭所有连接，之后不会再写入存储
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                this.engine = null;
+            }
+            try {
+                stopWorkers();  // 出错时下载作业还在运行，等它们交还分段并退出后才能写检查点和关闭存储
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            takeInitialStream(-1);  // 没有被领取的初始化响应流不再有用
+
             if (!finished) {
                 this.downloading = false;
                 this.spentTime += System.currentTimeMillis() - startTime;
                 this.logger.setSpentTime(this.spentTime);
+                try {
+                    if (this.scheduler != null && this.storage.isPersistent()) {   // 初始化失败时还没有分段和下载记录文件
+                        checkpoint(this.spentTime);
+                    }
+                } finally {
+                    this.storage.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * 领取初始化请求的响应流，只有从文件开头下载的线程能够使用，超过INITIAL_STREAM_TTL没有被领取的响应流会被关闭
+     *
+     * @param position 线程要下载的位置，传入-1时只关闭响应流
+     * @return 响应流，不能使用时返回null
+     */
+    private synchronized InputStream takeInitialStream(long position) {
+        InputStream stream = this.initialStream;
+        if (stream == null || position != 0 && position != -1) return null;
+        this.initialStream = null;
+        if (position == 0 && System.nanoTime() / 1000000 - this.initialTime <= INITIAL_STREAM_TTL) {
+            return stream;
+        }
+        HttpConnector.release(stream, Long.MAX_VALUE, null);    // 闲置太久的连接可能已经被服务器关闭
+        return null;
+    }
+
+    /**
+     * 获取下载线程发出的请求数，接着读取初始化响应流的分段不发出请求
+     *
+     * @return 请求数
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * 获取下载线程各请求的平均首字节时间，复用连接池中的长连接时不需要重新建立TCP和TLS连接
+     *
+     * @return 毫秒
+     */
+    public double getAverageFirstByteTime() {
+        long count = requestCount.get();
+        return count > 0 ? firstByteTime.get() / 1000000.0 / count : 0;
+    }
+
+    /**
+     * 改变使用的连接数，增加时启动新的下载线程，减少时等待多出的下载线程交还分段并退出，使用多路复用引擎时交给引擎处理
+     *
+     * @param count 连接数
+     * @throws InterruptedException
+     */
+    private synchronized void setConnectionCount(int count) throws InterruptedException {
+        if (this.connectionLimit > 0) {
+            count = Math.min(count, this.connectionLimit);
+        }
+        int previous = this.connectionCount;
+        this.connectionCount = count;
+        if (this.engine != null) {
+            this.engine.setConnectionCount(count);
+            if (previous == 0) {
+                this.engine.start(this.workerPool);
+            }
+            return;
+        }
+        for (int i = previous; i < count; i++) { // 开启线程进行下载，每条线程完成一个分段后会继续领取下一个分段
+            this.threads[i] = new DownloadWorker(this, i + 1, 0);   // 初始化特定id的作业
+            this.workerPool.executeTransfer(this.threads[i], 0);    // 线程名和优先级由线程池统一设置
+        }
+        awaitWorkers(count);    // 同一id的新作业必须等旧作业退出后才能启动，否则两个作业会同时写同一个计数槽
+    }
+
+    /**
+     * 让所有下载线程退出，等待它们交还分段后返回，之后不会再有作业写入存储和计数槽
+     *
+     * @throws InterruptedException
+     */
+    private synchronized void stopWorkers() throws InterruptedException {
+        this.stopping = true;
+        awaitWorkers(0);
+    }
+
+    /**
+     * 等待id大于指定连接数的下载作业退出
+     *
+     * @param count 连接数
+     * @throws InterruptedException
+     */
+    private synchronized void awaitWorkers(int count) throws InterruptedException {
+        for (int i = count; i < this.threads.length; i++) {
+            while (this.threads[i] != null && this.threads[i].running) {
+                wait(); // 等待期间释放锁，作业退出时唤醒
+            }
+        }
+    }
+
+    /**
+     * 下载作业开始运行，已经暂停、id超出了连接数或者已经被同一id的新作业替换时不再运行
+     *
+     * @param worker 作业
+     * @return 可以运行时为true
+     */
+    private synchronized boolean enterWorker(DownloadWorker worker) {
+        if (this.paused || this.stopping || worker.threadId > this.connectionCount || this.threads[worker.threadId - 1] != worker) {
+            return false;
+        }
+        worker.running = true;
+        worker.retrying = false;
+        return true;
+    }
+
+    /**
+     * 下载作业退出，之后不会再写入存储和计数槽
+     *
+     * @param worker 作业
+     */
+    private synchronized void leaveWorker(DownloadWorker worker) {
+        worker.running = false;
+        notifyAll();    // 唤醒等待作业退出的setConnectionCount()
+    }
+
+    /**
+     * 下载作业出错的事件，按重试策略安排同一id的新作业延迟排队，重试策略放弃时记录错误让监视循环结束下载
+     *
+     * @param worker 出错的作业
+     * @param e      错误
+     */
+    private synchronized void onWorkerFailed(DownloadWorker worker, Exception e) {
+        int index = worker.threadId - 1;
+        if (this.paused || this.stopping || this.failure != null || this.threads[index] != worker) return;   // 已经暂停、结束或者已经被替换
+        RetryPolicy.ErrorClass error = RetryPolicy.classify(e);
+        long wait = this.retryPolicy.onFailure(worker.attempt, error, this.connectionCount);
+        if (worker.mirror != null && this.mirrors.fail(worker.mirror, wait < 0)) {
+            wait = 0;   // 弃用出错的镜像，立即换用其他镜像重试
+        }
+        worker.recorder.getTarget().addFailure(e, error, wait >= 0 && worker.threadId <= this.connectionCount);
+        if (wait < 0) {
+            this.failure = new RuntimeException("No download thread functional (" + error + ")", e);
+            wake();
+            return;
+        }
+        if (worker.threadId > this.connectionCount) return;  // 连接数已经减少，不需要重连
+        this.threads[index] = new DownloadWorker(this, worker.threadId, worker.attempt + 1);   // 出错作业放弃的分段会被重新领取
+        this.threads[index].retrying = wait > 0;
+        this.workerPool.executeTransfer(this.threads[index], wait); // 延迟排队，等待期间不占用线程
+        Log.i(TAG, "Thread " + worker.threadId + " retries in " + wait + "ms after " + error);
+    }
+
+    /**
+     * 熔断结束的事件，延迟排队的重连作业不再等到原定的时间，换成同一id的新作业立即排队，原来的作业到时会被enterWorker拒绝
+     */
+    private synchronized void onBreakerClosed() {
+        if (this.paused || this.stopping || this.failure != null) return;
+        for (int i = 0; i < Math.min(this.connectionCount, this.threads.length); i++) {
+            DownloadWorker worker = this.threads[i];
+            if (worker != null && worker.retrying && !worker.running) {
+                this.threads[i] = new DownloadWorker(this, worker.threadId, worker.attempt);
+                this.workerPool.executeTransfer(this.threads[i], 0);
+                Log.i(TAG, "Thread " + worker.threadId + " retries now that the circuit breaker is closed");
+            }
+        }
+    }
+
+    /**
+     * 检查点，先记录分段进度再把数据同步到存储设备，最后写入下载记录，保证下载记录中的进度都已经落盘，崩溃后可以从记录处继续下载
+     *
+     * @param spentTime 到目前为止的下载耗时
+     * @throws IOException
+     */
+    private void checkpoint(long spentTime) throws IOException {
+        long begin = System.nanoTime();
+        List<DownloadSegment> segments = this.scheduler.snapshot(); // 计入分段进度的数据都已经写入了存储
+        this.storage.force();
+        long size = 0;
+        for (DownloadSegment segment : segments) {
+            size += segment.getDownloaded();
+        }
+        this.logger.setSegments(segments);
+        this.logger.setDownloadedSize(size);
+        this.logger.setSpentTime(spentTime);
+        this.logger.write(this.logFile);
+        this.checkpointTime = System.currentTimeMillis();
+        this.checkpointedSize = size;
+        this.metrics.addPhase("checkpoint", System.nanoTime() - begin);
+    }
+
+    /**
+     * 并行校验镜像是否提供同一个文件，长度和最后修改时间都与主下载地址一致的镜像才会被使用，超时没有完成校验的镜像也会被忽略
+     *
+     * @throws InterruptedException
+     */
+    private void checkMirrors() throws InterruptedException {
+        final DownloadMirror[] checked = new DownloadMirror[this.mirrorUrls.size()];
+        final CountDownLatch done = new CountDownLatch(checked.length);
+        for (int i = 0; i < checked.length; i++) {
+            final int index = i;
+            final URL url = this.mirrorUrls.get(i);
+            this.workerPool.executeTransfer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        checked[index] = checkMirror(url);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, 0);
+        }
+        done.await(MIRROR_CHECK_TIMEOUT, TimeUnit.MILLISECONDS);
+        List<DownloadMirror> valid = new ArrayList<DownloadMirror>(checked.length + 1);
+        valid.add(new DownloadMirror(this.downloadUrl, this.remoteLastModified));
+        for (DownloadMirror mirror : checked) {
+            if (mirror != null && !mirror.getUrl().equals(this.downloadUrl)) {
+                valid.add(mirror);
+            }
+        }
+        this.mirrors = new MirrorBalancer(valid);
+        if (valid.size() > 1) {
+            print("download from " + valid.size() + " mirrors");
+        }
+    }
+
+    /**
+     * 请求镜像上文件的第一个字节，检查镜像是否支持Range，以及文件长度和最后修改时间是否与主下载地址一致
+     *
+     * @param url 镜像地址
+     * @return 通过校验的镜像，否则返回null
+     */
+    private DownloadMirror checkMirror(URL url) {
+        byte[] array = new byte[64];
+        try {
+            HttpURLConnection http = HttpConnector.open(url, "bytes=0-0");
+            int code = http.getResponseCode();
+            if (code != HttpURLConnection.HTTP_PARTIAL) {
+                if (code == HttpURLConnection.HTTP_OK) {
+                    HttpConnector.release(http.getInputStream(), Long.MAX_VALUE, null); // 不支持Range的镜像返回了整个文件
+                } else {
+                    HttpConnector.discardError(http, array);
+                }
+                Log.w(TAG, "Mirror " + url + " ignored: response code " + code);
+                return null;
+            }
+            long size = HttpConnector.getRangeTotal(http.getHeaderField("Content-Range"));
+            long lastModified = http.getLastModified();
+            HttpConnector.release(http.getInputStream(), 1, array);
+            if (size != this.fileSize || lastModified != this.remoteLastModified) {
+                Log.w(TAG, "Mirror " + url + " ignored: serves a different version (" + size + " bytes, modified " + lastModified + ")");
+                return null;
+            }
+            return new DownloadMirror(url, lastModified);
+        } catch (IOException e) {
+            Log.w(TAG, "Mirror " + url + " ignored: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * 创建计算整个文件摘要的MessageDigest
+     *
+     * @return 没有期望的摘要或者系统不支持该算法时返回null
+     */
+    private MessageDigest createDigest() {
+        if (this.expectedDigest == null) return null;
+        try {
+            return MessageDigest.getInstance(this.expectedAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            Log.w(TAG, "Digest " + this.expectedAlgorithm + " is not supported, only segments will be verified");
+            return null;
+        }
+    }
+
+    /**
+     * 全部分段下载完成后校验剩下的数据，校验失败的分段单独重新下载，最后比较整个文件的摘要。
+     * 摘要不一致时用分段的校验和找出磁盘上损坏的分段，重新下载之后再计算一遍摘要
+     *
+     * @throws IOException 重新下载失败，或者分段多次校验失败，或者整个文件的摘要不一致
+     */
+    private void verifyAll() throws IOException {
+        int refetches = 0;
+        while (true) {
+            DownloadSegment corrupted;
+            while ((corrupted = this.verifier.verify(this.scheduler, Long.MAX_VALUE)) != null) {
+                if (++refetches > REFETCH_LIMIT) {
+                    throw new IOException("Segment " + corrupted.getId() + " is still corrupted after " + REFETCH_LIMIT + " refetches");
+                }
+                refetch(corrupted);
+                this.verifier.refetched();
+            }
+            if (!this.verifier.isFinished()) {
+                throw new IOException("Verification stopped at " + this.verifier.getFrontier());  // 分段记录与实际进度不一致
+            }
+            this.digest = this.verifier.getDigest();
+            if (this.digest == null || Arrays.equals(this.digest, this.expectedDigest)) {
+                return;
+            }
+            List<DownloadSegment> mismatched = this.verifier.locate(this.scheduler);
+            if (mismatched.isEmpty()) { // 磁盘上的数据就是收到的数据
+                throw new IOException(this.expectedAlgorithm + " digest mismatch, got " + getDigest()
+                        + ", all segments match their checksums so the server sent corrupted data");
+            }
+            refetches += mismatched.size();
+            if (refetches > REFETCH_LIMIT) {
+                throw new IOException(this.expectedAlgorithm + " digest mismatch, segment " + mismatched.get(0).getId()
+                        + " is still corrupted after " + REFETCH_LIMIT + " refetches");
+            }
+            for (DownloadSegment segment : mismatched) {
+                refetch(segment);
+            }
+            this.verifier.refetched();
+        }
+    }
 
-                this.logger.write(this.logFile);
+    /**
+     * 单独重新下载校验失败的分段，只在全部分段完成之后由调用download()的线程执行
+     *
+     * @param corrupted 校验失败的分段
+     * @throws IOException
+     */
+    private void refetch(DownloadSegment corrupted) throws IOException {
+        DownloadSegment segment = this.scheduler.reacquire(corrupted.getStart());
+        Log.w(TAG, "Segment " + segment.getId() + " is corrupted, downloading it again");
+        ByteBuffer buffer = this.bufferPool.acquire(this.cacheSize, false);
+        try {
+            this.progress.add(0, -segment.rewind());    // 0号计数槽不属于任何下载线程
+            byte[] array = buffer.array();
+            HttpURLConnection http = HttpConnector.open(this.downloadUrl, "bytes=" + segment.getStart() + "-" + segment.getEnd());
+            int code = http.getResponseCode();
+            if (code != HttpURLConnection.HTTP_PARTIAL) {
+                HttpConnector.discardError(http, array);
+                throw new HttpStatusException(code, "Unexpected response code " + code + " for segment " + segment.getId());
+            }
+            InputStream in = http.getInputStream();
+            if (http.getLastModified() != this.remoteLastModified
+                    || !HttpConnector.isRangeFrom(http.getHeaderField("Content-Range"), segment.getStart())) {
+                HttpConnector.release(in, Long.MAX_VALUE, null);
+                throw new IOException("Unexpected response for segment " + segment.getId());
             }
+            int offset;
+            while (!segment.isComplete() && (offset = in.read(array)) != -1) {
+                int length = (int) Math.min(offset, segment.getRemaining());
+                buffer.clear();
+                buffer.limit(length);
+                this.storage.write(buffer, segment.getPosition());
+                this.progress.add(0, segment.advance(buffer, 0, length));
+            }
+            HttpConnector.release(in, segment.isComplete() ? 0 : Long.MAX_VALUE, null);
+            if (!segment.isComplete()) {
+                throw new IOException("Connection closed before segment " + segment.getId() + " completed");
+            }
+        } finally {
+            this.bufferPool.release(buffer);
+            this.scheduler.release(segment);
         }
     }
 
@@ -551,16 +1770,54 @@ public final class DownloadExecutor {
     }
 
     /**
-     * 更新指定线程在某时间片段里下载的文件大小和最后下载的位置
+     * 从响应头中读取服务器提供的整个文件的摘要，依次查找Content-Digest、Repr-Digest、Digest和Content-MD5，同一个响应头中优先使用SHA-256
      *
-     * @param threadId 线程id
-     * @param size     时间片段里下载的文件大小
-     * @param pos      最后下载的位置
+     * @param http HttpURLConnection对象
+     */
+    private void readExpectedDigest(HttpURLConnection http) {
+        if (this.digestProvided) return;    // 调用者提供的摘要优先
+        this.expectedAlgorithm = null;
+        this.expectedDigest = null;
+        String[] names = {"Content-Digest", "Repr-Digest", "Digest"};
+        for (String name : names) {
+            String header = http.getHeaderField(name);
+            if (header == null) continue;
+            for (String item : header.split(",")) {
+                int equals = item.indexOf('=');
+                if (equals <= 0) continue;
+                String algorithm = item.substring(0, equals).trim().toUpperCase(Locale.US);
+                if (!"SHA-256".equals(algorithm) && !("MD5".equals(algorithm) && this.expectedDigest == null)) continue;
+                String value = item.substring(equals + 1).trim();
+                int semicolon = value.indexOf(';');
+                if (semicolon >= 0) {
+                    value = value.substring(0, semicolon).trim();   // 去掉参数
+                }
+                if (value.length() > 1 && value.charAt(0) == ':' && value.charAt(value.length() - 1) == ':') {
+                    value = value.substring(1, value.length() - 1); // Content-Digest中的字节序列用冒号包围
+                }
+                useHeaderDigest(algorithm, value);
+            }
+            if (this.expectedDigest != null) return;
+        }
+        String md5 = http.getHeaderField("Content-MD5");
+        if (md5 != null) {
+            useHeaderDigest("MD5", md5.trim());
+        }
+    }
+
+    /**
+     * 记录响应头中Base64编码的摘要，格式不对时忽略
      */
-    private synchronized void update(int threadId, int size, long pos) throws IOException { // 使用同步关键字解决并发访问问题
-        this.threadData.put(threadId, pos);   // 把制定线程ID的线程赋予最新的下载长度，以前的值会被覆盖掉
-        this.downloadedSize += size;    // 把实时下载的长度加入到总下载长度中
-        this.logger.setDownloadedSize(this.downloadedSize);
+    private void useHeaderDigest(String algorithm, String base64) {
+        byte[] bytes;
+        try {
+            bytes = Base64.decode(base64, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        if (bytes.length != ("MD5".equals(algorithm) ? 16 : 32)) return;
+        this.expectedAlgorithm = algorithm;
+        this.expectedDigest = bytes;
     }
 
     /**
@@ -573,105 +1830,271 @@ public final class DownloadExecutor {
     }
 
     /**
-     * 下载线程
+     * 下载停止的原因
+     */
+    public enum StopReason {
+        /**
+         * 被用户暂停
+         */
+        PAUSED,
+        /**
+         * 稳态速度已经收敛
+         */
+        CONVERGED,
+        /**
+         * 达到了下载的最长时间
+         */
+        TIME_LIMIT,
+        /**
+         * 达到了下载的最大长度
+         */
+        BYTE_LIMIT
+    }
+
+    /**
+     * 下载作业，在共享线程池的传输通道中运行，每次下载一个分段后重新排队
      */
-    private class DownloadThread extends Thread {
-        private static final String TAG = "DownloadThread"; // 设置LogCat日志标签
-        private int threadId = -1;  // 初始化线程id设置
-        private long threadDownloadedSize;   // 该线程已经下载的数据长度
-        private boolean retry;  // 该线程是否属于再次启动的
-        private boolean working;    // 该线程有否正常工作的标志
-        private boolean finished;   // 该线程是否结束的标志
+    private class DownloadWorker implements Runnable {
+        private static final String TAG = "DownloadWorker"; // 设置LogCat日志标签
+        private int threadId = -1;  // 作业id，同时是进度计数槽的编号
+        private DownloadSegment segment;    // 该作业正在下载的分段
+        private int attempt;    // 该连接连续重试的次数，成功收到响应后清零
         private DownloadExecutor downloader;  // 文件下载器
+        private ByteBuffer buffer;  // 从共享池借用的本地数据缓存，作业结束时归还
+        private long readBytes; // 上次调整缓冲区之后读到的长度
+        private long readNanos; // 上次调整缓冲区之后读取花费的时间，纳秒
+        private InputStream stream; // 当前使用的响应流，分段连续时接着读取
+        private long streamPosition;    // 响应流下一个字节在文件中的位置
+        private long streamEnd; // 响应流最后一个字节在文件中的位置
+        private DownloadMirror mirror;  // 当前响应流来自的镜像
+        private final ReadRecorder recorder;    // 该连接读取路径上的统计
+        private boolean running;    // 是否在运行中，让出线程重新排队期间也算，由DownloadExecutor的锁保护
+        private boolean retrying;   // 是否在延迟排队等待重新连接，由DownloadExecutor的锁保护
 
         /**
-         * 初始化DownloadThread对象
+         * 初始化DownloadWorker对象
          *
-         * @param downloader           FileDownloader对象
-         * @param threadDownloadedSize 整个文件目前已经下载的大小
-         * @param threadId             线程的ID
+         * @param downloader FileDownloader对象
+         * @param threadId   作业的ID
+         * @param attempt    连续重试的次数，首次启动为0
          */
-        public DownloadThread(DownloadExecutor downloader, int threadId, long threadDownloadedSize, boolean retry) {
+        public DownloadWorker(DownloadExecutor downloader, int threadId, int attempt) {
             this.downloader = downloader;
             this.threadId = threadId;
-            this.threadDownloadedSize = threadDownloadedSize;
-            this.retry = retry;
+            this.attempt = attempt;
+            this.recorder = new ReadRecorder(metrics.getConnection(threadId), true);
         }
 
         /**
-         * 线程的执行体
+         * 作业的执行体，不断领取分段进行下载，直到没有可领取的分段或者下载被暂停，有其他作业排队时让出线程重新排队
          */
         @Override
         public void run() {
-            if (this.threadDownloadedSize < block) { // 未下载完成
-                this.working = true;
-                try {
-                    if (this.retry) {
-                        Thread.sleep(delay);
+            if (!this.running && !enterWorker(this)) return;    // 延迟排队期间下载已经暂停或者连接数已经减少
+            this.recorder.start(System.nanoTime()); // 每次在线程池中运行都可能换了线程，重新开始累计CPU时间
+            try {
+                if (this.buffer == null) {
+                    this.buffer = bufferPool.acquire(cacheSize, false); // 重试的作业直接取用出错作业归还的缓存
+                }
+                while (!downloader.isPaused() && isActive() && (this.segment = scheduler.acquire()) != null) {
+                    download(this.segment, buffer);
+                    scheduler.release(this.segment);    // 分段完成或者被暂停，交还给调度器
+                    adaptBuffer();
+                    if (this.segment.isComplete()) {
+                        wake(); // 可能是最后一个分段，让监视循环立即检查
                     }
-                    HttpURLConnection http = (HttpURLConnection) downloadUrl.openConnection();  // 开启HttpURLConnection连接
-                    http.setConnectTimeout(5 * 1000);   // 设置连接超时时间为5秒钟
-                    http.setRequestMethod("GET");   // 设置请求的方法为GET
-                    http.setRequestProperty("Accept", "image/gif, image/jpeg, image/pjpeg, image/pjpeg, application/x-shockwave-flash, application/xaml+xml, application/vnd.ms-xpsdocument, application/x-ms-xbap, application/x-ms-application, application/vnd.ms-excel, application/vnd.ms-powerpoint, application/msword, */*");   // 设置客户端可以接受的返回数据类型
-                    http.setRequestProperty("Accept-Language", "zh-CN");    // 设置客户端使用的语言问中文
-                    http.setRequestProperty("Referer", downloadUrl.toString()); // 设置请求的来源，便于对访问来源进行统计
-                    http.setRequestProperty("Charset", "UTF-8");    // 设置通信编码为UTF-8
-                    long startPos = block * (threadId - 1) + threadDownloadedSize;   // 开始位置
-                    long endPos = block * threadId - 1;  // 结束位置
-                    http.setRequestProperty("Range", "bytes=" + startPos + "-" + endPos);   // 设置获取实体数据的范围,如果超过了实体数据的大小会自动返回实际的数据大小
-                    http.setRequestProperty("User-Agent", "Mozilla/4.0 (compatible; MSIE 8.0; Windows NT 5.2; Trident/4.0; .NET CLR 1.1.4322; .NET CLR 2.0.50727; .NET CLR 3.0.04506.30; .NET CLR 3.0.4506.2152; .NET CLR 3.5.30729)"); // 客户端用户代理
-                    http.setRequestProperty("Connection", "Keep-Alive");    // 使用长连接
-//                    printResponseHeader(http);
-
-                    if (remoteLastModified != http.getLastModified()) {
-                        throw new RuntimeException("been referred to a different version of the file downloading");
+                    this.segment = null;
+                    if (workerPool.hasWaitingTransfers() && !downloader.isPaused() && isActive()) {
+                        this.recorder.flush(System.nanoTime());
+                        workerPool.executeTransfer(this, 0);    // 让其他任务的作业也能轮到，连续的响应流会保留到下一个分段
+                        return;
                     }
+                }
+                if (downloader.isPaused()) {
+                    Log.i(TAG, "Thread " + this.threadId + " has been paused");
+                } else {
+                    Log.i(TAG, "Thread " + this.threadId + " download finish");
+                }
+                closeStream(buffer.array());
+                releaseBuffer();
+                this.recorder.flush(System.nanoTime());
+                leaveWorker(this);
 
-                    InputStream inStream = http.getInputStream();   // 获取远程连接的输入流
-                    byte[] buffer = new byte[cacheSize]; // 设置本地数据缓存的大小
-                    int offset; // 设置每次读取的数据量
-                    Log.i(TAG, "Thread " + this.threadId + " starts to download from position " + startPos);    // 打印该线程开始下载的位置
-                    RandomAccessFile threadFile = new RandomAccessFile(saveFile, "rwd");   // If the file does not already exist then an attempt will be made to create it and it require that every update to the file's content be written synchronously to the underlying storage device.
-                    threadFile.seek(startPos);  // 文件指针指向开始下载的位置
-                    while (!downloader.isPaused() && (offset = inStream.read(buffer)) != -1) {    // 但用户没有要求停止下载，同时没有到达请求数据的末尾时候会一直循环读取数据
-                        threadFile.write(buffer, 0, offset);    // 直接把数据写到文件中
-                        this.threadDownloadedSize += offset; // 把新下载的已经写到文件中的数据加入到下载长度中
-                        downloader.update(this.threadId, offset, this.threadDownloadedSize);    // 把该线程已经下载的数据长度更新到数据库和内存哈希表中
-                    }   // 该线程下载数据完毕或者下载被用户停止
-                    threadFile.close(); // Closes this random access file stream and releases any system resources associated with the stream.
-                    inStream.close();   // Concrete implementations of this class should free any resources during close
-                    if (downloader.isPaused()) {
-                        Log.i(TAG, "Thread " + this.threadId + " has been paused");
-                    } else {
-                        Log.i(TAG, "Thread " + this.threadId + " download finish");
-                    }
+            } catch (Exception e) {
+                closeStream(null);  // 出错的连接不值得复用
+                releaseBuffer();
+                this.recorder.flush(System.nanoTime());
+                if (this.segment != null) {
+                    scheduler.release(this.segment);    // 放弃正在下载的分段，由其他线程或重新开辟的线程继续下载
+                    this.segment = null;
+                }
+                Log.w(TAG, "Thread " + this.threadId + ":" + e);    // 打印出异常信息
+                leaveWorker(this);  // 先退出，重新连接的作业才能启动
+                onWorkerFailed(this, e);    // 立即按重试策略安排重新连接，不等监视循环发现
+            }
+        }
 
-                    this.finished = true;   // 设置完成标志为true，无论是下载完成还是用户主动中断下载
-                    this.working = false;   // 线程已经不需要工作了
+        /**
+         * 下载一个分段，分段被其他线程拆分后只下载到新的结束位置为止
+         *
+         * @param segment 分段
+         * @param buffer  数据缓存
+         * @throws IOException
+         */
+        private void download(DownloadSegment segment, ByteBuffer buffer) throws IOException {
+            byte[] array = buffer.array();
+            long startPos = segment.getPosition();   // 开始位置
+            if (this.stream == null || this.streamPosition != startPos || this.streamEnd < segment.getEnd() || this.mirror.isDropped()) {
+                closeStream(array); // 上一个响应流接不上这个分段，剩余不多时读完让连接回到连接池
+                InputStream initial = takeInitialStream(startPos);
+                if (initial != null) {
+                    this.mirror = mirrors.getPrimary();
+                    this.stream = initial;
+                    this.streamEnd = fileSize - 1;
+                } else {
+                    this.mirror = mirrors.choose(); // 按各镜像的速度选择这个请求的镜像
+                    this.stream = request(startPos, segment.getEnd(), array);
+                    this.streamEnd = segment.getEnd();
+                }
+                this.mirror.opened();
+                this.streamPosition = startPos;
+            }
+            int offset; // 设置每次读取的数据量
+            Log.i(TAG, "Thread " + this.threadId + " starts to download segment " + segment.getId() + " from position " + startPos);    // 打印该线程开始下载的位置
+            long readStart = System.nanoTime();
+            long readFrom = this.streamPosition;
+            this.recorder.resume(readStart);
+            while (!downloader.isPaused() && isActive() && !segment.isComplete() && !this.mirror.isDropped() && (offset = this.stream.read(array)) != -1) {    // 但用户没有要求停止下载，连接没有被撤掉，镜像没有被弃用，分段未完成，同时没有到达请求数据的末尾时候会一直循环读取数据
+                this.recorder.read(offset, System.nanoTime());
+                this.streamPosition += offset;
+                this.mirror.add(offset);
+                long wait = reserveBandwidth(offset);
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));  // 超过限速，等待令牌补足
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("interrupted while throttling");
+                    }
+                    this.recorder.resume(System.nanoTime());    // 限速等待不算停顿
+                }
+                int length = (int) Math.min(offset, segment.getRemaining());    // 分段可能已经被拆分，超出结束位置的数据属于其他分段
+                if (length <= 0) break;
+                buffer.clear();
+                buffer.limit(length);
+                long position = segment.getPosition();
+                storage.write(buffer, position);    // 按位置写入存储，只有本线程会推进该分段的位置
+                int accepted = verifier != null ? segment.advance(buffer, 0, length) : segment.advance(length);
+                progress.add(this.threadId, accepted);  // 把新下载的已经写到文件中的数据计入分段进度和本线程的计数槽，不加锁也不装箱
+                if (verifier != null) {
+                    verifier.feed(position, buffer, 0, accepted);   // 正好接上摘要时直接计入，省去读回
+                }
+            }   // 该分段下载数据完毕或者下载被用户停止
+            long readEnd = System.nanoTime();
+            this.readBytes += this.streamPosition - readFrom;
+            this.readNanos += readEnd - readStart;
+            this.recorder.flush(readEnd);   // 分段结束时汇总，完成回调中能读到完整的统计
+            if (this.streamPosition > this.streamEnd) {
+                closeStream(array); // 响应体已经读完，连接回到连接池
+            }
+            if (this.mirror.isDropped() && !segment.isComplete()) {
+                closeStream(null);  // 镜像被弃用，交还分段后从其他镜像继续下载
+                return;
+            }
+            if (!downloader.isPaused() && isActive() && !segment.isComplete()) {
+                closeStream(null);
+                throw new IOException("Connection closed before segment " + segment.getId() + " completed");
+            }
+        }
 
-                } catch (Exception e) {
-                    this.working = false;   // 设置该线程已经没有正常工作
-                    Log.w(TAG, "Thread " + this.threadId + ":" + e);    // 打印出异常信息
+        /**
+         * 向当前选择的镜像发出一个Range请求，有空闲的长连接时系统会直接复用
+         *
+         * @param startPos 开始位置
+         * @param endPos   结束位置
+         * @param array    读取丢弃数据用的缓存
+         * @return 响应流
+         * @throws IOException
+         */
+        private InputStream request(long startPos, long endPos, byte[] array) throws IOException {
+            long begin = System.nanoTime();
+            HttpURLConnection http = HttpConnector.open(this.mirror.getUrl(), "bytes=" + startPos + "-" + endPos);   // 如果超过了实体数据的大小会自动返回实际的数据大小
+            http.connect(); // 单独计时，复用长连接时接近0
+            long connectNanos = System.nanoTime() - begin;
+            int code = http.getResponseCode(); // 先看响应码，错误响应没有Last-Modified，也不能调用getInputStream()
+            if (code != HttpURLConnection.HTTP_PARTIAL && code != HttpURLConnection.HTTP_OK) {
+                HttpConnector.discardError(http, array);
+                throw new HttpStatusException(code, "Unexpected response code " + code + " for range " + startPos + "-" + endPos);  // 由重试策略按响应码分类
+            }
+            if (this.mirror.getLastModified() != http.getLastModified()) {
+                HttpConnector.release(http.getInputStream(), endPos - startPos + 1, array);
+                throw new HttpStatusException(HttpURLConnection.HTTP_PRECON_FAILED, "been referred to a different version of the file downloading");  // 文件已经变了，重试也没用
+            }
+            if (code == HttpURLConnection.HTTP_OK && startPos > 0) {    // 服务器忽略Range时返回的是整个文件，只有从头开始下载才能使用
+                HttpConnector.release(http.getInputStream(), Long.MAX_VALUE, null); // 整个文件太长，直接断开
+                if (isRangeServed()) {
+                    throw new IOException("Range " + startPos + "-" + endPos + " ignored by server");   // 服务器支持Range，当作临时错误重试
                 }
+                throw new HttpStatusException(code, "Unexpected response code " + code + " for range " + startPos + "-" + endPos);
+            }
+            InputStream in = http.getInputStream(); // 获取远程连接的输入流
+            if (code == HttpURLConnection.HTTP_PARTIAL && !HttpConnector.isRangeFrom(http.getHeaderField("Content-Range"), startPos)) {
+                HttpConnector.release(in, Long.MAX_VALUE, null);
+                throw new IOException("Unexpected Content-Range " + http.getHeaderField("Content-Range") + " for range " + startPos + "-" + endPos);
+            }
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                setRangeServed();
             }
+            this.attempt = 0;
+            if (retryPolicy.onSuccess()) {  // 连接正常，清除连续失败次数
+                onBreakerClosed();  // 试探成功，其他连接不必再等
+            }
+            mirrors.succeed(this.mirror);
+            long firstByte = System.nanoTime() - begin;
+            firstByteTime.addAndGet(firstByte);
+            requestCount.incrementAndGet();
+            this.recorder.getTarget().addRequest(connectNanos, firstByte);
+            return in;
         }
 
         /**
-         * 下载线程是否正常工作中
+         * 关闭当前的响应流
          *
-         * @return true为线程工作正常，否则为false
+         * @param array 读取丢弃数据用的缓存，为null时不读完剩余的响应体
+         */
+        private void closeStream(byte[] array) {
+            if (this.stream == null) return;
+            long unread = this.streamEnd - this.streamPosition + 1;
+            HttpConnector.release(this.stream, array != null ? unread : Long.MAX_VALUE, array);
+            this.stream = null;
+            this.mirror.closed();
+        }
+
+        /**
+         * 累计读取超过100ms后，按这条连接的实际速度换一个合适大小的缓存，响应流不受影响
          */
-        public boolean isWorking() {
-            return working;
+        private void adaptBuffer() {
+            if (this.readNanos < 100 * 1000000L) return;
+            int size = BufferPool.sizeFor(this.readBytes * 1e9 / this.readNanos, cacheSize);
+            this.readBytes = 0;
+            this.readNanos = 0;
+            if (size != this.buffer.capacity()) {
+                bufferPool.release(this.buffer);
+                this.buffer = bufferPool.acquire(size, false);
+            }
+        }
+
+        private void releaseBuffer() {
+            bufferPool.release(this.buffer);
+            this.buffer = null;
         }
 
         /**
-         * 下载线程是否已经结束
+         * 该线程是否仍在使用的连接数之内，连接数减少或者下载结束时多出的线程会交还分段并退出
          *
-         * @return true为线程已结束，否则为false
+         * @return 是为true，否则为false
          */
-        public boolean isFinished() {
-            return this.finished;
+        private boolean isActive() {
+            return !stopping && this.threadId <= connectionCount;
         }
     }
 }
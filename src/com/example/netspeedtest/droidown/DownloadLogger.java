@@ -2,10 +2,14 @@ package com.example.netspeedtest.droidown;
 
 import java.io.*;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.CRC32;
 
 /**
- * 下载信息记录器
+ * 下载信息记录器，以带版本号的紧凑二进制格式保存在磁盘上：
+ * 魔数、版本、下载路径、文件信息、每个分段的(id, 开始位置, 结束位置, 已下载到的位置, 已下载部分的CRC32C)、镜像地址，最后是CRC32校验和
  */
 public final class DownloadLogger implements Serializable {
     /**
@@ -13,14 +17,23 @@ public final class DownloadLogger implements Serializable {
      */
     public static final String SUFFIX = ".droidown.cfg";
 
+    private static final long serialVersionUID = -6314761837928578787L; // 用Java序列化保存分段记录时的默认值，保证这种记录仍然可以读取
+    private static final int MAGIC = 0x44524C47;    // "DRLG"
+    private static final int VERSION = 3;   // 记录格式的版本，格式改变时增加，版本2增加了分段的校验和，版本3增加了镜像地址
+    private static final int SEGMENT_SIZE = 4 + 8 * 4;  // 每个分段占用的字节数
+    private static final int SEGMENT_SIZE_V1 = 4 + 8 * 3;   // 版本1中每个分段占用的字节数
+    private static final String TEMP_SUFFIX = ".tmp";   // 写入中的临时记录文件的后缀
+
     private URL downloadUrl;    // 下载路径
-    private Map<Integer, Long> threadData;  // 缓存各线程下载的长度
+    private List<DownloadSegment> segments; // 各分段的下载进度
+    private int threadSize; // 下载线程的数量
     private long downloadedSize;    // 已下载文件长度
     private long fileSize;  // 原始文件长度
     private long block; // 每条线程下载的长度
     private long createDateTime;    // 创建时间
     private long spentTime; // 下载耗时
     private long remoteLastModified;    // 远程文件最后一次被修改的时间，断点续传时有用
+    private List<URL> mirrors;  // 主下载地址之外的镜像地址
 
     /**
      * 获取目标文件的下载路径
@@ -41,21 +54,57 @@ public final class DownloadLogger implements Serializable {
     }
 
     /**
-     * 获取各下载线程的下载进度
+     * 获取主下载地址之外的镜像地址
+     *
+     * @return 镜像地址，没有时为空列表
+     */
+    List<URL> getMirrors() {
+        return mirrors != null ? mirrors : new ArrayList<URL>();
+    }
+
+    /**
+     * 设置主下载地址之外的镜像地址
+     *
+     * @param mirrors 镜像地址
+     */
+    void setMirrors(List<URL> mirrors) {
+        this.mirrors = mirrors;
+    }
+
+    /**
+     * 获取各分段的下载进度
+     *
+     * @return 各分段的下载进度
+     */
+    List<DownloadSegment> getSegments() {
+        return segments;
+    }
+
+    /**
+     * 设置各分段的下载进度
+     *
+     * @param segments 各分段的下载进度
+     */
+    void setSegments(List<DownloadSegment> segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * 获取下载线程的数量
      *
-     * @return 各下载线程的下载进度
+     * @return 线程数
      */
-    protected Map<Integer, Long> getThreadData() {
-        return threadData;
+    protected int getThreadSize() {
+        return threadSize;
     }
 
     /**
-     * 设置各下载线程的下载进度
+     * 设置下载线程的数量
      *
-     * @param threadData 各下载线程的下载进度
+     * @param threadSize 线程数
      */
-    protected void setThreadData(Map<Integer, Long> threadData) {
-        this.threadData = threadData;
+    protected void setThreadSize(int threadSize) {
+        this.threadSize = threadSize;
     }
 
     /**
@@ -95,7 +144,7 @@ public final class DownloadLogger implements Serializable {
     }
 
     /**
-     * 获取下载分段大小
+     * 获取初始切分时每个分段的大小
      *
      * @return 分段大小
      */
@@ -104,7 +153,7 @@ public final class DownloadLogger implements Serializable {
     }
 
     /**
-     * 设置下载分段大小
+     * 设置初始切分时每个分段的大小
      *
      * @param block 分段大小
      */
@@ -163,36 +212,225 @@ public final class DownloadLogger implements Serializable {
     }
 
     /**
-     * 把下载记录序列化到磁盘上
+     * 把下载记录写入磁盘，先写入临时文件并同步，再重命名覆盖原来的记录，任何时刻崩溃都只会留下完整的旧记录或新记录
      *
      * @param downloadLog 结果文件
      * @throws java.io.IOException
      */
     protected void write(File downloadLog) throws IOException {
-        FileOutputStream fos = new FileOutputStream(downloadLog);
-        ObjectOutputStream oos = new ObjectOutputStream(fos);
-        oos.writeObject(this);
-        oos.close();
-        fos.close();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (segments != null ? segments.size() : 0) * SEGMENT_SIZE);
+        DataOutputStream dos = new DataOutputStream(bytes);
+        dos.writeInt(MAGIC);
+        dos.writeShort(VERSION);
+        dos.writeUTF(downloadUrl != null ? downloadUrl.toString() : "");
+        dos.writeLong(fileSize);
+        dos.writeLong(block);
+        dos.writeInt(threadSize);
+        dos.writeLong(downloadedSize);
+        dos.writeLong(createDateTime);
+        dos.writeLong(spentTime);
+        dos.writeLong(remoteLastModified);
+        int count = segments != null ? segments.size() : 0;
+        dos.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            DownloadSegment segment = segments.get(i);
+            dos.writeInt(segment.getId());
+            dos.writeLong(segment.getStart());
+            dos.writeLong(segment.getEnd());
+            dos.writeLong(segment.getPosition());
+            dos.writeLong(segment.getChecksum());
+        }
+        List<URL> urls = getMirrors();
+        dos.writeShort(urls.size());
+        for (URL mirror : urls) {
+            dos.writeUTF(mirror.toString());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        dos.writeLong(crc.getValue());  // 校验和放在最后，能发现写了一半的记录
+        dos.flush();
+
+        File temp = new File(downloadLog.getPath() + TEMP_SUFFIX);
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            bytes.writeTo(fos);
+            fos.getFD().sync(); // 与检查点同步的数据一起落盘
+        } finally {
+            fos.close();
+        }
+        if (!temp.renameTo(downloadLog)) {    // 有的文件系统不允许重命名覆盖已存在的文件
+            if (!downloadLog.delete() || !temp.renameTo(downloadLog)) {
+                throw new IOException("Can not replace " + downloadLog);
+            }
+        }
     }
 
     /**
-     * 把磁盘上的下载记录反序列化读取
+     * 读取磁盘上的下载记录，兼容旧版本用Java序列化写入的记录
      *
      * @param downloadLog 记录文件
      * @return DownloadLogger实例
      * @throws java.io.IOException
      */
     protected static DownloadLogger read(File downloadLog) throws IOException {
-        FileInputStream fis = new FileInputStream(downloadLog);
-        ObjectInputStream ois = new ObjectInputStream(fis);
+        byte[] data = new byte[(int) downloadLog.length()];
+        DataInputStream dis = new DataInputStream(new FileInputStream(downloadLog));
         try {
-            return (DownloadLogger) ois.readObject();
+            dis.readFully(data);
+        } finally {
+            dis.close();
+        }
+        if (data.length >= 2 && (data[0] & 0xFF) == 0xAC && (data[1] & 0xFF) == 0xED) {
+            return readSerialized(data);    // Java序列化流的魔数
+        }
+        if (data.length < 14) {
+            throw new IOException("Truncated download log " + downloadLog);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 8);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a download log " + downloadLog);
+        }
+        int version = in.readUnsignedShort();
+        if (version > VERSION) {
+            throw new IOException("Unsupported download log version " + version);
+        }
+        DownloadLogger logger = new DownloadLogger();
+        String url = in.readUTF();
+        logger.downloadUrl = url.length() > 0 ? new URL(url) : null;
+        logger.fileSize = in.readLong();
+        logger.block = in.readLong();
+        logger.threadSize = in.readInt();
+        logger.downloadedSize = in.readLong();
+        logger.createDateTime = in.readLong();
+        logger.spentTime = in.readLong();
+        logger.remoteLastModified = in.readLong();
+        int count = in.readInt();
+        if (count < 0 || count > (data.length - 8) / (version < 2 ? SEGMENT_SIZE_V1 : SEGMENT_SIZE)) {
+            throw new IOException("Corrupted download log " + downloadLog);
+        }
+        List<DownloadSegment> segments = new ArrayList<DownloadSegment>(count);
+        for (int i = 0; i < count; i++) {
+            int id = in.readInt();
+            long start = in.readLong();
+            long end = in.readLong();
+            long position = in.readLong();
+            if (version < 2) {
+                segments.add(new DownloadSegment(id, start, end, position));    // 没有校验和，已下载的部分无法校验
+            } else {
+                segments.add(new DownloadSegment(id, start, end, position, in.readLong()));
+            }
+        }
+        logger.segments = segments;
+        if (version >= 3) {
+            int mirrorCount = in.readUnsignedShort();
+            List<URL> mirrors = new ArrayList<URL>(mirrorCount);
+            for (int i = 0; i < mirrorCount; i++) {
+                mirrors.add(new URL(in.readUTF()));
+            }
+            logger.mirrors = mirrors;
+        }
+        if (in.readLong() != crc.getValue()) {
+            throw new IOException("Corrupted download log " + downloadLog);
+        }
+        return logger;
+    }
+
+    /**
+     * 反序列化旧版本的下载记录，下一次写入时会转换成新格式。分段下载之前按线程记录进度的记录转换成每条线程一个分段
+     */
+    private static DownloadLogger readSerialized(byte[] data) throws IOException {
+        ObjectInputStream ois = new LegacyInputStream(new ByteArrayInputStream(data));
+        try {
+            Object record = ois.readObject();
+            if (record instanceof LegacyRecord) {
+                return ((LegacyRecord) record).convert();
+            }
+            DownloadLogger logger = (DownloadLogger) record;
+            if (logger.segments == null) {
+                throw new IOException("Unsupported download log without segments");  // 分段下载之前的记录
+            }
+            List<DownloadSegment> segments = new ArrayList<DownloadSegment>(logger.segments.size());
+            for (DownloadSegment segment : logger.segments) {   // 旧版本的分段没有校验和，反序列化得到的0是错误的
+                segments.add(new DownloadSegment(segment.getId(), segment.getStart(), segment.getEnd(), segment.getPosition()));
+            }
+            logger.segments = segments;
+            return logger;
         } catch (ClassNotFoundException e) {
             throw new IOException(e);
         } finally {
             ois.close();
-            fis.close();
+        }
+    }
+
+    /**
+     * 分段下载之前的下载记录，每条线程下载固定的一块，threadData记录各线程已经下载的长度。
+     * 字段的名字和类型必须与当时的DownloadLogger一致，由LegacyInputStream代替DownloadLogger读取
+     */
+    private static final class LegacyRecord implements Serializable {
+        private static final long serialVersionUID = -2113265239808172231L; // 当时的DownloadLogger的默认值
+        private URL downloadUrl;    // 下载路径
+        private Map<Integer, Long> threadData;  // 各线程已经下载的长度，线程id从1开始
+        private long downloadedSize;    // 已下载文件长度
+        private long fileSize;  // 原始文件长度
+        private long block; // 每条线程下载的长度
+        private long createDateTime;    // 创建时间
+        private long spentTime; // 下载耗时
+        private long remoteLastModified;    // 远程文件最后一次被修改的时间
+
+        /**
+         * 转换成分段记录，第i条线程负责的[block * (i - 1), block * i - 1]成为id为i的分段，已下载的部分没有校验和
+         *
+         * @return 下载记录
+         * @throws IOException 记录不完整
+         */
+        DownloadLogger convert() throws IOException {
+            if (threadData == null || threadData.isEmpty() || block <= 0 || fileSize <= 0) {
+                throw new IOException("Corrupted legacy download log");
+            }
+            DownloadLogger logger = new DownloadLogger();
+            logger.downloadUrl = downloadUrl;
+            logger.fileSize = fileSize;
+            logger.block = block;
+            logger.threadSize = threadData.size();
+            logger.createDateTime = createDateTime;
+            logger.spentTime = spentTime;
+            logger.remoteLastModified = remoteLastModified;
+            List<DownloadSegment> segments = new ArrayList<DownloadSegment>(logger.threadSize);
+            long downloaded = 0;
+            for (int id = 1; id <= logger.threadSize; id++) {
+                long start = block * (id - 1);
+                if (start >= fileSize) break;   // 文件很小时后面的线程没有数据
+                long end = Math.min(block * id, fileSize) - 1;  // 最后一条线程的块可能超出文件末尾
+                Long length = threadData.get(id);
+                long position = start + Math.max(0, Math.min(length != null ? length : 0, end - start + 1));
+                segments.add(new DownloadSegment(id, start, end, position));
+                downloaded += position - start;
+            }
+            logger.segments = segments;
+            logger.downloadedSize = downloaded; // 以各线程的进度为准
+            return logger;
+        }
+    }
+
+    /**
+     * 读取旧版本记录的输入流，遇到分段下载之前的DownloadLogger时改用字段相同的LegacyRecord读取，
+     * 两者的serialVersionUID不同，直接读取会抛出InvalidClassException
+     */
+    private static final class LegacyInputStream extends ObjectInputStream {
+        LegacyInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass descriptor = super.readClassDescriptor();
+            if (DownloadLogger.class.getName().equals(descriptor.getName())
+                    && descriptor.getField("segments") == null && descriptor.getField("threadData") != null) {
+                return ObjectStreamClass.lookup(LegacyRecord.class);
+            }
+            return descriptor;
         }
     }
 }
@@ -0,0 +1,249 @@
+package com.example.netspeedtest.droidown;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 下载队列管理器，接收任意多个下载任务，按优先级排队，同时进行的任务数和所有任务合计的连接数都不超过全局上限。
+ * 任务结束(完成、暂停或失败)后交还连接，再启动排在最前面的任务。批量预取时可以占满链路又不会让连接互相争抢
+ */
+public final class DownloadManager {
+    private static final String TAG = "DownloadManager";    // 设置LogCat日志标签
+
+    private static final Comparator<Entry> BY_PRIORITY = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.priority != rhs.priority) {
+                return lhs.priority > rhs.priority ? -1 : 1;    // 优先级高的排在前面
+            }
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);   // 同优先级先来先下载
+        }
+    };
+
+    private final List<Entry> queue = new ArrayList<Entry>();   // 排队中的任务，按优先级排序
+    private final List<Entry> active = new ArrayList<Entry>();  // 进行中的任务
+    private int maxActiveTasks; // 同时进行的最大任务数
+    private int maxConnections; // 所有任务合计的最大连接数
+    private int usedConnections;    // 进行中的任务已经分配的连接数
+    private long nextSequence;  // 下一个入队任务的序号
+
+    /**
+     * 初始化一个下载队列管理器
+     *
+     * @param maxActiveTasks 同时进行的最大任务数，超过线程池控制通道的线程数时多出的任务仍要在线程池中排队
+     * @param maxConnections 所有任务合计的最大连接数
+     */
+    public DownloadManager(int maxActiveTasks, int maxConnections) {
+        this.maxActiveTasks = Math.max(1, maxActiveTasks);
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    public synchronized int getMaxActiveTasks() {
+        return maxActiveTasks;
+    }
+
+    /**
+     * 设置同时进行的最大任务数，调大时立即启动排队中的任务，调小时不会中断进行中的任务
+     *
+     * @param maxActiveTasks 任务数
+     */
+    public synchronized void setMaxActiveTasks(int maxActiveTasks) {
+        this.maxActiveTasks = Math.max(1, maxActiveTasks);
+        schedule();
+    }
+
+    public synchronized int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * 设置所有任务合计的最大连接数，调大时立即启动排队中的任务，调小时不会减少进行中的任务的连接
+     *
+     * @param maxConnections 连接数
+     */
+    public synchronized void setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+        schedule();
+    }
+
+    /**
+     * 把下载任务加入队列，有空闲的名额时立即开始下载
+     *
+     * @param task     下载任务
+     * @param priority 优先级，数值大的先下载
+     */
+    public synchronized void enqueue(DownloadTask task, int priority) {
+        if (find(queue, task) != null || find(active, task) != null) return;   // 防止同一个任务重复入队
+        queue.add(new Entry(task, priority, nextSequence++));
+        Collections.sort(queue, BY_PRIORITY);
+        schedule();
+    }
+
+    /**
+     * 调整排队中的任务的优先级，进行中的任务不受影响
+     *
+     * @param task     下载任务
+     * @param priority 新的优先级
+     * @return 任务在排队中为true，否则为false
+     */
+    public synchronized boolean setPriority(DownloadTask task, int priority) {
+        Entry entry = find(queue, task);
+        if (entry == null) return false;
+        entry.priority = priority;
+        Collections.sort(queue, BY_PRIORITY);
+        return true;
+    }
+
+    /**
+     * 把任务从队列中移除，进行中的任务会被暂停
+     *
+     * @param task 下载任务
+     */
+    public synchronized void remove(DownloadTask task) {
+        Entry entry = find(queue, task);
+        if (entry != null) {
+            queue.remove(entry);
+        } else if (find(active, task) != null) {
+            task.stop();    // 下载循环退出后会交还连接
+        }
+    }
+
+    /**
+     * 暂停所有进行中的任务并清空队列
+     */
+    public synchronized void stopAll() {
+        queue.clear();
+        for (Entry entry : active) {
+            entry.task.stop();
+        }
+    }
+
+    /**
+     * 扫描目录中的下载记录文件，把没有完成的下载重新加入队列
+     *
+     * @param dir      下载保存的目录
+     * @param priority 恢复的任务的优先级
+     * @return 恢复的任务
+     */
+    public List<DownloadTask> resume(File dir, int priority) {
+        List<DownloadTask> tasks = new ArrayList<DownloadTask>();
+        File[] logs = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String filename) {
+                return filename.endsWith(DownloadLogger.SUFFIX);
+            }
+        });
+        if (logs == null) return tasks;
+        for (File log : logs) {
+            try {
+                DownloadTask task = new DownloadTask(log);
+                tasks.add(task);
+                enqueue(task, priority);
+            } catch (IOException e) {
+                Log.w(TAG, "can't resume from " + log + ":" + e);   // 损坏的记录文件跳过
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * 获取排队中的任务，按下载的先后顺序排列
+     *
+     * @return 任务列表的副本
+     */
+    public synchronized List<DownloadTask> getQueuedTasks() {
+        return tasks(queue);
+    }
+
+    /**
+     * 获取进行中的任务
+     *
+     * @return 任务列表的副本
+     */
+    public synchronized List<DownloadTask> getActiveTasks() {
+        return tasks(active);
+    }
+
+    /**
+     * 获取进行中的任务合计使用的连接数
+     *
+     * @return 连接数
+     */
+    public synchronized int getUsedConnections() {
+        return usedConnections;
+    }
+
+    /**
+     * 在名额允许的范围内按顺序启动排队中的任务，连接不够一个任务的线程数时分给它剩余的连接
+     */
+    private void schedule() {
+        while (!queue.isEmpty() && active.size() < maxActiveTasks && usedConnections < maxConnections) {
+            final Entry entry = queue.remove(0);
+            final DownloadExecutor loader = entry.task.getDownloadExecutor();
+            entry.connections = Math.min(loader.getThreadSize(), maxConnections - usedConnections);
+            loader.setConnectionLimit(entry.connections);
+            usedConnections += entry.connections;
+            active.add(entry);
+            loader.getWorkerPool().executeControl(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        loader.download();  // 没有初始化时由download()初始化
+                    } catch (Exception e) {
+                        Log.w(TAG, Log.getStackTraceString(e));
+                    } finally {
+                        finish(entry);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 任务结束，交还连接并启动下一个任务
+     */
+    private synchronized void finish(Entry entry) {
+        if (active.remove(entry)) {
+            usedConnections -= entry.connections;
+        }
+        schedule();
+    }
+
+    private static Entry find(List<Entry> entries, DownloadTask task) {
+        for (Entry entry : entries) {
+            if (entry.task == task) return entry;
+        }
+        return null;
+    }
+
+    private static List<DownloadTask> tasks(List<Entry> entries) {
+        List<DownloadTask> tasks = new ArrayList<DownloadTask>(entries.size());
+        for (Entry entry : entries) {
+            tasks.add(entry.task);
+        }
+        return tasks;
+    }
+
+    /**
+     * 队列中的一个任务
+     */
+    private static final class Entry {
+        final DownloadTask task;
+        final long sequence;    // 入队序号
+        int priority;   // 优先级
+        int connections;    // 启动时分配的连接数
+
+        Entry(DownloadTask task, int priority, long sequence) {
+            this.task = task;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.netspeedtest.droidown;
+
+import android.os.Debug;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一次下载的统计数据：每条连接的ConnectionMetrics，以及整个下载占用的CPU时间、期间发生的垃圾回收和各阶段的耗时。
+ * 每次调用DownloadExecutor.download()都会重新统计，下载进行中随时可以查询，结束后可以用toJson()导出。
+ * 各阶段的名字：idleLatency(测量空闲延迟)、initialize(获取文件信息)、open(打开存储)、transfer(传输数据)、
+ * checkpoint(写检查点的累计时间，包含在transfer中)、verify(下载完成后的校验)、finish(同步和重命名文件)
+ */
+public final class DownloadMetrics {
+    private final ConnectionMetrics[] connections;  // 各条连接的统计，下标加1就是连接id
+    private final long startTime;   // 开始下载的时间，毫秒
+    private final long startNanos;  // 开始下载的单调时间，纳秒
+    private long endNanos;  // 结束下载的单调时间，纳秒，下载进行中为0
+    private long cpuNanos;  // 监视循环和多路复用引擎的线程占用的CPU时间，纳秒
+    private int gcCount;    // 检测到的垃圾回收次数
+    private WeakReference<Object> gcSentinel = new WeakReference<Object>(new Object()); // 只有弱引用的哨兵对象，被回收说明发生过垃圾回收
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>(); // 各阶段的耗时，纳秒
+
+    /**
+     * 开始统计一次下载
+     *
+     * @param connections 最多的连接数
+     */
+    DownloadMetrics(int connections) {
+        this.connections = new ConnectionMetrics[connections];
+        for (int i = 0; i < connections; i++) {
+            this.connections[i] = new ConnectionMetrics(i + 1);
+        }
+        this.startTime = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * 获取当前线程占用的CPU时间
+     *
+     * @return 纳秒，系统不支持时为-1
+     */
+    static long threadCpuTime() {
+        return Debug.threadCpuTimeNanos();
+    }
+
+    /**
+     * 累计监视循环或者多路复用引擎的线程占用的CPU时间
+     *
+     * @param nanos 纳秒
+     */
+    synchronized void addCpuTime(long nanos) {
+        if (nanos > 0) {
+            this.cpuNanos += nanos;
+        }
+    }
+
+    /**
+     * 累计一个阶段的耗时
+     *
+     * @param name  阶段的名字
+     * @param nanos 纳秒
+     */
+    synchronized void addPhase(String name, long nanos) {
+        Long time = this.phases.get(name);
+        this.phases.put(name, time != null ? time + nanos : nanos);
+    }
+
+    /**
+     * 检查上次调用之后是否发生过垃圾回收，由监视循环每次采样时调用，两次检查之间的多次回收只计一次
+     */
+    synchronized void checkGc() {
+        if (this.gcSentinel.get() == null) {
+            this.gcCount++;
+            this.gcSentinel = new WeakReference<Object>(new Object());
+        }
+    }
+
+    /**
+     * 下载结束，之后的耗时不再增加
+     */
+    synchronized void finish() {
+        if (this.endNanos == 0) {
+            this.endNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * 获取指定连接的统计
+     *
+     * @param id 连接id，从1开始
+     * @return 统计数据
+     */
+    public ConnectionMetrics getConnection(int id) {
+        return connections[id - 1];
+    }
+
+    /**
+     * 获取用到过的连接的统计，没有发出过请求也没有出过错的连接不包含在内
+     *
+     * @return 按连接id排列的列表
+     */
+    public List<ConnectionMetrics> getConnections() {
+        List<ConnectionMetrics> used = new ArrayList<ConnectionMetrics>();
+        for (ConnectionMetrics connection : connections) {
+            if (connection.getRequests() > 0 || connection.getFailures() > 0 || connection.getBytes() > 0) {
+                used.add(connection);
+            }
+        }
+        return used;
+    }
+
+    /**
+     * 获取开始下载的时间
+     *
+     * @return 毫秒
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * 获取下载已经花费的时间，结束后不再变化
+     *
+     * @return 毫秒
+     */
+    public synchronized long getElapsedTime() {
+        return ((endNanos != 0 ? endNanos : System.nanoTime()) - startNanos) / 1000000;
+    }
+
+    /**
+     * 获取整个下载占用的CPU时间，包括所有下载线程、监视循环和多路复用引擎
+     *
+     * @return 毫秒，系统不支持线程CPU时间时为0
+     */
+    public long getCpuTime() {
+        long nanos;
+        synchronized (this) {
+            nanos = cpuNanos;
+        }
+        long millis = nanos / 1000000;
+        for (ConnectionMetrics connection : connections) {
+            millis += connection.getCpuTime();
+        }
+        return millis;
+    }
+
+    /**
+     * 获取下载期间检测到的垃圾回收次数，按监视循环的采样间隔检测，同一个间隔里的多次回收只计一次
+     *
+     * @return 次数
+     */
+    public synchronized int getGcCount() {
+        return gcCount;
+    }
+
+    /**
+     * 获取各阶段的耗时，按第一次记录的顺序排列
+     *
+     * @return 阶段名到毫秒数的映射
+     */
+    public synchronized Map<String, Long> getPhaseTimes() {
+        Map<String, Long> times = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            times.put(phase.getKey(), phase.getValue() / 1000000);
+        }
+        return Collections.unmodifiableMap(times);
+    }
+
+    /**
+     * 获取所有连接从网络读到的数据长度
+     *
+     * @return 字节数
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (ConnectionMetrics connection : connections) {
+            bytes += connection.getBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * 导出为JSON
+     *
+     * @return JSON字符串
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"startTime\":").append(getStartTime())
+                .append(",\"elapsedTime\":").append(getElapsedTime())
+                .append(",\"cpuTime\":").append(getCpuTime())
+                .append(",\"gcCount\":").append(getGcCount())
+                .append(",\"bytes\":").append(getBytes())
+                .append(",\"phases\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> phase : getPhaseTimes().entrySet()) {
+            json.append(first ? "\"" : ",\"").append(phase.getKey()).append("\":").append(phase.getValue());
+            first = false;
+        }
+        json.append("},\"connections\":[");
+        first = true;
+        for (ConnectionMetrics connection : getConnections()) {
+            if (!first) {
+                json.append(',');
+            }
+            connection.appendJson(json);
+            first = false;
+        }
+        return json.append("]}").toString();
+    }
+}
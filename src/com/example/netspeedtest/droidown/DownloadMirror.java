@@ -0,0 +1,152 @@
+package com.example.netspeedtest.droidown;
+
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下载镜像，提供同一个文件的等价下载地址之一，记录从该镜像下载的长度、每条连接的速度以及是否已经被弃用
+ */
+public final class DownloadMirror {
+    private final URL url;  // 镜像的下载地址
+    private final long lastModified;    // 校验镜像时文件的最后修改时间，之后的每个请求都要一致
+    private final AtomicLong downloaded = new AtomicLong(); // 从该镜像下载的总长度
+    private final AtomicInteger connections = new AtomicInteger();  // 正在从该镜像读取数据的连接数
+    private volatile double rate;   // 每条连接的平滑速度，字节/秒
+    private volatile boolean dropped;   // 是否已经被弃用
+    private int failures;   // 连续失败的次数，由MirrorBalancer加锁访问
+    private long sampleTime;    // 上一次采样的时间，由监视循环访问
+    private long sampleBytes;   // 上一次采样时的下载长度
+    private long measuredTime;  // 有连接在下载时累计的采样时间
+
+    DownloadMirror(URL url, long lastModified) {
+        this.url = url;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * 获取镜像的下载地址
+     *
+     * @return 下载地址
+     */
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * 获取从该镜像下载的总长度
+     *
+     * @return 字节数
+     */
+    public long getDownloadedSize() {
+        return downloaded.get();
+    }
+
+    /**
+     * 获取每条连接的平滑速度
+     *
+     * @return 字节/秒，还没有测量时为0
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * 获取正在从该镜像读取数据的连接数
+     *
+     * @return 连接数
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * 判断镜像是否因为太慢或者连续出错已经被弃用
+     *
+     * @return 弃用了为true，否则为false
+     */
+    public boolean isDropped() {
+        return dropped;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * 累加从该镜像读到的数据长度，下载线程每次读取后调用
+     *
+     * @param size 字节数
+     */
+    void add(int size) {
+        downloaded.addAndGet(size);
+    }
+
+    /**
+     * 一条连接开始从该镜像读取数据
+     */
+    void opened() {
+        connections.incrementAndGet();
+    }
+
+    /**
+     * 一条连接不再从该镜像读取数据
+     */
+    void closed() {
+        connections.decrementAndGet();
+    }
+
+    void drop() {
+        dropped = true;
+    }
+
+    /**
+     * 记录一次请求失败
+     *
+     * @return 连续失败的次数
+     */
+    int fail() {
+        return ++failures;
+    }
+
+    void succeed() {
+        failures = 0;
+    }
+
+    /**
+     * 用两次采样之间的下载长度更新每条连接的平滑速度，没有连接在下载时不更新
+     *
+     * @param now    当前时间，毫秒
+     * @param window 平滑速度的时间常数，毫秒
+     * @return 这次采样是否更新了速度
+     */
+    boolean sample(long now, long window) {
+        long bytes = downloaded.get();
+        long elapsed = now - sampleTime;
+        int count = connections.get();
+        boolean first = sampleTime == 0;
+        sampleTime = now;
+        long delta = bytes - sampleBytes;
+        sampleBytes = bytes;
+        if (first || elapsed <= 0 || count == 0 && delta == 0) return false;
+        double current = delta * 1000.0 / elapsed / Math.max(1, count);
+        double alpha = 1 - Math.exp(-(double) elapsed / window);
+        rate = measuredTime == 0 ? current : rate + alpha * (current - rate);
+        measuredTime += elapsed;
+        return true;
+    }
+
+    /**
+     * 获取有连接在下载时累计的采样时间
+     *
+     * @return 毫秒
+     */
+    long getMeasuredTime() {
+        return measuredTime;
+    }
+
+    @Override
+    public String toString() {
+        return url.toString();
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.netspeedtest.droidown;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * 下载分段，描述文件中一段连续的字节区间[start, end]以及该区间已经下载到的位置
+ */
+final class DownloadSegment implements Serializable {
+    private static final long serialVersionUID = 1989968180089251088L;  // 增加字段之前的默认值，保证旧版本的下载记录仍然可以读取
+    /**
+     * 校验和未知，来自不带校验和的下载记录，或者下载时没有计算校验和
+     */
+    static final long UNKNOWN = -1;
+
+    private final int id;   // 分段id
+    private final long start;   // 分段的开始位置
+    private volatile long end;  // 分段的结束位置(包含)，被拆分时会缩短
+    private volatile long position; // 下一个要下载的字节位置
+    private long checksum;  // 已下载部分[start, position)的CRC32C校验和，UNKNOWN表示未知
+    private transient boolean assigned; // 是否已经分配给某条下载线程
+
+    /**
+     * 初始化一个分段
+     *
+     * @param id       分段id
+     * @param start    开始位置
+     * @param end      结束位置(包含)
+     * @param position 已经下载到的位置
+     */
+    DownloadSegment(int id, long start, long end, long position) {
+        this(id, start, end, position, position > start ? UNKNOWN : 0);
+    }
+
+    /**
+     * 初始化一个分段
+     *
+     * @param id       分段id
+     * @param start    开始位置
+     * @param end      结束位置(包含)
+     * @param position 已经下载到的位置
+     * @param checksum 已下载部分的CRC32C校验和，未知时为UNKNOWN
+     */
+    DownloadSegment(int id, long start, long end, long position, long checksum) {
+        this.id = id;
+        this.start = start;
+        this.end = end;
+        this.position = position;
+        this.checksum = checksum;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    long getEnd() {
+        return end;
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    /**
+     * 获取分段中还没有下载的长度
+     *
+     * @return 剩余字节数
+     */
+    long getRemaining() {
+        return end - position + 1;
+    }
+
+    /**
+     * 获取分段中已经下载的长度
+     *
+     * @return 已下载字节数
+     */
+    long getDownloaded() {
+        return position - start;
+    }
+
+    /**
+     * 判断分段是否已经下载完成
+     *
+     * @return 完成了为true，否则为false
+     */
+    boolean isComplete() {
+        return position > end;
+    }
+
+    boolean isAssigned() {
+        return assigned;
+    }
+
+    void setAssigned(boolean assigned) {
+        this.assigned = assigned;
+    }
+
+    /**
+     * 把已经写入的数据计入分段进度。分段可能在写入期间被拆分，超出新结束位置的部分不计入，
+     * 这部分数据与新分段的内容相同，重复写入不影响文件的正确性
+     *
+     * @param size 已经写入的字节数
+     * @return 实际计入进度的字节数
+     */
+    synchronized int advance(int size) {
+        long accepted = Math.min(size, end - position + 1);
+        if (accepted <= 0) return 0;
+        position += accepted;
+        checksum = UNKNOWN; // 没有经过校验和的数据
+        return (int) accepted;
+    }
+
+    /**
+     * 把已经写入的数据计入分段进度，同时累加校验和，只有计入进度的部分参与计算
+     *
+     * @param data   刚写入存储的数据
+     * @param offset 数据在缓冲区中的开始位置
+     * @param size   已经写入的字节数
+     * @return 实际计入进度的字节数
+     */
+    synchronized int advance(ByteBuffer data, int offset, int size) {
+        long accepted = Math.min(size, end - position + 1);
+        if (accepted <= 0) return 0;
+        position += accepted;
+        if (checksum != UNKNOWN) {
+            checksum = Crc32c.update((int) checksum, data, offset, (int) accepted) & 0xFFFFFFFFL;
+        }
+        return (int) accepted;
+    }
+
+    /**
+     * 获取已下载部分的校验和
+     *
+     * @return CRC32C校验和，未知时为UNKNOWN
+     */
+    synchronized long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * 丢弃已下载的数据，分段从头重新下载
+     *
+     * @return 丢弃的字节数
+     */
+    synchronized long rewind() {
+        long downloaded = position - start;
+        position = start;
+        checksum = 0;
+        return downloaded;
+    }
+
+    /**
+     * 把分段剩余部分的后一半拆分成新的分段
+     *
+     * @param newId   新分段的id
+     * @param minSize 拆分后每一半的最小长度
+     * @return 新分段，剩余长度不足以拆分时返回null
+     */
+    synchronized DownloadSegment split(int newId, long minSize) {
+        long remaining = end - position + 1;
+        if (remaining < minSize * 2) return null;
+        long middle = position + remaining / 2;
+        DownloadSegment tail = new DownloadSegment(newId, middle, end, middle);
+        this.end = middle - 1;
+        return tail;
+    }
+
+    /**
+     * 复制当前分段的状态，用于写入下载记录
+     *
+     * @return 分段副本
+     */
+    synchronized DownloadSegment copy() {
+        return new DownloadSegment(id, start, end, position, checksum);
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.netspeedtest.droidown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 下载数据的存储后端，所有下载线程共享同一个实例，按绝对位置写入数据
+ */
+public interface DownloadStorage {
+
+    /**
+     * 下载开始前打开存储，必要时预分配文件大小
+     *
+     * @param saveFile 数据保存到的本地文件
+     * @param fileSize 文件长度
+     * @throws IOException
+     */
+    void open(File saveFile, long fileSize) throws IOException;
+
+    /**
+     * 把缓冲区中剩余的数据写到文件的指定位置，可被多条下载线程同时调用
+     *
+     * @param src      数据缓冲区，返回时其中的数据已全部写入
+     * @param position 文件中的绝对位置
+     * @throws IOException
+     */
+    void write(ByteBuffer src, long position) throws IOException;
+
+    /**
+     * 从文件的指定位置读回已经写入的数据，用于下载完成前校验数据
+     *
+     * @param dst      数据读入的缓冲区，最多读满其剩余空间
+     * @param position 文件中的绝对位置
+     * @return 读到的字节数，到达文件末尾时返回-1
+     * @throws IOException 不保存数据的存储无法读回
+     */
+    int read(ByteBuffer dst, long position) throws IOException;
+
+    /**
+     * 把已经写入的数据强制同步到存储设备，检查点在写下载记录之前调用，保证下载记录不会超前于磁盘上的数据
+     *
+     * @throws IOException
+     */
+    void force() throws IOException;
+
+    /**
+     * 关闭存储并释放资源
+     *
+     * @throws IOException
+     */
+    void close() throws IOException;
+
+    /**
+     * 判断数据是否真正保存到本地，不保存时下载不生成下载记录，也无法断点续传
+     *
+     * @return 保存为true，否则为false
+     */
+    boolean isPersistent();
+}
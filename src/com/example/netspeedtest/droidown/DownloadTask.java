@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
 
 /**
  * 下载任务，针对Android环境对DownloadExecutor进行的封装，可避免下载的时候主线程阻塞
@@ -43,7 +44,156 @@ public final class DownloadTask implements Runnable {
     }
 
     /**
-     * 获取下载任务出错时重新连接的等待时间
+     * 获取初始切分时每个分段的长度
+     *
+     * @return 字节数
+     */
+    public long getSegmentSize() {
+        return loader.getSegmentSize();
+    }
+
+    /**
+     * 设置初始切分时每个分段的长度，需要在下载任务准备就绪之前设置
+     *
+     * @param segmentSize 字节数
+     */
+    public void setSegmentSize(long segmentSize) {
+        loader.setSegmentSize(segmentSize);
+    }
+
+    /**
+     * 开启连接数自动调节，从min条连接开始，只要每增加一条连接带来的速度增益不低于gain就继续增加，最多max条
+     *
+     * @param min  开始时的连接数
+     * @param max  允许的最大连接数
+     * @param gain 每增加一条连接至少带来的速度增益比例
+     */
+    public void setAutoConnections(int min, int max, double gain) {
+        loader.setAutoConnections(min, max, gain);
+    }
+
+    /**
+     * 设置通知下载进度的间隔，可以在下载进行中修改
+     *
+     * @param millis 毫秒
+     */
+    public void setProgressInterval(long millis) {
+        loader.setProgressInterval(millis);
+    }
+
+    /**
+     * 设置是否校验下载的数据
+     *
+     * @param verifying 是否校验
+     */
+    public void setVerifying(boolean verifying) {
+        loader.setVerifying(verifying);
+    }
+
+    /**
+     * 设置是否在下载过程中读回校验分段
+     *
+     * @param readingBack 是否读回
+     */
+    public void setReadingBack(boolean readingBack) {
+        loader.setReadingBack(readingBack);
+    }
+
+    /**
+     * 设置期望的整个文件的摘要
+     *
+     * @param algorithm 摘要算法，"MD5"或者"SHA-256"
+     * @param hex       十六进制表示的摘要，为null时使用服务器提供的摘要
+     */
+    public void setExpectedDigest(String algorithm, String hex) {
+        loader.setExpectedDigest(algorithm, hex);
+    }
+
+    /**
+     * 添加一个提供同一个文件的镜像地址，需要在下载任务准备就绪之前调用
+     *
+     * @param url 镜像地址
+     * @throws MalformedURLException
+     */
+    public void addMirror(String url) throws MalformedURLException {
+        loader.addMirror(url);
+    }
+
+    /**
+     * 获取准备就绪时通过校验的镜像，第一个是主下载地址
+     *
+     * @return 镜像列表
+     */
+    public List<DownloadMirror> getMirrors() {
+        return loader.getMirrors();
+    }
+
+    /**
+     * 限制最多使用的连接数
+     *
+     * @param limit 连接数，0为不限制
+     */
+    public void setConnectionLimit(int limit) {
+        loader.setConnectionLimit(limit);
+    }
+
+    /**
+     * 设置该下载任务的限速，可以在下载进行中修改
+     *
+     * @param bytesPerSecond 速度，字节/秒，0为不限速
+     * @param burst          允许突发的字节数，0时取1秒的量
+     */
+    public void setRateLimit(long bytesPerSecond, long burst) {
+        loader.setRateLimit(bytesPerSecond, burst);
+    }
+
+    /**
+     * 设置是否使用单线程多路复用的下载引擎，只支持http地址
+     *
+     * @param multiplexed 是否使用多路复用引擎
+     */
+    public void setMultiplexed(boolean multiplexed) {
+        loader.setMultiplexed(multiplexed);
+    }
+
+    /**
+     * 设置延迟探测器，下载开始前测量空闲延迟，下载过程中测量满载延迟
+     *
+     * @param latencyProbe 延迟探测器，为null时不测量延迟
+     */
+    public void setLatencyProbe(LatencyProbe latencyProbe) {
+        loader.setLatencyProbe(latencyProbe);
+    }
+
+    /**
+     * 获取延迟探测器
+     *
+     * @return 延迟探测器，没有设置时为null
+     */
+    public LatencyProbe getLatencyProbe() {
+        return loader.getLatencyProbe();
+    }
+
+    /**
+     * 获取连接出错时的重试策略
+     *
+     * @return 重试策略
+     */
+    public RetryPolicy getRetryPolicy() {
+        return loader.getRetryPolicy();
+    }
+
+    /**
+     * 设置连接出错时的重试策略
+     *
+     * @param retryPolicy 重试策略
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        loader.setRetryPolicy(retryPolicy);
+    }
+
+    /**
+     * 获取下载任务出错时退避的初始等待时间，第一次重试总是立即进行
      *
      * @return 毫秒
      */
@@ -52,7 +202,7 @@ public final class DownloadTask implements Runnable {
     }
 
     /**
-     * 设置下载任务出错时重新连接的等待时间
+     * 设置下载任务出错时退避的初始等待时间，第一次重试总是立即进行
      *
      * @param millis 毫秒
      */
@@ -61,7 +211,7 @@ public final class DownloadTask implements Runnable {
     }
 
     /**
-     * 获取下载线程可使用的缓冲区大小
+     * 获取下载线程缓冲区的初始大小
      *
      * @return 缓冲区大小
      */
@@ -70,7 +220,7 @@ public final class DownloadTask implements Runnable {
     }
 
     /**
-     * 设置下载线程可使用的缓冲区大小。如果下载任务当前正在下载中，会在任务暂停后才生效
+     * 设置下载线程缓冲区的初始大小，之后按每条连接的速度调整，最大1MB。如果下载任务当前正在下载中，会在任务暂停后才生效
      *
      * @param cacheSize 缓冲区大小
      */
@@ -96,6 +246,66 @@ public final class DownloadTask implements Runnable {
         loader.setRetryLimit(times);
     }
 
+    /**
+     * 判断下载任务是否只测速不保存
+     *
+     * @return 是为true，否则为false
+     */
+    public boolean isMeasureOnly() {
+        return loader.isMeasureOnly();
+    }
+
+    /**
+     * 设置下载任务只测速不保存，读到的数据直接丢弃，需要在下载任务准备就绪之前设置
+     *
+     * @param measureOnly 是否只测速
+     */
+    public void setMeasureOnly(boolean measureOnly) {
+        loader.setMeasureOnly(measureOnly);
+    }
+
+    /**
+     * 获取下载数据的存储后端
+     *
+     * @return 存储后端
+     */
+    public DownloadStorage getStorage() {
+        return loader.getStorage();
+    }
+
+    /**
+     * 设置下载数据的存储后端，需要在下载任务准备就绪之前设置
+     *
+     * @param storage 存储后端
+     */
+    public void setStorage(DownloadStorage storage) {
+        loader.setStorage(storage);
+    }
+
+    /**
+     * 设置两次检查点之间的最长时间和最多下载的长度，达到其中之一就把数据和下载记录一起同步到存储设备
+     *
+     * @param millis 毫秒
+     * @param bytes  字节数
+     */
+    public void setCheckpoint(long millis, long bytes) {
+        loader.setCheckpointInterval(millis);
+        loader.setCheckpointBytes(bytes);
+    }
+
+    /**
+     * 设置自动停止下载的条件，任何一个条件满足都会停止，通过DownloadExecutor.getStopReason()可以知道停止的原因
+     *
+     * @param band   稳态速度收敛的判定范围(置信区间相对半宽)，0为不检测收敛
+     * @param millis 单次下载的最长时间，0为不限制
+     * @param bytes  单次下载的最大长度，0为不限制
+     */
+    public void setStopCondition(double band, long millis, long bytes) {
+        loader.setConvergenceBand(band);
+        loader.setTimeLimit(millis);
+        loader.setByteLimit(bytes);
+    }
+
     /**
      * 获取下载任务到目前为止已经花费的时间
      *
@@ -141,6 +351,25 @@ public final class DownloadTask implements Runnable {
         return loader.getDownloadedSize();
     }
 
+    /**
+     * 把最近一次通知的进度复制到使用方持有的快照中，快照可以反复使用
+     *
+     * @param target 使用方持有的快照
+     * @return target
+     */
+    public ProgressSnapshot readProgress(ProgressSnapshot target) {
+        return loader.readProgress(target);
+    }
+
+    /**
+     * 获取最近一次下载的统计数据，包括每条连接的流量、首字节时间、停顿和错误，以及CPU时间和各阶段耗时
+     *
+     * @return 统计数据
+     */
+    public DownloadMetrics getMetrics() {
+        return loader.getMetrics();
+    }
+
     /**
      * 获得执行当前下载任务的DownloadExecutor实例
      *
@@ -160,7 +389,7 @@ public final class DownloadTask implements Runnable {
     }
 
     /**
-     * 初始化一个下载任务，默认的下载线程数量为1条，缓存空间为1024 * 5字节，下载遇到问题时会重新连接35次，每次等待时间1000 * 5毫秒
+     * 初始化一个下载任务，默认的下载线程数量为1条，缓存空间从64KB开始按速度调整，下载遇到问题时按RetryPolicy重新连接：第一次立即重试，之后从500毫秒开始指数退避，最长等待30秒，平均每条连接连续失败35次时放弃
      *
      * @param downloadUrl   下载路径
      * @param saveDirectory 下载要保存到的目录
@@ -172,7 +401,7 @@ public final class DownloadTask implements Runnable {
     }
 
     /**
-     * 初始化一个下载任务，默认的下载线程数量为1条，缓存空间为1024 * 5字节，下载遇到问题时会重新连接35次，每次等待时间1000 * 5毫秒
+     * 初始化一个下载任务，默认的下载线程数量为1条，缓存空间从64KB开始按速度调整，下载遇到问题时按RetryPolicy重新连接：第一次立即重试，之后从500毫秒开始指数退避，最长等待30秒，平均每条连接连续失败35次时放弃
      *
      * @param downloadUrl   下载路径
      * @param saveDirectory 下载要保存到的目录
@@ -242,7 +471,7 @@ public final class DownloadTask implements Runnable {
     public void start() {
         if (!loader.isDownloading()) {
             justGetReady = false;
-            new Thread(this).start();   // 开始下载
+            loader.getWorkerPool().executeControl(this);   // 在共享线程池中开始下载
         }
     }
 
@@ -261,7 +490,7 @@ public final class DownloadTask implements Runnable {
     public void prepare() {
         if (!loader.isInitialized()) {
             justGetReady = true;
-            new Thread(this).start();
+            loader.getWorkerPool().executeControl(this);
         }
     }
 
@@ -280,11 +509,12 @@ public final class DownloadTask implements Runnable {
     @Override
     public void run() {
         try {
-            if (!loader.isInitialized()) {
-                loader.initialize();
-            }
-            if (!justGetReady) {
-                loader.download();
+            if (justGetReady) {
+                if (!loader.isInitialized()) {
+                    loader.initialize();
+                }
+            } else {
+                loader.download();  // 由download()初始化，设置了延迟探测器时先测空闲延迟再发出初始化请求，初始化响应流仍然可以接着读取
             }
 
         } catch (Exception e) {
@@ -0,0 +1,252 @@
+package com.example.netspeedtest.droidown;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 所有下载和上传任务共享的有界线程池，分为两条通道：
+ * 控制通道运行任务的初始化和监视循环，传输通道运行分段下载作业。
+ * 传输作业每完成一个分段检查一次是否有其他作业在排队，有就让出线程重新排队，多个任务同时进行时按顺序轮流使用工作线程，
+ * 出错重试的作业延迟排队而不是占着线程休眠
+ */
+public final class DownloadWorkerPool {
+    private static DownloadWorkerPool defaultPool;  // 默认的共享线程池
+
+    private final Lane control; // 控制通道
+    private final Lane transfer;    // 传输通道
+
+    /**
+     * 创建一个线程池
+     *
+     * @param controlThreads   控制通道的最大线程数，即最多同时进行的任务数，多出的任务排队等待
+     * @param transferThreads  传输通道的最大线程数，即所有任务合计最多同时进行的连接数
+     * @param transferPriority 传输线程的优先级，Thread.MIN_PRIORITY到Thread.MAX_PRIORITY之间
+     */
+    public DownloadWorkerPool(int controlThreads, int transferThreads, int transferPriority) {
+        ThreadPoolExecutor controlExecutor = new ThreadPoolExecutor(controlThreads, controlThreads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("droidown-control-", Thread.NORM_PRIORITY));
+        controlExecutor.allowCoreThreadTimeOut(true);   // 空闲时不保留线程
+        ScheduledThreadPoolExecutor transferExecutor = new ScheduledThreadPoolExecutor(transferThreads,
+                new NamedThreadFactory("droidown-transfer-", transferPriority));
+        transferExecutor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        transferExecutor.allowCoreThreadTimeOut(true);
+        this.control = new Lane(controlExecutor, null);
+        this.transfer = new Lane(transferExecutor, transferExecutor);
+    }
+
+    /**
+     * 获取默认的共享线程池，最多同时进行4个任务，合计32条连接，传输线程优先级为7
+     *
+     * @return 线程池
+     */
+    public static synchronized DownloadWorkerPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new DownloadWorkerPool(4, 32, 7);
+        }
+        return defaultPool;
+    }
+
+    /**
+     * 替换默认的共享线程池，只影响之后创建的任务
+     *
+     * @param pool 线程池
+     */
+    public static synchronized void setDefault(DownloadWorkerPool pool) {
+        defaultPool = pool;
+    }
+
+    /**
+     * 获取控制通道
+     *
+     * @return 控制通道
+     */
+    public Lane getControlLane() {
+        return control;
+    }
+
+    /**
+     * 获取传输通道
+     *
+     * @return 传输通道
+     */
+    public Lane getTransferLane() {
+        return transfer;
+    }
+
+    /**
+     * 在控制通道中运行任务
+     *
+     * @param task 任务
+     */
+    void executeControl(Runnable task) {
+        control.execute(task, 0);
+    }
+
+    /**
+     * 判断传输通道中是否有等待线程的作业，传输作业据此决定是否让出线程
+     *
+     * @return 有为true，否则为false
+     */
+    boolean hasWaitingTransfers() {
+        return transfer.waiting.get() > 0;
+    }
+
+    /**
+     * 在传输通道中运行作业
+     *
+     * @param job    作业
+     * @param millis 延迟排队的时间，毫秒
+     */
+    void executeTransfer(Runnable job, long millis) {
+        transfer.execute(job, millis);
+    }
+
+    /**
+     * 一条通道，记录线程数、排队数和作业的等待时间
+     */
+    public static final class Lane {
+        private final ThreadPoolExecutor executor;
+        private final ScheduledThreadPoolExecutor scheduler;    // 支持延迟排队时不为null
+        private final AtomicLong waitTime = new AtomicLong();   // 作业等待时间的总和，纳秒
+        private final AtomicLong maxWaitTime = new AtomicLong();    // 作业等待时间的最大值，纳秒
+        private final AtomicLong started = new AtomicLong();    // 已经开始运行的作业数
+        private final AtomicInteger waiting = new AtomicInteger();  // 已经可以运行但还在排队的作业数，不包括延迟排队的作业
+
+        Lane(ThreadPoolExecutor executor, ScheduledThreadPoolExecutor scheduler) {
+            this.executor = executor;
+            this.scheduler = scheduler;
+        }
+
+        void execute(Runnable job, long millis) {
+            boolean delayed = millis > 0 && scheduler != null;
+            TimedJob timed = new TimedJob(job, System.nanoTime() + millis * 1000000, delayed);
+            if (delayed) {
+                scheduler.schedule(timed, millis, TimeUnit.MILLISECONDS);
+            } else {
+                waiting.incrementAndGet();
+                executor.execute(timed);
+            }
+        }
+
+        /**
+         * 获取通道当前的线程数
+         *
+         * @return 线程数
+         */
+        public int getPoolSize() {
+            return executor.getPoolSize();
+        }
+
+        /**
+         * 获取通道的最大线程数
+         *
+         * @return 线程数
+         */
+        public int getMaximumPoolSize() {
+            return executor.getCorePoolSize();
+        }
+
+        /**
+         * 获取正在运行作业的线程数
+         *
+         * @return 线程数
+         */
+        public int getActiveCount() {
+            return executor.getActiveCount();
+        }
+
+        /**
+         * 获取排队等待的作业数，包括延迟排队的重试作业
+         *
+         * @return 作业数
+         */
+        public int getQueueDepth() {
+            return executor.getQueue().size();
+        }
+
+        /**
+         * 获取已经开始运行的作业数
+         *
+         * @return 作业数
+         */
+        public long getStartedCount() {
+            return started.get();
+        }
+
+        /**
+         * 获取作业从排队到开始运行的平均等待时间
+         *
+         * @return 毫秒
+         */
+        public double getAverageWaitTime() {
+            long count = started.get();
+            return count > 0 ? waitTime.get() / 1000000.0 / count : 0;
+        }
+
+        /**
+         * 获取作业从排队到开始运行的最长等待时间
+         *
+         * @return 毫秒
+         */
+        public double getMaxWaitTime() {
+            return maxWaitTime.get() / 1000000.0;
+        }
+
+        /**
+         * 记录等待时间的作业包装
+         */
+        private final class TimedJob implements Runnable {
+            private final Runnable job;
+            private final long due; // 作业应该开始运行的时间，纳秒
+            private final boolean delayed;  // 是否延迟排队
+
+            TimedJob(Runnable job, long due, boolean delayed) {
+                this.job = job;
+                this.due = due;
+                this.delayed = delayed;
+            }
+
+            @Override
+            public void run() {
+                if (!delayed) {
+                    waiting.decrementAndGet();
+                }
+                long wait = Math.max(0, System.nanoTime() - due);
+                waitTime.addAndGet(wait);
+                started.incrementAndGet();
+                long max;
+                while (wait > (max = maxWaitTime.get()) && !maxWaitTime.compareAndSet(max, wait)) {
+                    // 其他线程同时更新了最大值，重新比较
+                }
+                job.run();
+            }
+        }
+    }
+
+    /**
+     * 为线程命名并设置优先级
+     */
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;    // 线程名前缀
+        private final int priority; // 线程优先级
+        private final AtomicInteger count = new AtomicInteger();    // 已经创建的线程数
+
+        NamedThreadFactory(String prefix, int priority) {
+            this.prefix = prefix;
+            this.priority = priority;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setPriority(priority);
+            thread.setDaemon(true); // 不阻止进程退出
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.netspeedtest.droidown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 默认的存储后端，所有下载线程共享一个FileChannel，按位置写入无需seek，只在检查点时同步到存储设备
+ */
+public final class FileChannelStorage implements DownloadStorage {
+    private RandomAccessFile file;  // 数据保存到的本地文件
+    private FileChannel channel;    // 共享的文件通道
+
+    @Override
+    public void open(File saveFile, long fileSize) throws IOException {
+        this.file = new RandomAccessFile(saveFile, "rw");
+        if (fileSize > 0 && this.file.length() != fileSize) {
+            this.file.setLength(fileSize);  // 设置文件的大小
+        }
+        this.channel = this.file.getChannel();
+    }
+
+    @Override
+    public void write(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {    // 按位置写入可能只写入一部分
+            position += channel.write(src, position);
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        return channel.read(dst, position);
+    }
+
+    @Override
+    public void force() throws IOException {
+        if (channel == null) return;    // 存储还没有打开或已经关闭
+        channel.force(false);   // 只需要同步文件内容，文件长度在打开时已经确定
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();   // 同时关闭文件通道
+            file = null;
+            channel = null;
+        }
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.netspeedtest.droidown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * 统一创建下载请求并负责把用完的连接交还给系统的连接池。
+ * HttpURLConnection只有在响应体被完整读完后才会把连接放回连接池复用，提前关闭则会断开TCP(和TLS)连接，
+ * 所以剩余不多的响应体会被读完丢弃，让拆分后的分段、重试的线程都能直接使用已经建立好的连接
+ */
+final class HttpConnector {
+    /**
+     * 为了复用连接最多读完丢弃的响应体长度，超过时直接断开比读完更快
+     */
+    static final long DRAIN_LIMIT = 64 * 1024;
+
+    private HttpConnector() {
+    }
+
+    /**
+     * 打开一个下载请求，此时尚未真正连接
+     *
+     * @param url   下载路径
+     * @param range Range请求头的值，为null时请求整个文件
+     * @return HttpURLConnection对象
+     * @throws IOException
+     */
+    static HttpURLConnection open(URL url, String range) throws IOException {
+        HttpURLConnection http = (HttpURLConnection) url.openConnection();  // 有空闲的长连接时系统会直接复用
+        http.setConnectTimeout(5 * 1000);   // 设置连接超时时间为5秒钟
+        http.setReadTimeout(30 * 1000); // 读取超时，卡住的连接按超时重试，暂停时等待下载线程退出也不会无限期阻塞
+        http.setRequestMethod("GET");   // 设置请求的方法为GET
+        http.setRequestProperty("Accept", "image/gif, image/jpeg, image/pjpeg, image/pjpeg, application/x-shockwave-flash, application/xaml+xml, application/vnd.ms-xpsdocument, application/x-ms-xbap, application/x-ms-application, application/vnd.ms-excel, application/vnd.ms-powerpoint, application/msword, */*");   // 设置客户端可以接受的返回数据类型
+        http.setRequestProperty("Accept-Language", "zh-CN");    // 设置客户端使用的语言问中文
+        http.setRequestProperty("Referer", url.toString()); // 设置请求的来源，便于对访问来源进行统计
+        http.setRequestProperty("Charset", "UTF-8");    // 设置通信编码为UTF-8
+        if (range != null) {
+            http.setRequestProperty("Range", range);    // 设置获取实体数据的范围
+        }
+        http.setRequestProperty("User-Agent", "Mozilla/4.0 (compatible; MSIE 8.0; Windows NT 5.2; Trident/4.0; .NET CLR 1.1.4322; .NET CLR 2.0.50727; .NET CLR 3.0.04506.30; .NET CLR 3.0.4506.2152; .NET CLR 3.5.30729)"); // 客户端用户代理
+        http.setRequestProperty("Connection", "Keep-Alive");    // 使用长连接
+        return http;
+    }
+
+    /**
+     * 检查206响应的Content-Range是否从请求的位置开始，服务器返回了别的范围时数据会被写到错误的位置
+     *
+     * @param contentRange Content-Range响应头的值
+     * @param start        请求的开始位置
+     * @return 一致为true，否则为false
+     */
+    static boolean isRangeFrom(String contentRange, long start) {
+        if (contentRange == null || !contentRange.regionMatches(true, 0, "bytes ", 0, 6)) return false;
+        int dash = contentRange.indexOf('-', 6);
+        if (dash < 0) return false;
+        try {
+            return Long.parseLong(contentRange.substring(6, dash).trim()) == start;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 从Content-Range中取出文件的总长度
+     *
+     * @param contentRange Content-Range响应头的值
+     * @return 文件长度，未知时返回-1
+     */
+    static long getRangeTotal(String contentRange) {
+        int slash = contentRange != null ? contentRange.indexOf('/') : -1;
+        if (slash < 0) return -1;
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;  // 服务器用*表示长度未知
+        }
+    }
+
+    /**
+     * 关闭响应流，剩余的响应体不超过DRAIN_LIMIT时先读完，使连接回到连接池
+     *
+     * @param in     响应流
+     * @param unread 还没有读取的响应体长度
+     * @param buffer 读取丢弃数据用的缓存
+     */
+    static void release(InputStream in, long unread, byte[] buffer) {
+        try {
+            if (unread > 0 && unread <= DRAIN_LIMIT) {
+                while (in.read(buffer) != -1) {
+                    // 丢弃拆分点之后的数据
+                }
+            }
+        } catch (IOException ignored) {
+            // 读完失败时连接不会被复用，直接关闭即可
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 读完并关闭错误响应的响应体，使出错的请求也不会浪费连接
+     *
+     * @param http   HttpURLConnection对象
+     * @param buffer 读取丢弃数据用的缓存
+     */
+    static void discardError(HttpURLConnection http, byte[] buffer) {
+        InputStream error = http.getErrorStream();
+        if (error != null) {
+            release(error, http.getContentLength() >= 0 ? http.getContentLength() : DRAIN_LIMIT, buffer);
+        }
+    }
+
+    /**
+     * 保证系统连接池为每个服务器保留的空闲长连接数不少于下载使用的连接数，默认只有5个，多余的连接用完就会被断开。
+     * 该设置对整个进程有效，只会调大不会调小。系统在第一次建立连接时读取该值，所以要在创建下载器时就调用
+     *
+     * @param connections 连接数
+     */
+    static synchronized void ensurePoolSize(int connections) {
+        System.setProperty("http.keepAlive", "true");
+        int current = 5;
+        try {
+            current = Integer.parseInt(System.getProperty("http.maxConnections", "5"));
+        } catch (NumberFormatException ignored) {
+        }
+        if (connections > current) {
+            System.setProperty("http.maxConnections", String.valueOf(connections));
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.netspeedtest.droidown;
+
+import java.io.IOException;
+
+/**
+ * 服务器返回了不能使用的响应码，重试策略根据响应码决定是否重试
+ */
+final class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+    private final int code; // 响应码
+
+    HttpStatusException(int code, String message) {
+        super(message);
+        this.code = code;
+    }
+
+    int getCode() {
+        return code;
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.netspeedtest.droidown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 完整性校验器，下载线程为每个分段累加CRC32C，校验器按顺序计算整个文件的摘要，用于和服务器或者调用者提供的摘要比较。
+ * 下载线程写到摘要已经计算到的位置时直接把收到的数据计入摘要，不需要读回；其他线程抢先写下的数据等摘要追上时再从存储读回，
+ * 下载过程中每次只读回有限的长度，读回的数据通常还在页缓存中。
+ * <p>
+ * 默认不读回比较分段的校验和，只有整个文件的摘要不一致时才读回全部分段，找出磁盘上的数据与收到的数据不一致的分段单独重新下载。
+ * 打开读回校验后，从文件开头沿着已经下载完成的连续分段向后推进，把每个分段读回与校验和比较，发现写错位置或者进度计错的分段，
+ * 这时摘要也从读回的数据计算。
+ * <p>
+ * 分段的CRC32C是对收到的数据累加的，只能证明磁盘上的数据就是收到的数据，不能证明收到的数据是对的：
+ * 服务器返回了错误范围或者损坏的内容时，校验和会跟着一起错，分段校验照样通过。错误的范围由请求时检查Content-Range防止，
+ * 内容本身是否正确只能靠整个文件的摘要判断。没有摘要时，校验和未知的分段(从旧版本下载记录恢复的分段)读回也发现不了问题，直接跳过
+ */
+final class IntegrityVerifier {
+    private final DownloadStorage storage;  // 读回数据的存储
+    private final long fileSize;    // 文件长度
+    private final MessageDigest digest; // 整个文件的摘要，不需要时为null
+    private final ByteBuffer buffer;    // 读回数据的缓冲区
+    private final boolean readingBack;  // 是否读回全部分段比较校验和
+    private volatile long frontier; // 已经校验到的位置，之前的数据都已经校验通过并计入摘要
+    private byte[] result;  // 整个文件的摘要，校验完成后才有
+
+    /**
+     * 初始化校验器
+     *
+     * @param storage     读回数据的存储
+     * @param fileSize    文件长度
+     * @param digest      计算整个文件摘要的MessageDigest，不需要时为null
+     * @param bufferSize  读回数据的缓冲区大小
+     * @param readingBack 是否读回全部分段比较校验和
+     */
+    IntegrityVerifier(DownloadStorage storage, long fileSize, MessageDigest digest, int bufferSize, boolean readingBack) {
+        this.storage = storage;
+        this.fileSize = fileSize;
+        this.digest = digest;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.readingBack = readingBack;
+    }
+
+    /**
+     * 下载线程把数据写入存储并计入分段进度之后调用，数据正好从摘要计算到的位置开始时直接计入摘要
+     *
+     * @param position 数据在文件中的开始位置
+     * @param data     刚写入存储的数据
+     * @param offset   数据在缓冲区中的开始位置
+     * @param size     计入分段进度的字节数
+     */
+    void feed(long position, ByteBuffer data, int offset, int size) {
+        if (readingBack || digest == null || position != frontier || size <= 0) return;   // 不加锁先排除大多数写入
+        synchronized (this) {
+            if (position != frontier) return;   // 校验器已经从存储读回了这部分数据
+            ByteBuffer view = data.duplicate();
+            view.limit(offset + size);
+            view.position(offset);
+            digest.update(view);
+            frontier = position + size;
+        }
+    }
+
+    /**
+     * 从已经校验到的位置开始向后推进，读满limit后停下。读回校验时只校验已经下载完成的连续分段，并在分段边界停下；
+     * 否则读回已经写入存储但还没有计入摘要的数据，追上正在下载的位置后由下载线程继续计入
+     *
+     * @param scheduler 分段调度器
+     * @param limit     本次最多读回的字节数
+     * @return 读回的数据与下载时的校验和不一致的分段，校验停在它的开始位置；没有发现时返回null
+     * @throws IOException
+     */
+    synchronized DownloadSegment verify(SegmentScheduler scheduler, long limit) throws IOException {
+        long read = 0;
+        DownloadSegment segment;
+        while (read < limit && frontier < fileSize) {
+            if (!readingBack) {
+                if (digest == null) {
+                    frontier = fileSize;    // 没有需要读回的内容
+                    break;
+                }
+                segment = scheduler.getContaining(frontier);
+                long written = segment != null ? segment.getPosition() : frontier;  // 分段中已经写入存储的位置
+                if (written <= frontier) break;    // 等待下载线程写到这里
+                long end = frontier + Math.min(written - frontier, limit - read);
+                readBack(frontier, end, false, true);
+                read += end - frontier;
+                frontier = end;
+                continue;
+            }
+            if ((segment = scheduler.getCompleted(frontier)) == null) break;
+            long expected = segment.getChecksum();
+            if (expected == DownloadSegment.UNKNOWN && digest == null) {
+                frontier = segment.getEnd() + 1;    // 没有可比较的内容，不读回
+                continue;
+            }
+            int crc = readBack(segment.getStart(), segment.getEnd() + 1, true, true);
+            read += segment.getEnd() + 1 - segment.getStart();
+            if (expected != DownloadSegment.UNKNOWN && expected != (crc & 0xFFFFFFFFL)) {
+                return segment; // 磁盘上的数据不是下载时收到的数据
+            }
+            frontier = segment.getEnd() + 1;
+        }
+        if (frontier >= fileSize && digest != null && result == null) {
+            result = digest.digest();
+        }
+        return null;
+    }
+
+    /**
+     * 整个文件的摘要不一致时调用，读回全部分段与下载时累加的校验和比较，找出磁盘上的数据与收到的数据不一致的分段。
+     * 读回校验时每个分段都已经比较过，不再读回
+     *
+     * @param scheduler 分段调度器
+     * @return 不一致的分段，为空时说明磁盘上的数据就是收到的数据，服务器发来的内容本身是错的
+     * @throws IOException
+     */
+    synchronized List<DownloadSegment> locate(SegmentScheduler scheduler) throws IOException {
+        List<DownloadSegment> corrupted = new ArrayList<DownloadSegment>();
+        if (readingBack) return corrupted;
+        for (DownloadSegment segment : scheduler.snapshot()) {
+            long expected = segment.getChecksum();
+            if (expected != DownloadSegment.UNKNOWN
+                    && expected != (readBack(segment.getStart(), segment.getEnd() + 1, true, false) & 0xFFFFFFFFL)) {
+                corrupted.add(segment);
+            }
+        }
+        return corrupted;
+    }
+
+    /**
+     * 读回[from, to)的数据
+     *
+     * @param from     开始位置
+     * @param to       结束位置(不包含)
+     * @param checking 是否计算CRC32C
+     * @param hashing  是否计入整个文件的摘要
+     * @return 读回数据的CRC32C，不计算时为0
+     * @throws IOException
+     */
+    private int readBack(long from, long to, boolean checking, boolean hashing) throws IOException {
+        int crc = 0;
+        long position = from;
+        while (position < to) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), to - position));
+            int n = storage.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            if (checking) {
+                crc = Crc32c.update(crc, buffer.array(), 0, n);
+            }
+            if (hashing && digest != null) {
+                digest.update(buffer.array(), 0, n);
+            }
+            position += n;
+        }
+        return crc;
+    }
+
+    /**
+     * 校验失败的分段重新下载之后调用，整个文件的摘要已经包含了坏数据，需要从头重新计算
+     */
+    synchronized void refetched() {
+        if (digest != null) {
+            digest.reset();
+            frontier = 0;
+            result = null;
+        }
+    }
+
+    /**
+     * 判断整个文件是否都已经校验过
+     *
+     * @return 是为true，否则为false
+     */
+    boolean isFinished() {
+        return frontier >= fileSize;
+    }
+
+    /**
+     * 获取已经校验到的位置
+     *
+     * @return 之前的数据都已经校验通过
+     */
+    long getFrontier() {
+        return frontier;
+    }
+
+    /**
+     * 获取整个文件的摘要
+     *
+     * @return 摘要，还没有校验完成或者不计算摘要时返回null
+     */
+    synchronized byte[] getDigest() {
+        return result;
+    }
+}
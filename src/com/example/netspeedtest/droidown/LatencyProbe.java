@@ -0,0 +1,292 @@
+package com.example.netspeedtest.droidown;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+
+/**
+ * 延迟探测器，反复对测速服务器建立新的TCP连接并发送一个HEAD请求，测量TCP连接时间和首字节时间(TTFB)。
+ * 空闲时先测一组作为基准，下载连接占满链路时在后台线程中继续测量，两者中位数之差就是缓冲膨胀(bufferbloat)带来的额外延迟。
+ * 每次探测只交换几百字节，请求报文预先生成，采样保存在定长数组中，不会影响测速结果。
+ * 只有http地址能测首字节时间，https地址只测TCP连接时间
+ */
+public final class LatencyProbe implements Runnable {
+    private static final String TAG = "LatencyProbe";   // 设置LogCat日志标签
+    private static final int CAPACITY = 1024;   // 每组最多保存的采样数，超过后覆盖最旧的采样
+
+    private final String host;  // 测速服务器地址
+    private final int port; // 测速服务器端口
+    private final byte[] request;   // 预先生成的HEAD请求报文，为null时不测首字节时间
+    private final byte[] response = new byte[512];  // 读取响应用的缓存
+    private final Recorder idleConnect = new Recorder();    // 空闲时的TCP连接时间
+    private final Recorder idleTtfb = new Recorder();   // 空闲时的首字节时间
+    private final Recorder loadedConnect = new Recorder();  // 满载时的TCP连接时间
+    private final Recorder loadedTtfb = new Recorder(); // 满载时的首字节时间
+    private long interval = 250;    // 满载时两次探测之间的间隔，毫秒，每秒4次探测不会明显占用测速的链路
+    private long idleInterval = 50; // 空闲时两次探测之间的间隔，毫秒，开始下载之前尽快测完
+    private int idleCount = 10; // 空闲时的探测次数
+    private int timeout = 2000; // 单次探测的超时时间，毫秒
+    private volatile boolean running;   // 后台探测进行中标志
+    private Thread thread;  // 满载时进行探测的后台线程
+    private int failures;   // 探测失败的次数
+
+    /**
+     * 初始化一个延迟探测器
+     *
+     * @param url 测速服务器上的地址，通常就是下载地址
+     */
+    public LatencyProbe(URL url) {
+        this.host = url.getHost();
+        this.port = url.getPort() > 0 ? url.getPort() : url.getDefaultPort();
+        if ("http".equalsIgnoreCase(url.getProtocol())) {
+            String path = url.getFile().length() > 0 ? url.getFile() : "/";
+            this.request = ("HEAD " + path + " HTTP/1.1\r\nHost: " + url.getAuthority()
+                    + "\r\nConnection: close\r\n\r\n").getBytes();
+        } else {
+            this.request = null;
+        }
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * 设置满载时两次探测之间的间隔
+     *
+     * @param millis 毫秒
+     */
+    public void setInterval(long millis) {
+        this.interval = Math.max(0, millis);
+    }
+
+    public long getIdleInterval() {
+        return idleInterval;
+    }
+
+    /**
+     * 设置空闲时两次探测之间的间隔
+     *
+     * @param millis 毫秒
+     */
+    public void setIdleInterval(long millis) {
+        this.idleInterval = Math.max(0, millis);
+    }
+
+    public int getIdleCount() {
+        return idleCount;
+    }
+
+    /**
+     * 设置空闲时的探测次数
+     *
+     * @param count 次数
+     */
+    public void setIdleCount(int count) {
+        this.idleCount = count;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * 设置单次探测的超时时间
+     *
+     * @param millis 毫秒
+     */
+    public void setTimeout(int millis) {
+        this.timeout = millis;
+    }
+
+    /**
+     * 在开始下载之前测量空闲时的延迟，会阻塞当前线程
+     *
+     * @throws InterruptedException
+     */
+    public void measureIdle() throws InterruptedException {
+        idleConnect.clear();
+        idleTtfb.clear();
+        for (int i = 0; i < idleCount; i++) {
+            if (i > 0) {
+                Thread.sleep(idleInterval);
+            }
+            probe(idleConnect, idleTtfb);
+        }
+    }
+
+    /**
+     * 开始在后台测量满载时的延迟
+     */
+    public synchronized void start() {
+        if (running) return;
+        loadedConnect.clear();
+        loadedTtfb.clear();
+        running = true;
+        thread = new Thread(this, TAG);
+        thread.setDaemon(true); // 不阻止进程退出
+        thread.setPriority(Thread.NORM_PRIORITY);   // 不继承调用者的优先级，太低时调度延迟会被算进测得的延迟
+        thread.start();
+    }
+
+    /**
+     * 停止后台测量，等待正在进行的探测结束
+     */
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(timeout * 2L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    /**
+     * 判断后台测量是否进行中
+     *
+     * @return 进行中为true，否则为false
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                probe(loadedConnect, loadedTtfb);
+                Thread.sleep(interval);
+            }
+        } catch (InterruptedException e) {
+            // 被stop()中断，正常退出
+        }
+    }
+
+    /**
+     * 进行一次探测
+     *
+     * @param connect 记录TCP连接时间
+     * @param ttfb    记录首字节时间
+     */
+    private void probe(Recorder connect, Recorder ttfb) {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeout);
+            long begin = System.nanoTime();
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            long connected = System.nanoTime();
+            connect.add((connected - begin) / 1000);
+            if (request != null) {
+                OutputStream out = socket.getOutputStream();
+                InputStream in = socket.getInputStream();
+                long sent = System.nanoTime();
+                out.write(request);
+                out.flush();
+                if (in.read(response) > 0) {
+                    ttfb.add((System.nanoTime() - sent) / 1000);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failures++;
+            }
+            Log.w(TAG, "probe failed: " + e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public LatencyStats getIdleConnect() {
+        return idleConnect.stats();
+    }
+
+    public LatencyStats getIdleTtfb() {
+        return idleTtfb.stats();
+    }
+
+    public LatencyStats getLoadedConnect() {
+        return loadedConnect.stats();
+    }
+
+    public LatencyStats getLoadedTtfb() {
+        return loadedTtfb.stats();
+    }
+
+    /**
+     * 获取探测失败的次数
+     *
+     * @return 次数
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * 获取满载时比空闲时增加的延迟，优先使用首字节时间，不能测首字节时间时使用TCP连接时间
+     *
+     * @return 中位数之差，毫秒，没有足够的采样时返回-1
+     */
+    public double getBufferbloat() {
+        LatencyStats idle = request != null ? getIdleTtfb() : getIdleConnect();
+        LatencyStats loaded = request != null ? getLoadedTtfb() : getLoadedConnect();
+        if (idle.getCount() == 0 || loaded.getCount() == 0) return -1;
+        return Math.max(0, loaded.getMedian() - idle.getMedian());
+    }
+
+    /**
+     * 根据满载时增加的延迟评定缓冲膨胀等级，A低于30ms，B低于60ms，C低于200ms，D低于400ms，其余为F
+     *
+     * @return 等级，没有足够的采样时返回null
+     */
+    public String getGrade() {
+        double bloat = getBufferbloat();
+        if (bloat < 0) return null;
+        if (bloat < 30) return "A";
+        if (bloat < 60) return "B";
+        if (bloat < 200) return "C";
+        if (bloat < 400) return "D";
+        return "F";
+    }
+
+    /**
+     * 定长的环形采样记录，写入时不分配对象
+     */
+    private static final class Recorder {
+        private final long[] samples = new long[CAPACITY];  // 采样，微秒
+        private int head;   // 下一个采样要写入的位置
+        private int count;  // 有效采样数
+
+        synchronized void add(long micros) {
+            samples[head] = micros;
+            head = (head + 1) % CAPACITY;
+            if (count < CAPACITY) {
+                count++;
+            }
+        }
+
+        synchronized void clear() {
+            head = 0;
+            count = 0;
+        }
+
+        synchronized LatencyStats stats() {
+            long[] ordered = new long[count];   // 按采样顺序排列
+            for (int i = 0; i < count; i++) {
+                ordered[i] = samples[(head - count + i + CAPACITY) % CAPACITY];
+            }
+            return new LatencyStats(ordered, count);
+        }
+    }
+}
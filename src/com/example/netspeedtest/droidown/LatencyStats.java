@@ -0,0 +1,74 @@
+package com.example.netspeedtest.droidown;
+
+import java.util.Arrays;
+
+/**
+ * 一组延迟采样的统计结果，所有时间的单位都是毫秒
+ */
+public final class LatencyStats {
+    private final int count;    // 采样数
+    private final double min;   // 最小值
+    private final double median;    // 中位数
+    private final double p95;   // 95百分位
+    private final double p99;   // 99百分位
+    private final double jitter;    // 抖动，相邻两次采样之差的绝对值的平均
+
+    /**
+     * 根据按时间顺序排列的采样计算统计结果
+     *
+     * @param micros 采样，微秒
+     * @param count  有效采样数
+     */
+    LatencyStats(long[] micros, int count) {
+        this.count = count;
+        if (count == 0) {
+            this.min = this.median = this.p95 = this.p99 = this.jitter = 0;
+            return;
+        }
+        long diff = 0;
+        for (int i = 1; i < count; i++) {   // 抖动要在排序之前按采样顺序计算
+            diff += Math.abs(micros[i] - micros[i - 1]);
+        }
+        this.jitter = count > 1 ? diff / 1000.0 / (count - 1) : 0;
+        long[] sorted = Arrays.copyOf(micros, count);
+        Arrays.sort(sorted);
+        this.min = sorted[0] / 1000.0;
+        this.median = percentile(sorted, 50);
+        this.p95 = percentile(sorted, 95);
+        this.p99 = percentile(sorted, 99);
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length) - 1;  // 最近秩法，采样少时p99就是最大值
+        return sorted[Math.max(0, rank)] / 1000.0;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMedian() {
+        return median;
+    }
+
+    public double getP95() {
+        return p95;
+    }
+
+    public double getP99() {
+        return p99;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d min=%.1f median=%.1f p95=%.1f p99=%.1f jitter=%.1f", count, min, median, p95, p99, jitter);
+    }
+}
@@ -0,0 +1,528 @@
+package com.example.netspeedtest.droidown;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地测试服务器，只依赖java.net的HTTP/1.1服务器，监听回环地址，提供任意长度的合成内容，用于在没有网络的机器上重复地测试和评测下载引擎。
+ * 支持长连接、HEAD、单个Range请求(206和416)、If-Range，响应带Last-Modified、ETag和Content-Disposition。
+ * 可以设置每条连接和全部连接合计的带宽、响应前的附加延迟，并按概率注入故障：503错误、忽略Range返回整个文件、传输中途停顿、传输中途重置连接。
+ * 内容的第n个字节是contentAt(n)，下载完成后可以逐字节核对。请求路径的最后一段作为文件名，查询参数size=N可以覆盖文件长度
+ */
+public final class LocalTestServer {
+    private static final String TAG = "LocalTestServer";    // 设置LogCat日志标签
+    private static final int PERIOD = 251;  // 合成内容的周期，取质数使内容与2的幂的分段边界错开
+    private static final int CHUNK = 16 * 1024; // 每次写出的长度，也是限速和注入故障的粒度
+    private static final byte[] PATTERN = new byte[PERIOD + CHUNK];  // 从周期内任意位置开始都可以直接复制一整块的内容
+
+    static {
+        for (int i = 0; i < PATTERN.length; i++) {
+            PATTERN[i] = (byte) ((i % PERIOD) * 31 + 7);
+        }
+    }
+
+    private final long size;    // 默认的文件长度
+    private final long lastModified;    // 文件的最后修改时间，毫秒，精确到秒
+    private final RateLimiter totalLimiter = new RateLimiter(0, 0); // 全部连接合计的限速器
+    private final Set<Socket> sockets = new HashSet<Socket>();  // 正在服务的连接，停止时全部关闭
+    private final AtomicInteger connections = new AtomicInteger();  // 接受的连接总数
+    private final AtomicInteger requests = new AtomicInteger(); // 收到的请求总数
+    private final AtomicLong bytesSent = new AtomicLong();  // 发出的响应体总长度
+    private final Random random = new Random(); // 决定是否注入故障
+    private volatile long connectionRate;   // 每条连接的带宽，字节/秒，0为不限速
+    private volatile long latency;  // 每个响应发出前的附加延迟，毫秒
+    private volatile double errorRate;  // 返回503的概率
+    private volatile double ignoreRangeRate;    // 忽略Range返回整个文件的概率
+    private volatile double stallRate;  // 传输中途停顿的概率
+    private volatile long stallMillis = 3000;   // 停顿的时间，毫秒
+    private volatile double resetRate;  // 传输中途重置连接的概率
+    private ServerSocket serverSocket;  // 监听的套接字，未启动时为null
+    private Thread acceptor;    // 接受连接的线程
+
+    /**
+     * 初始化一个测试服务器，最后修改时间为当前时间
+     *
+     * @param size 默认的文件长度
+     */
+    public LocalTestServer(long size) {
+        this(size, System.currentTimeMillis());
+    }
+
+    /**
+     * 初始化一个测试服务器
+     *
+     * @param size         默认的文件长度
+     * @param lastModified 文件的最后修改时间，毫秒
+     */
+    public LocalTestServer(long size, long lastModified) {
+        this.size = size;
+        this.lastModified = lastModified / 1000 * 1000; // Last-Modified只精确到秒
+    }
+
+    /**
+     * 获取合成内容在某个位置的字节
+     *
+     * @param position 位置
+     * @return 字节
+     */
+    public static byte contentAt(long position) {
+        return PATTERN[(int) (position % PERIOD)];
+    }
+
+    /**
+     * 在回环地址上启动服务器
+     *
+     * @param port 端口，0为系统分配
+     * @throws IOException
+     */
+    public synchronized void start(int port) throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("server already started");
+        }
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 128);
+        final ServerSocket listening = serverSocket;
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept(listening);
+            }
+        }, TAG);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * 停止服务器，关闭所有正在服务的连接
+     */
+    public synchronized void stop() {
+        if (serverSocket == null) return;
+        close(serverSocket);
+        serverSocket = null;
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                close(socket);
+            }
+            sockets.clear();
+        }
+        try {
+            acceptor.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        acceptor = null;
+    }
+
+    /**
+     * 获取监听的端口
+     *
+     * @return 端口，未启动时为-1
+     */
+    public synchronized int getPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : -1;
+    }
+
+    /**
+     * 获取服务器上一个文件的地址
+     *
+     * @param path 路径，例如"/file.bin"或者"/file.bin?size=1048576"
+     * @return 地址
+     */
+    public URL getUrl(String path) {
+        try {
+            return new URL("http", "127.0.0.1", getPort(), path.startsWith("/") ? path : "/" + path);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * 获取某个长度的文件的ETag，由长度和最后修改时间决定
+     *
+     * @param size 文件长度
+     * @return ETag，包括引号
+     */
+    public String getETag(long size) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * 设置每条连接的带宽，可以在运行中修改
+     *
+     * @param bytesPerSecond 字节/秒，0为不限速
+     */
+    public void setConnectionRate(long bytesPerSecond) {
+        this.connectionRate = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * 设置全部连接合计的带宽，可以在运行中修改
+     *
+     * @param bytesPerSecond 字节/秒，0为不限速
+     */
+    public void setTotalRate(long bytesPerSecond) {
+        this.totalLimiter.setRate(Math.max(0, bytesPerSecond), CHUNK * 4);
+    }
+
+    /**
+     * 设置每个响应发出前的附加延迟，模拟远距离服务器的往返时间
+     *
+     * @param millis 毫秒
+     */
+    public void setLatency(long millis) {
+        this.latency = Math.max(0, millis);
+    }
+
+    /**
+     * 设置Range请求返回503的概率
+     *
+     * @param probability 0到1之间
+     */
+    public void setErrorRate(double probability) {
+        this.errorRate = probability;
+    }
+
+    /**
+     * 设置忽略Range请求返回整个文件的概率，模拟不支持断点续传的服务器或者代理
+     *
+     * @param probability 0到1之间
+     */
+    public void setIgnoreRangeRate(double probability) {
+        this.ignoreRangeRate = probability;
+    }
+
+    /**
+     * 设置传输中途停顿的概率和停顿的时间，模拟无线信号的短暂中断
+     *
+     * @param probability 0到1之间
+     * @param millis      停顿的时间，毫秒
+     */
+    public void setStall(double probability, long millis) {
+        this.stallRate = probability;
+        this.stallMillis = Math.max(0, millis);
+    }
+
+    /**
+     * 设置传输中途重置连接的概率，重置时发送RST，客户端读取时会出错
+     *
+     * @param probability 0到1之间
+     */
+    public void setResetRate(double probability) {
+        this.resetRate = probability;
+    }
+
+    /**
+     * 设置决定是否注入故障的随机数种子，使故障可以重现
+     *
+     * @param seed 种子
+     */
+    public void setSeed(long seed) {
+        synchronized (random) {
+            random.setSeed(seed);
+        }
+    }
+
+    /**
+     * 获取接受的连接总数，可以据此判断客户端是否复用了长连接
+     *
+     * @return 连接数
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * 获取发出的响应体总长度
+     *
+     * @return 字节数
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    private void accept(ServerSocket listening) {
+        while (!listening.isClosed()) {
+            try {
+                final Socket socket = listening.accept();
+                connections.incrementAndGet();
+                synchronized (sockets) {
+                    sockets.add(socket);
+                }
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, TAG + "-" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!listening.isClosed()) {
+                    Log.w(TAG, "accept failed: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 在一条连接上依次处理请求，直到客户端关闭连接或者要求不再复用
+     */
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            RateLimiter limiter = new RateLimiter(connectionRate, CHUNK * 4);
+            byte[] buffer = new byte[CHUNK];
+            while (respond(socket, in, out, limiter, buffer)) {
+                limiter.setRate(connectionRate, CHUNK * 4); // 运行中修改的带宽从下一个请求开始生效
+            }
+        } catch (IOException e) {
+            // 客户端断开或者注入了重置，连接到此为止
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (sockets) {
+                sockets.remove(socket);
+            }
+            close(socket);
+        }
+    }
+
+    /**
+     * 读取并响应一个请求
+     *
+     * @return 连接可以继续复用为true，否则为false
+     */
+    private boolean respond(Socket socket, InputStream in, OutputStream out, RateLimiter limiter, byte[] buffer) throws IOException, InterruptedException {
+        String requestLine = readLine(in);
+        if (requestLine == null) return false;
+        String[] parts = requestLine.split(" ");
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+        }
+        if (line == null || parts.length != 3) return false;
+        requests.incrementAndGet();
+        String method = parts[0];
+        String target = parts[1];
+        boolean keepAlive = "HTTP/1.1".equals(parts[2])
+                ? !"close".equalsIgnoreCase(headers.get("connection"))
+                : "keep-alive".equalsIgnoreCase(headers.get("connection"));
+        if (latency > 0) {
+            Thread.sleep(latency);
+        }
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            writeHead(out, "405 Method Not Allowed", "Allow: GET, HEAD\r\nContent-Length: 0\r\nConnection: close\r\n");
+            return false;   // 请求体没有读取，不能继续复用
+        }
+        long fileSize = this.size;
+        String path = target;
+        int query = target.indexOf('?');
+        if (query >= 0) {
+            path = target.substring(0, query);
+            String value = parameter(target.substring(query + 1), "size");
+            if (value != null) {
+                fileSize = Long.parseLong(value);
+            }
+        }
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        String etag = getETag(fileSize);
+        String modified = formatDate(lastModified);
+        String range = headers.get("range");
+        String ifRange = headers.get("if-range");
+        if (range != null && ifRange != null && !ifRange.equals(etag) && !ifRange.equals(modified)) {
+            range = null;   // 客户端持有的版本已经过时，返回整个文件
+        }
+        if (range != null && chance(errorRate)) {
+            writeHead(out, "503 Service Unavailable", "Retry-After: 1\r\nContent-Length: 0\r\n" + connection(keepAlive));
+            return keepAlive;
+        }
+        if (range != null && chance(ignoreRangeRate)) {
+            range = null;
+        }
+        StringBuilder fields = new StringBuilder();
+        fields.append("Last-Modified: ").append(modified).append("\r\n");
+        fields.append("ETag: ").append(etag).append("\r\n");
+        fields.append("Accept-Ranges: bytes\r\n");
+        fields.append("Content-Disposition: attachment; filename=\"").append(name.length() > 0 ? name : "download").append("\"\r\n");
+        fields.append("Content-Type: application/octet-stream\r\n");
+        long start = 0, end = fileSize - 1;
+        String status = "200 OK";
+        if (range != null) {
+            long[] bounds = parseRange(range, fileSize);
+            if (bounds == null) {
+                fields.append("Content-Range: bytes */").append(fileSize).append("\r\nContent-Length: 0\r\n").append(connection(keepAlive));
+                writeHead(out, "416 Range Not Satisfiable", fields.toString());
+                return keepAlive;
+            }
+            start = bounds[0];
+            end = bounds[1];
+            status = "206 Partial Content";
+            fields.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(fileSize).append("\r\n");
+        }
+        fields.append("Content-Length: ").append(end - start + 1).append("\r\n").append(connection(keepAlive));
+        writeHead(out, status, fields.toString());
+        if ("HEAD".equals(method)) return keepAlive;
+        long length = end - start + 1;
+        long stallAt = chance(stallRate) ? randomPosition(length) : -1;   // 在响应体的哪个位置停顿
+        long resetAt = chance(resetRate) ? randomPosition(length) : -1;   // 在响应体的哪个位置重置连接
+        long sent = 0;
+        while (sent < length) {
+            int n = (int) Math.min(CHUNK, length - sent);
+            if (stallAt >= 0 && sent + n > stallAt) {
+                out.flush();
+                Thread.sleep(stallMillis);
+                stallAt = -1;
+            }
+            if (resetAt >= 0 && sent + n > resetAt) {
+                out.flush();
+                socket.setSoLinger(true, 0);    // 关闭时直接发送RST
+                throw new SocketException("injected reset");
+            }
+            limiter.acquire(n);
+            totalLimiter.acquire(n);
+            int offset = (int) ((start + sent) % PERIOD);
+            out.write(PATTERN, offset, n);
+            sent += n;
+            bytesSent.addAndGet(n);
+        }
+        out.flush();
+        return keepAlive;
+    }
+
+    /**
+     * 解析单个范围的Range请求头，支持"bytes=a-b"、"bytes=a-"和"bytes=-n"
+     *
+     * @return 开始和结束位置，无法满足时返回null
+     */
+    private static long[] parseRange(String range, long fileSize) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) return null;
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        try {
+            long start, end;
+            if (dash == 0) {    // 最后n个字节
+                long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, fileSize - suffix);
+                end = fileSize - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? fileSize - 1 : Math.min(fileSize - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            return start <= end && start < fileSize ? new long[]{start, end} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String parameter(String query, String name) {
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0 && pair.substring(0, equals).equals(name)) {
+                return pair.substring(equals + 1);
+            }
+        }
+        return null;
+    }
+
+    private static String connection(boolean keepAlive) {
+        return keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n";
+    }
+
+    private static void writeHead(OutputStream out, String status, String fields) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\n" + fields + "\r\n").getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    /**
+     * 读取以CRLF结尾的一行，连接关闭时返回null
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return null;
+    }
+
+    private static String formatDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+    private boolean chance(double probability) {
+        if (probability <= 0) return false;
+        synchronized (random) {
+            return random.nextDouble() < probability;
+        }
+    }
+
+    private long randomPosition(long length) {
+        synchronized (random) {
+            return (long) (random.nextDouble() * length);
+        }
+    }
+
+    private static void close(ServerSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.netspeedtest.droidown;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 镜像均衡器，下载线程每次发出新请求时按各镜像每条连接的速度加权随机选择镜像，快的镜像分到更多的连接，也就领到更多的分段。
+ * 一个镜像的连接变多后每条连接的速度会下降，权重随之降低，最终各镜像的每条连接速度趋于一致。
+ * 太慢或者连续出错的镜像会被弃用，但至少保留一个镜像
+ */
+final class MirrorBalancer {
+    private static final String TAG = "MirrorBalancer"; // 设置LogCat日志标签
+    private static final long WINDOW = 2000;    // 平滑速度的时间常数，毫秒
+    private static final long WARMUP = 3000;    // 镜像测量了多久之后才参与是否太慢的判断，毫秒
+    private static final double DROP_RATIO = 0.1;   // 每条连接的速度低于最快镜像的10%时弃用
+    private static final int FAILURE_LIMIT = 3; // 连续失败多少次弃用镜像
+
+    private final List<DownloadMirror> mirrors; // 全部镜像，第一个是主下载地址
+    private final Random random = new Random();
+
+    /**
+     * 初始化均衡器
+     *
+     * @param mirrors 通过校验的镜像，第一个是主下载地址
+     */
+    MirrorBalancer(List<DownloadMirror> mirrors) {
+        this.mirrors = Collections.unmodifiableList(new ArrayList<DownloadMirror>(mirrors));
+    }
+
+    /**
+     * 获取全部镜像
+     *
+     * @return 不可修改的镜像列表
+     */
+    List<DownloadMirror> getMirrors() {
+        return mirrors;
+    }
+
+    /**
+     * 获取主下载地址对应的镜像，初始化请求的响应流来自这个镜像
+     *
+     * @return 镜像
+     */
+    DownloadMirror getPrimary() {
+        return mirrors.get(0);
+    }
+
+    /**
+     * 为新的请求选择镜像，还没有测量过的镜像按已测量镜像中最快的速度计算权重，保证每个镜像都有机会被测量
+     *
+     * @return 镜像
+     */
+    synchronized DownloadMirror choose() {
+        if (mirrors.size() == 1) return mirrors.get(0);
+        double best = 0;
+        for (DownloadMirror mirror : mirrors) {
+            if (!mirror.isDropped()) {
+                best = Math.max(best, mirror.getRate());
+            }
+        }
+        double total = 0;
+        for (DownloadMirror mirror : mirrors) {
+            if (!mirror.isDropped()) {
+                total += weight(mirror, best);
+            }
+        }
+        double point = random.nextDouble() * total;
+        DownloadMirror chosen = null;
+        for (DownloadMirror mirror : mirrors) {
+            if (mirror.isDropped()) continue;
+            chosen = mirror;
+            point -= weight(mirror, best);
+            if (point < 0) break;
+        }
+        return chosen;
+    }
+
+    private static double weight(DownloadMirror mirror, double best) {
+        double rate = mirror.getMeasuredTime() > 0 ? mirror.getRate() : best;
+        return rate > 0 ? rate : 1;
+    }
+
+    /**
+     * 更新各镜像的速度并弃用太慢的镜像，由监视循环在每次采样时调用
+     *
+     * @param now 当前时间，毫秒
+     */
+    synchronized void sample(long now) {
+        if (mirrors.size() == 1) return;
+        double best = 0;
+        for (DownloadMirror mirror : mirrors) {
+            if (!mirror.isDropped() && mirror.sample(now, WINDOW)) {
+                best = Math.max(best, mirror.getRate());
+            }
+        }
+        for (DownloadMirror mirror : mirrors) {
+            if (!mirror.isDropped() && mirror.getMeasuredTime() >= WARMUP && mirror.getRate() < best * DROP_RATIO) {
+                drop(mirror, "too slow (" + (long) mirror.getRate() + "B/s per connection)");
+            }
+        }
+    }
+
+    /**
+     * 记录镜像上的一次请求失败
+     *
+     * @param mirror 出错的镜像
+     * @param fatal  重试也没用的错误，例如镜像上的文件已经改变
+     * @return 镜像被弃用了为true，应该立即换用其他镜像重试
+     */
+    synchronized boolean fail(DownloadMirror mirror, boolean fatal) {
+        if (mirror.isDropped()) return true;
+        if (mirror.fail() < FAILURE_LIMIT && !fatal) return false;
+        return drop(mirror, fatal ? "unrecoverable error" : FAILURE_LIMIT + " consecutive failures");
+    }
+
+    /**
+     * 记录镜像上的一次请求成功
+     *
+     * @param mirror 镜像
+     */
+    synchronized void succeed(DownloadMirror mirror) {
+        mirror.succeed();
+    }
+
+    /**
+     * 弃用镜像，正在从它读取数据的线程会交还分段，从其他镜像继续下载
+     *
+     * @return 弃用了为true，它是最后一个可用的镜像时为false
+     */
+    private boolean drop(DownloadMirror mirror, String reason) {
+        int alive = 0;
+        for (DownloadMirror m : mirrors) {
+            if (!m.isDropped()) {
+                alive++;
+            }
+        }
+        if (alive <= 1) return false;
+        mirror.drop();
+        Log.w(TAG, "Mirror " + mirror + " dropped: " + reason);
+        return true;
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.netspeedtest.droidown;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 下载进度计数器，每条下载线程独占一个计数槽，更新时既不加锁也不分配对象，读取时才把各槽汇总
+ */
+final class ProgressCounter {
+    private static final int PADDING = 16;  // 相邻计数槽间隔16个long(128字节)，避免不同线程的计数槽落在同一缓存行里互相干扰
+
+    private final AtomicLongArray slots;    // 槽0为下载开始前已经下载的长度，重新下载校验失败的分段时由调用download()的线程更新，其余每条线程一个槽
+
+    /**
+     * 初始化计数器
+     *
+     * @param threadSize 下载线程的数量
+     */
+    ProgressCounter(int threadSize) {
+        this.slots = new AtomicLongArray((threadSize + 1) * PADDING);
+    }
+
+    /**
+     * 累加指定线程下载的长度，每个槽只有对应的一条线程写入，所以无需原子的读改写
+     *
+     * @param threadId 线程id，从1开始，0表示调用download()的线程
+     * @param size     新下载的长度
+     */
+    void add(int threadId, long size) {
+        int index = threadId * PADDING;
+        slots.lazySet(index, slots.get(index) + size);
+    }
+
+    /**
+     * 重置计数器
+     *
+     * @param base 下载开始前已经下载的长度
+     */
+    void reset(long base) {
+        for (int i = 0; i < slots.length(); i += PADDING) {
+            slots.set(i, 0);
+        }
+        slots.set(0, base);
+    }
+
+    /**
+     * 汇总各槽得到已经下载的总长度
+     *
+     * @return 已下载字节数
+     */
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < slots.length(); i += PADDING) {
+            sum += slots.get(i);
+        }
+        return sum;
+    }
+}
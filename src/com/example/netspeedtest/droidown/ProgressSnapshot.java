@@ -0,0 +1,124 @@
+package com.example.netspeedtest.droidown;
+
+/**
+ * 下载进度的快照，只包含基本类型的字段，可以反复填充使用。
+ * 下载器在每次通知进度前更新自己持有的快照，界面等使用方用DownloadExecutor.readProgress(ProgressSnapshot)复制到自己持有的快照里，
+ * 整个传递过程不创建新对象，长时间测速时不会因为频繁的垃圾回收造成速度曲线的凹陷
+ */
+public final class ProgressSnapshot {
+    private long sequence;  // 第几次更新，从1开始，0表示还没有进度
+    private long downloadedSize;    // 已下载的数据长度
+    private long fileSize;  // 文件长度
+    private long elapsedMillis; // 本次下载已经花费的时间
+    private double currentSpeed;    // 最近一个窗口的瞬时速度，字节/秒
+    private double smoothedSpeed;   // 指数加权平滑后的速度，字节/秒
+    private double averageSpeed;    // 本次下载开始以来的平均速度，字节/秒
+    private int connectionCount;    // 当前的连接数
+
+    /**
+     * 填充快照，序号自动加1
+     */
+    synchronized void update(long downloadedSize, long fileSize, long elapsedMillis, double currentSpeed,
+                             double smoothedSpeed, double averageSpeed, int connectionCount) {
+        this.sequence++;
+        this.downloadedSize = downloadedSize;
+        this.fileSize = fileSize;
+        this.elapsedMillis = elapsedMillis;
+        this.currentSpeed = currentSpeed;
+        this.smoothedSpeed = smoothedSpeed;
+        this.averageSpeed = averageSpeed;
+        this.connectionCount = connectionCount;
+    }
+
+    /**
+     * 把本快照复制到另一个快照中
+     *
+     * @param target 目标快照
+     * @return 目标快照
+     */
+    synchronized ProgressSnapshot copyTo(ProgressSnapshot target) {
+        synchronized (target) {
+            target.sequence = this.sequence;
+            target.downloadedSize = this.downloadedSize;
+            target.fileSize = this.fileSize;
+            target.elapsedMillis = this.elapsedMillis;
+            target.currentSpeed = this.currentSpeed;
+            target.smoothedSpeed = this.smoothedSpeed;
+            target.averageSpeed = this.averageSpeed;
+            target.connectionCount = this.connectionCount;
+        }
+        return target;
+    }
+
+    /**
+     * 获取快照的序号，序号没有变化说明两次读取之间没有新的进度
+     *
+     * @return 从1开始的序号，0表示还没有进度
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * 获取已下载的数据长度
+     *
+     * @return 字节数
+     */
+    public synchronized long getDownloadedSize() {
+        return downloadedSize;
+    }
+
+    /**
+     * 获取文件长度
+     *
+     * @return 字节数
+     */
+    public synchronized long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * 获取本次下载已经花费的时间
+     *
+     * @return 毫秒
+     */
+    public synchronized long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * 获取最近一个采样窗口的瞬时速度
+     *
+     * @return 字节/秒
+     */
+    public synchronized double getCurrentSpeed() {
+        return currentSpeed;
+    }
+
+    /**
+     * 获取指数加权平滑后的速度
+     *
+     * @return 字节/秒
+     */
+    public synchronized double getSmoothedSpeed() {
+        return smoothedSpeed;
+    }
+
+    /**
+     * 获取本次下载开始以来的平均速度
+     *
+     * @return 字节/秒
+     */
+    public synchronized double getAverageSpeed() {
+        return averageSpeed;
+    }
+
+    /**
+     * 获取当前的连接数
+     *
+     * @return 连接数
+     */
+    public synchronized int getConnectionCount() {
+        return connectionCount;
+    }
+}
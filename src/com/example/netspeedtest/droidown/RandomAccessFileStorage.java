@@ -0,0 +1,99 @@
+package com.example.netspeedtest.droidown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 每条下载线程各自打开一个RandomAccessFile，先seek再写入。使用"rwd"模式时每次写入都同步到存储设备，速度最慢
+ */
+public final class RandomAccessFileStorage implements DownloadStorage {
+    private final String mode;  // RandomAccessFile的打开模式
+    private final List<RandomAccessFile> files = new ArrayList<RandomAccessFile>();    // 所有线程打开的文件，关闭时统一释放
+    private ThreadLocal<RandomAccessFile> threadFile;   // 当前线程打开的文件，每次打开存储时重新创建
+    private File saveFile;  // 数据保存到的本地文件
+
+    /**
+     * 初始化存储后端
+     *
+     * @param mode "rw"或者"rwd"，"rwd"要求每次写入都同步到存储设备
+     */
+    public RandomAccessFileStorage(String mode) {
+        this.mode = mode;
+    }
+
+    @Override
+    public void open(File saveFile, long fileSize) throws IOException {
+        this.saveFile = saveFile;
+        this.threadFile = new ThreadLocal<RandomAccessFile>();
+        RandomAccessFile randOut = new RandomAccessFile(saveFile, mode);
+        try {
+            if (fileSize > 0) {
+                randOut.setLength(fileSize);    // 设置文件的大小
+            }
+        } finally {
+            randOut.close();    //关闭该文件，使设置生效
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src, long position) throws IOException {
+        RandomAccessFile file = getFile();
+        if (!src.hasArray()) {  // 直接缓冲区没有底层数组，通过文件通道写入
+            while (src.hasRemaining()) {
+                position += file.getChannel().write(src, position);
+            }
+            return;
+        }
+        file.seek(position);    // 文件指针指向写入的位置
+        file.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+        src.position(src.limit());
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        return getFile().getChannel().read(dst, position);
+    }
+
+    /**
+     * 获取当前线程打开的文件，第一次使用时打开
+     */
+    private RandomAccessFile getFile() throws IOException {
+        RandomAccessFile file = threadFile.get();
+        if (file == null) {
+            file = new RandomAccessFile(saveFile, mode);
+            synchronized (files) {
+                files.add(file);
+            }
+            threadFile.set(file);
+        }
+        return file;
+    }
+
+    @Override
+    public void force() throws IOException {
+        synchronized (files) {
+            for (RandomAccessFile file : files) {
+                file.getFD().sync();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (files) {
+            for (RandomAccessFile file : files) {
+                file.close();
+            }
+            files.clear();
+        }
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+}
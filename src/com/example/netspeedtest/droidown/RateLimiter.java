@@ -0,0 +1,90 @@
+package com.example.netspeedtest.droidown;
+
+/**
+ * 令牌桶限速器，令牌按设定的速度积累，最多积累burst个，读到数据后扣除相应的令牌，令牌不足时等待到补足为止。
+ * 桶里攒下的令牌允许短时间的突发，速度和桶容量可以随时修改。速度为0时不限速，只多一次volatile读
+ */
+public final class RateLimiter {
+    private static final RateLimiter GLOBAL = new RateLimiter(0, 0);    // 整个进程共享的限速器
+
+    private volatile long rate; // 每秒产生的令牌数，即字节/秒，0为不限速
+    private long burst; // 桶的容量，字节
+    private double tokens;  // 桶中现有的令牌，可以为负数，表示欠下的令牌
+    private long lastTime;  // 上一次补充令牌的时间，纳秒
+
+    /**
+     * 初始化一个限速器
+     *
+     * @param rate  速度，字节/秒，0为不限速
+     * @param burst 允许突发的字节数，0时取1秒的量
+     */
+    public RateLimiter(long rate, long burst) {
+        setRate(rate, burst);
+    }
+
+    /**
+     * 获取整个进程共享的限速器，所有下载器读到的数据都会经过它，默认不限速
+     *
+     * @return 全局限速器
+     */
+    public static RateLimiter global() {
+        return GLOBAL;
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public synchronized long getBurst() {
+        return burst;
+    }
+
+    /**
+     * 修改速度和桶容量，可以在下载进行中调用
+     *
+     * @param rate  速度，字节/秒，0为不限速
+     * @param burst 允许突发的字节数，0时取1秒的量
+     */
+    public synchronized void setRate(long rate, long burst) {
+        this.burst = burst > 0 ? burst : rate;
+        if (this.rate <= 0) {   // 从不限速开始限速时桶是满的
+            this.tokens = this.burst;
+            this.lastTime = System.nanoTime();
+        } else {
+            this.tokens = Math.min(this.tokens, this.burst);
+        }
+        this.rate = Math.max(0, rate);
+    }
+
+    /**
+     * 扣除令牌，不等待
+     *
+     * @param bytes 读到的字节数
+     * @return 需要等待的时间，纳秒，令牌足够时为0
+     */
+    public long reserve(int bytes) {
+        if (rate <= 0) return 0;    // 不限速时不加锁
+        synchronized (this) {
+            long r = rate;
+            if (r <= 0) return 0;
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastTime) * (double) r / 1000000000);
+            lastTime = now;
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1000000000 / r);
+        }
+    }
+
+    /**
+     * 扣除令牌，令牌不足时阻塞到补足为止
+     *
+     * @param bytes 读到的字节数
+     * @throws InterruptedException
+     */
+    public void acquire(int bytes) throws InterruptedException {
+        long wait = reserve(bytes);
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.netspeedtest.droidown;
+
+/**
+ * 读取路径上的计数器，只由一条连接当前所在的线程使用，每次读取只做几次普通的字段运算，不加锁也不分配对象，
+ * 每100ms或者分段结束时才汇总到共享的ConnectionMetrics
+ */
+final class ReadRecorder {
+    static final long STALL_NANOS = 500 * 1000000L; // 连续两次读到数据之间超过500ms算作一次停顿
+    private static final long FLUSH_NANOS = 100 * 1000000L; // 汇总间隔
+
+    private final ConnectionMetrics target; // 汇总的目标
+    private final boolean measuringCpu; // 是否统计当前线程的CPU时间，多路复用引擎一条线程服务所有连接，不按连接统计
+    private final long[] readSizes = new long[ConnectionMetrics.BUCKETS];   // 上次汇总之后读取长度的分布
+    private long bytes; // 上次汇总之后读到的长度
+    private long stalls;    // 上次汇总之后的停顿次数
+    private long stallNanos;    // 上次汇总之后的停顿时间
+    private long lastRead;  // 上次读到数据的时间，纳秒
+    private long flushTime; // 上次汇总的时间，纳秒
+    private long cpuTime;   // 上次汇总时线程的CPU时间，纳秒，不支持时为-1
+
+    /**
+     * 创建一个计数器
+     *
+     * @param target       汇总的目标
+     * @param measuringCpu 是否统计当前线程的CPU时间
+     */
+    ReadRecorder(ConnectionMetrics target, boolean measuringCpu) {
+        this.target = target;
+        this.measuringCpu = measuringCpu;
+        this.cpuTime = -1;
+    }
+
+    /**
+     * 获取汇总的目标
+     *
+     * @return 连接的统计数据
+     */
+    ConnectionMetrics getTarget() {
+        return target;
+    }
+
+    /**
+     * 开始在当前线程上工作，作业每次在线程池中开始运行时调用，CPU时间从这里开始累计
+     *
+     * @param now 当前时间，纳秒
+     */
+    void start(long now) {
+        this.lastRead = now;
+        this.flushTime = now;
+        this.cpuTime = measuringCpu ? DownloadMetrics.threadCpuTime() : -1;
+    }
+
+    /**
+     * 从现在开始等待数据，发出请求后或者限速等待之后调用，之前的时间不算作停顿
+     *
+     * @param now 当前时间，纳秒
+     */
+    void resume(long now) {
+        this.lastRead = now;
+    }
+
+    /**
+     * 记录一次读取
+     *
+     * @param size 读到的长度
+     * @param now  读到数据的时间，纳秒
+     */
+    void read(int size, long now) {
+        this.bytes += size;
+        this.readSizes[31 - Integer.numberOfLeadingZeros(size | 1)]++;
+        long gap = now - this.lastRead;
+        if (gap >= STALL_NANOS) {
+            this.stalls++;
+            this.stallNanos += gap;
+        }
+        this.lastRead = now;
+        if (now - this.flushTime >= FLUSH_NANOS) {
+            flush(now);
+        }
+    }
+
+    /**
+     * 把累计的计数汇总到ConnectionMetrics，作业离开当前线程之前必须调用
+     *
+     * @param now 当前时间，纳秒
+     */
+    void flush(long now) {
+        long cpu = 0;
+        if (this.cpuTime >= 0) {
+            long time = DownloadMetrics.threadCpuTime();
+            cpu = Math.max(0, time - this.cpuTime);
+            this.cpuTime = time;
+        }
+        this.target.addReads(this.bytes, this.readSizes, this.stalls, this.stallNanos, cpu);
+        this.bytes = 0;
+        for (int i = 0; i < this.readSizes.length; i++) {
+            this.readSizes[i] = 0;
+        }
+        this.stalls = 0;
+        this.stallNanos = 0;
+        this.flushTime = now;
+    }
+}
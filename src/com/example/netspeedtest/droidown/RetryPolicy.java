@@ -0,0 +1,209 @@
+package com.example.netspeedtest.droidown;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+/**
+ * 重试策略，连接出错时决定多久之后重新连接。
+ * 第一次重试立即进行，之后按指数退避并加入随机抖动，避免所有连接同时重连；
+ * 416和其他4xx错误重试也不会成功，直接放弃；5xx错误说明服务器过载，不立即重试。
+ * 所有连接合计的连续失败次数按正在使用的连接数折算，平均每条连接连续失败达到阈值时熔断，一次网络抖动让所有连接同时出错不会触发熔断。
+ * 熔断期间只放一个连接去试探，试探成功才恢复，等在熔断后面的连接由下载器立即重新连接；平均连续失败超过上限时放弃整个下载
+ */
+public final class RetryPolicy {
+    /**
+     * 错误的类别
+     */
+    public enum ErrorClass {
+        /**
+         * 连接或读取超时
+         */
+        TIMEOUT,
+        /**
+         * 服务器返回5xx
+         */
+        SERVER_ERROR,
+        /**
+         * 服务器返回416，请求的范围超出了文件，说明文件已经变了
+         */
+        RANGE_NOT_SATISFIABLE,
+        /**
+         * 服务器返回其他不能使用的响应码
+         */
+        CLIENT_ERROR,
+        /**
+         * 连接被重置或者提前关闭
+         */
+        CONNECTION_RESET,
+        /**
+         * 其他错误
+         */
+        OTHER
+    }
+
+    private final Random random = new Random(); // 产生随机抖动
+    private long baseDelay = 500;   // 退避的初始等待时间，毫秒
+    private long maxDelay = 1000 * 30;  // 退避的最长等待时间，毫秒
+    private double jitter = 0.5;    // 随机抖动的比例，等待时间在[delay * (1 - jitter), delay]之间
+    private int retryLimit = 35;    // 平均每条连接连续失败的最大次数，超过时放弃整个下载
+    private int breakerThreshold = 8;   // 平均每条连接连续失败多少次时熔断
+    private long breakerTime = 1000 * 10;   // 熔断的时间，毫秒
+    private int consecutiveFailures;    // 所有连接合计连续失败的次数，任何一次成功都会清零
+    private long openUntil; // 熔断结束的时间，0为没有熔断
+    private boolean probing;    // 熔断结束后是否已经放出了试探的连接
+
+    public synchronized long getBaseDelay() {
+        return baseDelay;
+    }
+
+    /**
+     * 设置退避的初始等待时间，第二次重试等待该时间，之后每次翻倍
+     *
+     * @param millis 毫秒
+     */
+    public synchronized void setBaseDelay(long millis) {
+        this.baseDelay = Math.max(0, millis);
+    }
+
+    public synchronized long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public synchronized void setMaxDelay(long millis) {
+        this.maxDelay = Math.max(0, millis);
+    }
+
+    public synchronized double getJitter() {
+        return jitter;
+    }
+
+    public synchronized void setJitter(double jitter) {
+        this.jitter = Math.max(0, Math.min(1, jitter));
+    }
+
+    public synchronized int getRetryLimit() {
+        return retryLimit;
+    }
+
+    /**
+     * 设置平均每条连接连续失败的最大次数，所有连接合计的失败次数超过该值乘以连接数时放弃，任何一次成功都会重新计数
+     *
+     * @param times 次数
+     */
+    public synchronized void setRetryLimit(int times) {
+        this.retryLimit = times;
+    }
+
+    /**
+     * 设置熔断条件
+     *
+     * @param threshold 平均每条连接连续失败多少次时熔断
+     * @param millis    熔断的时间，毫秒
+     */
+    public synchronized void setCircuitBreaker(int threshold, long millis) {
+        this.breakerThreshold = Math.max(1, threshold);
+        this.breakerTime = Math.max(0, millis);
+    }
+
+    /**
+     * 判断当前是否处于熔断状态
+     *
+     * @return 熔断中为true，否则为false
+     */
+    public synchronized boolean isOpen() {
+        return openUntil > 0 && System.nanoTime() / 1000000 < openUntil;
+    }
+
+    /**
+     * 获取所有连接合计连续失败的次数
+     *
+     * @return 次数
+     */
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * 下载开始时清除上一次下载留下的状态
+     */
+    public synchronized void reset() {
+        this.consecutiveFailures = 0;
+        this.openUntil = 0;
+        this.probing = false;
+    }
+
+    /**
+     * 判断错误的类别
+     *
+     * @param e 错误
+     * @return 类别
+     */
+    public static ErrorClass classify(Throwable e) {
+        if (e instanceof SocketTimeoutException) return ErrorClass.TIMEOUT;
+        if (e instanceof HttpStatusException) {
+            int code = ((HttpStatusException) e).getCode();
+            if (code == 416) return ErrorClass.RANGE_NOT_SATISFIABLE;
+            if (code >= 500) return ErrorClass.SERVER_ERROR;
+            return ErrorClass.CLIENT_ERROR;
+        }
+        if (e instanceof SocketException || e instanceof EOFException) return ErrorClass.CONNECTION_RESET;
+        if (e instanceof IOException && e.getMessage() != null
+                && (e.getMessage().contains("closed") || e.getMessage().contains("reset"))) {
+            return ErrorClass.CONNECTION_RESET; // 响应体没有读完连接就断开了
+        }
+        return ErrorClass.OTHER;
+    }
+
+    /**
+     * 一条连接成功下载了数据，清除连续失败次数并结束熔断
+     *
+     * @return 之前处于熔断或者试探中为true，这时等在熔断后面的连接应该立即重新连接
+     */
+    public synchronized boolean onSuccess() {
+        boolean closing = this.openUntil > 0;
+        this.consecutiveFailures = 0;
+        this.openUntil = 0;
+        this.probing = false;
+        return closing;
+    }
+
+    /**
+     * 一条连接出错，计算重新连接前的等待时间
+     *
+     * @param attempt     这条连接已经连续重试的次数，0表示第一次出错
+     * @param error       错误的类别
+     * @param connections 正在使用的连接数，熔断阈值和重试上限按它折算
+     * @return 等待时间，毫秒，放弃整个下载时返回-1
+     */
+    public synchronized long onFailure(int attempt, ErrorClass error, int connections) {
+        if (error == ErrorClass.RANGE_NOT_SATISFIABLE || error == ErrorClass.CLIENT_ERROR) {
+            return -1;  // 重试也不会成功
+        }
+        long scale = Math.max(1, connections);
+        if (++consecutiveFailures > retryLimit * scale) return -1;
+        long now = System.nanoTime() / 1000000;
+        long delay;
+        if (attempt == 0 && error != ErrorClass.SERVER_ERROR) {
+            delay = 0;  // 网络短暂抖动时立即重连
+        } else {
+            int exponent = Math.min(30, error == ErrorClass.SERVER_ERROR ? attempt : attempt - 1);
+            delay = Math.min(maxDelay, baseDelay << exponent);
+            delay -= (long) (delay * jitter * random.nextDouble());
+        }
+        if (consecutiveFailures >= breakerThreshold * scale && !isOpen()) {
+            openUntil = now + breakerTime;  // 熔断，所有连接暂停重连
+            probing = false;
+        }
+        if (openUntil > 0 && now < openUntil) {
+            if (!probing) {
+                probing = true; // 第一个连接在熔断结束时试探
+                return Math.max(delay, openUntil - now);
+            }
+            return Math.max(delay, openUntil - now + breakerTime);  // 其他连接等试探的结果
+        }
+        return delay;
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.netspeedtest.droidown;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 分段调度器，把文件切分成许多小分段按需分配给下载线程，没有可分配的分段时拆分剩余最多的分段，保证每条线程一直有活干
+ */
+final class SegmentScheduler {
+    /**
+     * 拆分分段时每一半的最小长度，太小的分段不值得再开一次连接
+     */
+    static final long MIN_SPLIT_SIZE = 64 * 1024;
+
+    private static final Comparator<DownloadSegment> BY_START = new Comparator<DownloadSegment>() {
+        @Override
+        public int compare(DownloadSegment lhs, DownloadSegment rhs) {
+            return lhs.getStart() < rhs.getStart() ? -1 : (lhs.getStart() == rhs.getStart() ? 0 : 1);
+        }
+    };
+
+    private final List<DownloadSegment> segments;   // 按开始位置排序的全部分段
+    private int nextId; // 下一个新分段的id
+
+    /**
+     * 把整个文件按固定长度切分成分段
+     *
+     * @param fileSize    文件长度
+     * @param segmentSize 每个分段的长度
+     */
+    SegmentScheduler(long fileSize, long segmentSize) {
+        this.segments = new ArrayList<DownloadSegment>();
+        long size = segmentSize > 0 ? segmentSize : fileSize;
+        for (long start = 0; start < fileSize; start += size) {
+            long end = Math.min(start + size, fileSize) - 1;
+            this.segments.add(new DownloadSegment(++nextId, start, end, start));
+        }
+    }
+
+    /**
+     * 根据下载记录中的分段恢复调度器
+     *
+     * @param segments 下载记录中的分段
+     */
+    SegmentScheduler(List<DownloadSegment> segments) {
+        this.segments = new ArrayList<DownloadSegment>(segments.size());
+        for (DownloadSegment segment : segments) {
+            DownloadSegment copy = segment.copy();
+            this.segments.add(copy);
+            this.nextId = Math.max(this.nextId, copy.getId());
+        }
+        Collections.sort(this.segments, BY_START);
+    }
+
+    /**
+     * 为空闲的下载线程分配一个分段，优先分配位置最靠前的未分配分段，否则拆分剩余最多的分段
+     *
+     * @return 分配到的分段，已经没有可分配的分段时返回null
+     */
+    synchronized DownloadSegment acquire() {
+        DownloadSegment largest = null;
+        for (DownloadSegment segment : segments) {
+            if (segment.isComplete()) continue;
+            if (!segment.isAssigned()) {
+                segment.setAssigned(true);
+                return segment;
+            }
+            if (largest == null || segment.getRemaining() > largest.getRemaining()) {
+                largest = segment;
+            }
+        }
+        if (largest == null) return null;
+        DownloadSegment tail = largest.split(nextId + 1, MIN_SPLIT_SIZE);
+        if (tail == null) return null;
+        nextId++;
+        tail.setAssigned(true);
+        segments.add(segments.indexOf(largest) + 1, tail);
+        return tail;
+    }
+
+    /**
+     * 下载线程放弃分段(暂停或出错)，分段会重新分配给其他线程
+     *
+     * @param segment 分段
+     */
+    synchronized void release(DownloadSegment segment) {
+        segment.setAssigned(false);
+    }
+
+    /**
+     * 查找从指定位置开始并且已经下载完成的分段
+     *
+     * @param start 分段的开始位置
+     * @return 分段的副本，没有这样的分段或者还没有下载完成时返回null
+     */
+    synchronized DownloadSegment getCompleted(long start) {
+        DownloadSegment segment = find(start);
+        return segment != null && segment.isComplete() ? segment.copy() : null;
+    }
+
+    /**
+     * 查找包含指定位置的分段，分段可能还在下载中
+     *
+     * @param position 文件中的位置
+     * @return 分段的副本，没有这样的分段时返回null
+     */
+    synchronized DownloadSegment getContaining(long position) {
+        int low = 0;
+        int high = segments.size() - 1;
+        DownloadSegment found = null;   // 开始位置不超过position的最后一个分段
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            DownloadSegment segment = segments.get(middle);
+            if (segment.getStart() <= position) {
+                found = segment;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found != null && position <= found.getEnd() ? found.copy() : null;
+    }
+
+    /**
+     * 重新领取从指定位置开始的分段，用于重新下载校验失败的分段，领取期间不会分配给其他线程，完成后调用release
+     *
+     * @param start 分段的开始位置
+     * @return 分段，没有这样的分段时返回null
+     */
+    synchronized DownloadSegment reacquire(long start) {
+        DownloadSegment segment = find(start);
+        if (segment == null) return null;
+        segment.setAssigned(true);
+        return segment;
+    }
+
+    /**
+     * 二分查找从指定位置开始的分段
+     */
+    private DownloadSegment find(long start) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            DownloadSegment segment = segments.get(middle);
+            if (segment.getStart() < start) {
+                low = middle + 1;
+            } else if (segment.getStart() > start) {
+                high = middle - 1;
+            } else {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 复制全部分段的当前状态，用于写入下载记录
+     *
+     * @return 分段副本的列表
+     */
+    synchronized List<DownloadSegment> snapshot() {
+        List<DownloadSegment> copies = new ArrayList<DownloadSegment>(segments.size());
+        for (DownloadSegment segment : segments) {
+            copies.add(segment.copy());
+        }
+        return copies;
+    }
+
+    /**
+     * 获取全部分段已经下载的长度总和
+     *
+     * @return 已下载字节数
+     */
+    synchronized long getDownloadedSize() {
+        long size = 0;
+        for (DownloadSegment segment : segments) {
+            size += segment.getDownloaded();
+        }
+        return size;
+    }
+
+    /**
+     * 获取当前分段的数量
+     *
+     * @return 分段数
+     */
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+}
@@ -0,0 +1,602 @@
+package com.example.netspeedtest.droidown;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多路复用下载引擎，用一条线程和一个Selector驱动所有非阻塞的SocketChannel，直接发送HTTP/1.1的Range请求并解析响应。
+ * 不需要为每条连接开一条线程，出错重连也不会创建新的线程，适合在低端手机上开几十条连接。
+ * 每条连接从池中借用一块直接缓冲区，读到的数据直接写入存储，进度按连接计入ProgressCounter，与线程引擎一致。
+ * 只支持http地址，不支持分块传输编码的响应
+ */
+final class SelectorEngine implements Runnable {
+    private static final String TAG = "SelectorEngine"; // 设置LogCat日志标签
+    private static final int HEADER_LIMIT = 16 * 1024;  // 响应头的最大长度
+    private static final long SELECT_TIMEOUT = 100; // 每次等待就绪事件的最长时间，毫秒
+    private static final long CONNECT_TIMEOUT = 5 * 1000;   // 连接超时时间
+    private static final long READ_TIMEOUT = 30 * 1000;    // 读取超时时间
+
+    private static final int IDLE = 0;  // 没有进行中的请求，可能保留着空闲的长连接
+    private static final int CONNECTING = 1;    // 正在建立TCP连接
+    private static final int SENDING = 2;   // 正在发送请求
+    private static final int HEADER = 3;    // 正在读取响应头
+    private static final int BODY = 4;  // 正在读取分段数据
+    private static final int DRAIN = 5; // 分段已经完成，读完剩余的响应体以便复用连接
+
+    private final DownloadExecutor downloader;  // 文件下载器，用于检查暂停标志
+    private final SegmentScheduler scheduler;   // 分段调度器
+    private final DownloadStorage storage;  // 下载数据的存储后端
+    private final ProgressCounter progress; // 各连接的下载长度计数器
+    private final String host;  // 服务器地址
+    private final int port; // 服务器端口
+    private final String requestLine;   // 请求行之后Range之前的固定部分
+    private final long lastModified;    // 初始化时记录的远程文件最后修改时间
+    private final int bufferSize;   // 每条连接的缓冲区初始大小，之后按连接的速度调整
+    private final IntegrityVerifier verifier;   // 完整性校验器，为null时不为分段累加校验和
+    private final RetryPolicy retryPolicy;  // 连接出错时的重试策略
+    private final AtomicLong requestCount;  // 发出的请求数
+    private final AtomicLong firstByteTime; // 各请求首字节时间的总和，纳秒
+    private final DownloadMetrics metrics;  // 本次下载的统计数据
+    private final Connection[] connections; // 全部连接，下标加1就是连接id
+    private final BufferPool pool = BufferPool.getDefault();   // 借出直接缓冲区的共享池
+    private final SimpleDateFormat dateFormat;  // 解析Last-Modified，只在引擎线程中使用
+    private Selector selector;
+    private InetSocketAddress address;  // 解析过的服务器地址
+    private final CountDownLatch done = new CountDownLatch(1);  // 引擎关闭所有连接后计数归零
+    private volatile int connectionCount;   // 当前使用的连接数，id大于该值的连接会被关闭
+    private volatile boolean stopped;   // 要求引擎停止的标志
+    private volatile RuntimeException error;    // 导致引擎停止的错误
+
+    SelectorEngine(DownloadExecutor downloader, URL url, SegmentScheduler scheduler, DownloadStorage storage,
+                   ProgressCounter progress, long lastModified, int bufferSize, IntegrityVerifier verifier, RetryPolicy retryPolicy,
+                   int maxConnections, AtomicLong requestCount, AtomicLong firstByteTime, DownloadMetrics metrics) {
+        this.downloader = downloader;
+        this.scheduler = scheduler;
+        this.storage = storage;
+        this.progress = progress;
+        this.host = url.getHost();
+        this.port = url.getPort() > 0 ? url.getPort() : url.getDefaultPort();
+        String path = url.getFile().length() > 0 ? url.getFile() : "/";
+        this.requestLine = "GET " + path + " HTTP/1.1\r\nHost: " + url.getAuthority()
+                + "\r\nUser-Agent: droidown\r\nAccept: */*\r\nConnection: keep-alive\r\nRange: bytes=";
+        this.lastModified = lastModified;
+        this.bufferSize = bufferSize;
+        this.verifier = verifier;
+        this.retryPolicy = retryPolicy;
+        this.requestCount = requestCount;
+        this.firstByteTime = firstByteTime;
+        this.metrics = metrics;
+        this.connections = new Connection[maxConnections];
+        for (int i = 0; i < maxConnections; i++) {
+            this.connections[i] = new Connection(i + 1, new ReadRecorder(metrics.getConnection(i + 1), false));
+        }
+        this.dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        this.dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    /**
+     * 判断引擎是否支持该下载地址
+     *
+     * @param url 下载路径
+     * @return 支持为true，否则为false
+     */
+    static boolean supports(URL url) {
+        return "http".equalsIgnoreCase(url.getProtocol());
+    }
+
+    /**
+     * 在线程池的传输通道中启动引擎，整个引擎只占用一条线程
+     *
+     * @param pool 线程池
+     */
+    void start(DownloadWorkerPool pool) {
+        pool.executeTransfer(this, 0);
+    }
+
+    /**
+     * 停止引擎并等待引擎线程关闭所有连接，返回之后引擎不会再领取分段，也不会再写入存储
+     *
+     * @throws InterruptedException
+     */
+    void stop() throws InterruptedException {
+        stopped = true;
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+        done.await();   // 引擎线程只在select()中等待，被唤醒后很快就会退出
+    }
+
+    /**
+     * 改变使用的连接数，可以在任何线程中调用
+     *
+     * @param count 连接数
+     */
+    void setConnectionCount(int count) {
+        this.connectionCount = Math.min(count, connections.length);
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    /**
+     * 获取导致引擎停止的错误
+     *
+     * @return 错误，正常工作时为null
+     */
+    RuntimeException getError() {
+        return error;
+    }
+
+    @Override
+    public void run() {
+        long cpuTime = DownloadMetrics.threadCpuTime(); // 引擎线程的CPU时间只计入总数
+        long cpuSampleTime = 0;
+        try {
+            this.address = new InetSocketAddress(host, port);
+            this.selector = Selector.open();
+            while (!stopped && !downloader.isPaused()) {
+                long now = System.nanoTime() / 1000000;
+                if (now - cpuSampleTime >= 100) {   // 每100ms累计一次，不必每轮都查询
+                    long cpu = DownloadMetrics.threadCpuTime();
+                    metrics.addCpuTime(cpu - cpuTime);
+                    cpuTime = cpu;
+                    cpuSampleTime = now;
+                }
+                boolean busy = false;
+                for (Connection c : connections) {
+                    if (c.id > connectionCount) {   // 连接数减少时关闭多出的连接
+                        if (c.channel != null || c.segment != null) {
+                            close(c);
+                        }
+                        continue;
+                    }
+                    if (c.state == IDLE) {
+                        if (now < Math.max(c.retryTime, c.resumeTime)) {    // 等待重新连接或者等待令牌
+                            busy = true;
+                            continue;
+                        }
+                        c.resumeTime = 0;
+                        if (!begin(c)) continue;
+                    }
+                    busy = true;
+                    if (c.resumeTime > 0 && now >= c.resumeTime && c.key != null) {
+                        c.resumeTime = 0;
+                        c.key.interestOps(SelectionKey.OP_READ);    // 令牌已经补足，继续读取
+                        c.deadline = now + READ_TIMEOUT;
+                        c.recorder.resume(System.nanoTime());   // 限速等待不算停顿
+                    }
+                    if (now > c.deadline) {
+                        fail(c, new SocketTimeoutException("timeout in state " + c.state));
+                    }
+                }
+                if (!busy || error != null) break;  // 所有分段都已经完成或者无法继续
+                selector.select(nextTimeout(now));
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable()) {
+                            finishConnect(c);
+                        } else if (key.isValid() && key.isWritable()) {
+                            send(c);
+                        } else if (key.isValid() && key.isReadable()) {
+                            receive(c);
+                        }
+                    } catch (IOException e) {
+                        fail(c, e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            error = new RuntimeException("Selector error", e);
+        } catch (RuntimeException e) {
+            error = e;  // 不能让引擎线程悄悄退出，监视循环要知道下载已经无法继续
+            Log.w(TAG, "engine failed: " + e);
+        } finally {
+            for (Connection c : connections) {
+                close(c);
+            }
+            try {
+                if (selector != null) {
+                    selector.close();
+                }
+            } catch (IOException ignored) {
+            }
+            metrics.addCpuTime(DownloadMetrics.threadCpuTime() - cpuTime);
+            Log.i(TAG, downloader.isPaused() ? "engine has been paused" : "engine finished");
+            done.countDown();
+            downloader.wake();  // 引擎出错停止时让监视循环立即处理
+        }
+    }
+
+    /**
+     * 计算本次等待就绪事件的最长时间，有连接在等待令牌时提前醒来
+     */
+    private long nextTimeout(long now) {
+        long timeout = SELECT_TIMEOUT;
+        for (Connection c : connections) {
+            if (c.resumeTime > 0) {
+                timeout = Math.min(timeout, Math.max(1, c.resumeTime - now));
+            }
+        }
+        return timeout;
+    }
+
+    /**
+     * 为空闲的连接领取一个分段并发出请求，保留着长连接时直接复用
+     *
+     * @return 领取到分段为true，已经没有可领取的分段时为false
+     */
+    private boolean begin(Connection c) {
+        DownloadSegment segment = scheduler.acquire();
+        if (segment == null) return false;
+        c.segment = segment;
+        adaptBuffer(c);
+        try {
+            if (c.channel != null) {
+                c.reused = true;
+                request(c);
+            } else {
+                connect(c);
+            }
+        } catch (IOException e) {
+            fail(c, e);
+        }
+        return true;
+    }
+
+    private void connect(Connection c) throws IOException {
+        c.channel = SocketChannel.open();
+        c.channel.configureBlocking(false);
+        c.channel.socket().setTcpNoDelay(true);
+        if (c.buffer == null) {
+            c.buffer = pool.acquire(bufferSize, true);
+        }
+        c.reused = false;
+        if (address.isUnresolved()) {
+            address = new InetSocketAddress(host, port);    // 启动时解析失败，重新连接时再解析一次
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(host);   // 否则connect()会抛出UnresolvedAddressException
+            }
+        }
+        c.connectTime = System.nanoTime();
+        c.key = c.channel.register(selector, SelectionKey.OP_CONNECT, c);
+        if (c.channel.connect(address)) {
+            request(c);
+        } else {
+            c.state = CONNECTING;
+            c.deadline = System.nanoTime() / 1000000 + CONNECT_TIMEOUT;
+        }
+    }
+
+    private void finishConnect(Connection c) throws IOException {
+        if (c.channel.finishConnect()) {
+            request(c);
+        }
+    }
+
+    private void request(Connection c) throws IOException {
+        c.requestStart = c.segment.getPosition();
+        String request = requestLine + c.requestStart + "-" + c.segment.getEnd() + "\r\n\r\n";
+        c.request = ByteBuffer.wrap(request.getBytes("US-ASCII"));
+        c.requestTime = System.nanoTime();
+        c.connectNanos = c.reused ? -1 : c.requestTime - c.connectTime;
+        c.state = SENDING;
+        c.deadline = System.nanoTime() / 1000000 + READ_TIMEOUT;
+        c.key.interestOps(SelectionKey.OP_WRITE);
+        send(c);
+    }
+
+    private void send(Connection c) throws IOException {
+        c.channel.write(c.request);
+        if (!c.request.hasRemaining()) {
+            c.request = null;
+            c.state = HEADER;
+            c.headerLength = 0;
+            c.headerEnd = 0;
+            c.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void receive(Connection c) throws IOException {
+        ByteBuffer buffer = c.buffer;
+        buffer.clear();
+        int n = c.channel.read(buffer);
+        if (n == -1) {
+            if (c.state == IDLE) {  // 服务器关闭了空闲的长连接
+                close(c);
+                return;
+            }
+            throw new IOException("Connection closed before segment completed");
+        }
+        buffer.flip();
+        long now = System.nanoTime();
+        c.deadline = now / 1000000 + READ_TIMEOUT;
+        long wait = downloader.reserveBandwidth(n);
+        if (wait > 0) {    // 超过限速时暂停读取该连接，不阻塞引擎线程
+            c.key.interestOps(0);
+            c.resumeTime = System.nanoTime() / 1000000 + Math.max(1, wait / 1000000);
+            c.deadline = Long.MAX_VALUE;
+        }
+        if (c.state == HEADER && !readHeader(c, buffer)) return;
+        if (n > 0 && (c.state == BODY || c.state == DRAIN)) {
+            c.recorder.read(n, now);
+        }
+        if (buffer.hasRemaining() && (c.state == BODY || c.state == DRAIN)) {
+            readBody(c, buffer);
+        }
+    }
+
+    /**
+     * 读取响应头，读完时检查响应并进入读取数据的状态，缓冲区中剩下的就是响应体
+     *
+     * @return 响应头已经读完为true，否则为false
+     */
+    private boolean readHeader(Connection c, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            c.headerEnd = (b == '\r' || b == '\n') ? c.headerEnd + 1 : 0;
+            if (++c.headerLength > HEADER_LIMIT) {
+                throw new IOException("Response header too large");
+            }
+            if (c.header.length() < HEADER_LIMIT) {
+                c.header.append((char) b);
+            }
+            if (c.headerEnd == 4) {
+                parseHeader(c);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void parseHeader(Connection c) throws IOException {
+        long firstByte = System.nanoTime() - c.requestTime;
+        firstByteTime.addAndGet(firstByte);
+        requestCount.incrementAndGet();
+        String[] lines = c.header.toString().split("\r\n");
+        c.header.setLength(0);
+        String[] status = lines[0].split(" ");
+        int code = status.length > 1 ? (int) parseNumber(status[1], "status code") : -1;
+        boolean http10 = lines[0].startsWith("HTTP/1.0");
+        long length = -1;
+        long modified = 0;
+        String range = null;
+        c.keepAlive = !http10;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) continue;
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                length = parseNumber(value, "Content-Length");
+            } else if ("Connection".equalsIgnoreCase(name)) {
+                c.keepAlive = "keep-alive".equalsIgnoreCase(value) || !http10 && !"close".equalsIgnoreCase(value);
+            } else if ("Transfer-Encoding".equalsIgnoreCase(name) && !"identity".equalsIgnoreCase(value)) {
+                throw new IOException("Unsupported transfer encoding " + value);
+            } else if ("Content-Range".equalsIgnoreCase(name)) {
+                range = value;
+            } else if ("Last-Modified".equalsIgnoreCase(name)) {
+                try {
+                    modified = dateFormat.parse(value).getTime();
+                } catch (ParseException ignored) {
+                }
+            }
+        }
+        if (code == 200 && c.requestStart > 0 && downloader.isRangeServed()) {
+            throw new IOException("Range " + c.requestStart + "-" + c.segment.getEnd() + " ignored by server");
+        }
+        if (code != 206 && !(code == 200 && c.requestStart == 0)) {    // 服务器忽略Range时返回的是整个文件，只有从头开始下载才能使用
+            throw new HttpStatusException(code, "Unexpected response code " + code + " for range " + c.requestStart + "-" + c.segment.getEnd());
+        }
+        if (code == 206 && !HttpConnector.isRangeFrom(range, c.requestStart)) {
+            throw new IOException("Unexpected Content-Range " + range + " for range " + c.requestStart + "-" + c.segment.getEnd());
+        }
+        if (length < 0) {
+            throw new IOException("Missing Content-Length");
+        }
+        if (modified != lastModified) {
+            throw new HttpStatusException(412, "been referred to a different version of the file downloading");
+        }
+        if (code == 206) {
+            downloader.setRangeServed();
+        }
+        c.bodyRemaining = length;
+        c.bodyTime = System.nanoTime();
+        c.recorder.getTarget().addRequest(c.connectNanos, firstByte);
+        c.recorder.resume(c.bodyTime);
+        c.state = BODY;
+        c.attempt = 0;
+        if (retryPolicy.onSuccess()) {  // 连接正常，清除连续失败次数
+            for (Connection other : connections) {
+                other.retryTime = 0;    // 试探成功，等在熔断后面的连接立即重新连接
+            }
+        }
+        if (length == 0) {
+            throw new IOException("Empty response for segment " + c.segment.getId());
+        }
+    }
+
+    /**
+     * 解析响应头中的数字，格式错误时当作连接出错，由重试策略处理
+     *
+     * @param value 数字文本
+     * @param name  字段名，用于错误信息
+     * @return 数值
+     * @throws IOException 格式错误
+     */
+    private static long parseNumber(String value, String name) throws IOException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed " + name + " in response: " + value);
+        }
+    }
+
+    /**
+     * 处理读到的响应体，分段完成后读完剩余不多的响应体或者关闭连接
+     */
+    private void readBody(Connection c, ByteBuffer buffer) throws IOException {
+        int n = (int) Math.min(buffer.remaining(), c.bodyRemaining);
+        c.bodyRemaining -= n;
+        if (c.state == BODY) {
+            DownloadSegment segment = c.segment;
+            int length = (int) Math.min(n, segment.getRemaining()); // 分段可能已经被拆分，超出结束位置的数据属于其他分段
+            if (length > 0) {
+                int from = buffer.position();
+                buffer.limit(from + length);
+                long position = segment.getPosition();
+                storage.write(buffer, position);
+                int accepted = verifier != null ? segment.advance(buffer, from, length) : segment.advance(length);
+                progress.add(c.id, accepted);
+                if (verifier != null) {
+                    verifier.feed(position, buffer, from, accepted);    // 正好接上摘要时直接计入，省去读回
+                }
+                c.reused = false;
+                c.readBytes += length;
+            }
+            if (!segment.isComplete()) {
+                if (c.bodyRemaining == 0) {
+                    throw new IOException("Connection closed before segment " + segment.getId() + " completed");
+                }
+                return;
+            }
+            long now = System.nanoTime();
+            c.recorder.flush(now);  // 分段完成时汇总，完成回调中能读到完整的统计
+            scheduler.release(segment); // 分段完成，交还给调度器
+            downloader.wake();  // 可能是最后一个分段，让监视循环立即检查
+            c.segment = null;
+            c.readNanos += now - c.bodyTime;
+            if (c.bodyRemaining > HttpConnector.DRAIN_LIMIT || !c.keepAlive) {
+                close(c);   // 剩余太多，断开比读完更快
+                return;
+            }
+            c.state = DRAIN;
+        }
+        if (c.bodyRemaining == 0) {
+            c.state = IDLE; // 保留长连接，下一个分段直接复用
+            c.deadline = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * 连接空闲时检查：累计读取超过100ms后按这条连接的实际速度换一个合适大小的缓冲区
+     */
+    private void adaptBuffer(Connection c) {
+        if (c.readNanos < 100 * 1000000L) return;
+        int size = BufferPool.sizeFor(c.readBytes * 1e9 / c.readNanos, bufferSize);
+        c.readBytes = 0;
+        c.readNanos = 0;
+        if (c.buffer != null && size != c.buffer.capacity()) {
+            pool.release(c.buffer);
+            c.buffer = pool.acquire(size, true);
+        }
+    }
+
+    /**
+     * 连接出错，交还分段并按重试策略安排重新连接，重试策略放弃时停止引擎
+     */
+    private void fail(Connection c, IOException e) {
+        Log.w(TAG, "Connection " + c.id + ":" + e);
+        boolean reused = c.reused;
+        close(c);
+        RetryPolicy.ErrorClass error = RetryPolicy.classify(e);
+        if (reused) {   // 复用的长连接可能已经被服务器关闭，立即重新连接
+            c.recorder.getTarget().addFailure(e, error, true);
+            c.retryTime = 0;
+            return;
+        }
+        long wait = retryPolicy.onFailure(c.attempt++, error, connectionCount);
+        c.recorder.getTarget().addFailure(e, error, wait >= 0);
+        if (wait < 0) {
+            this.error = new RuntimeException("No download connection functional (" + error + ")", e);
+            return;
+        }
+        c.retryTime = System.nanoTime() / 1000000 + wait;
+    }
+
+    /**
+     * 关闭连接，交还分段和缓冲区
+     */
+    private void close(Connection c) {
+        if (c.segment != null) {
+            scheduler.release(c.segment);   // 由其他连接或者重新建立的连接继续下载
+            c.segment = null;
+        }
+        if (c.channel != null) {
+            try {
+                c.channel.close();
+            } catch (IOException ignored) {
+            }
+            c.channel = null;
+            c.key = null;
+        }
+        if (c.buffer != null) {
+            pool.release(c.buffer);
+            c.buffer = null;
+        }
+        c.recorder.flush(System.nanoTime());
+        c.header.setLength(0);
+        c.request = null;
+        c.reused = false;
+        c.resumeTime = 0;
+        c.state = IDLE;
+        c.deadline = Long.MAX_VALUE;
+    }
+
+    /**
+     * 一条连接的状态
+     */
+    private static final class Connection {
+        final int id;   // 连接id，同时是进度计数槽的编号
+        final StringBuilder header = new StringBuilder();   // 响应头
+        final ReadRecorder recorder;    // 读取路径上的统计
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer buffer;  // 从共享池借用的直接缓冲区
+        ByteBuffer request; // 还没有发送完的请求
+        DownloadSegment segment;    // 正在下载的分段
+        int state = IDLE;
+        int headerLength;   // 已经读取的响应头长度
+        int headerEnd;  // 连续读到的换行符数
+        long requestStart;  // 请求的开始位置
+        long requestTime;   // 发出请求的时间，纳秒
+        long connectTime;   // 开始建立TCP连接的时间，纳秒
+        long connectNanos;  // 当前请求建立TCP连接花费的时间，复用长连接时为-1
+        long bodyTime;  // 开始读取响应体的时间，纳秒
+        long readBytes; // 上次调整缓冲区之后读到的分段数据长度
+        long readNanos; // 上次调整缓冲区之后读取分段数据花费的时间，纳秒
+        long bodyRemaining; // 还没有读取的响应体长度
+        long deadline = Long.MAX_VALUE; // 当前状态的超时时间
+        long retryTime; // 出错后允许重新连接的时间
+        long resumeTime;    // 限速暂停读取后恢复读取的时间，0为没有暂停
+        boolean keepAlive;  // 服务器是否允许复用连接
+        boolean reused; // 当前请求是否复用了长连接并且还没有收到数据
+        int attempt;    // 连续重试的次数，成功收到响应后清零
+
+        Connection(int id, ReadRecorder recorder) {
+            this.id = id;
+            this.recorder = recorder;
+        }
+    }
+}
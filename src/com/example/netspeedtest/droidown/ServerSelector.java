@@ -0,0 +1,400 @@
+package com.example.netspeedtest.droidown;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测速服务器选择器，测速开始前并行探测所有候选服务器：先用几个只取1个字节的Range请求测量延迟，
+ * 再取一小段数据测量短时吞吐量，按吞吐量排名，吞吐量相近时延迟低的优先，排名第一的服务器用于正式测速。
+ * 探测有总时限，超时没有完成的服务器按已经得到的结果排名。排名按网络类型缓存一段时间，切换回同一种网络时不需要重新探测。
+ * 探测用的连接会留在系统的连接池中，正式测速可以直接复用排名第一的服务器的连接
+ */
+public final class ServerSelector {
+    private static final String TAG = "ServerSelector"; // 设置LogCat日志标签
+    private static final double THROUGHPUT_TIE = 0.2;   // 吞吐量相差不到20%时按延迟排名
+    private static final Map<String, Ranking> CACHE = new HashMap<String, Ranking>();   // 按网络类型缓存的排名
+
+    private final List<URL> candidates; // 候选服务器上的测速文件地址
+    private final String key;   // 候选服务器列表的字符串形式，URL.equals()会解析域名，缓存用它判断列表是否相同
+    private int latencyRounds = 3;  // 每个服务器测量延迟的次数
+    private int probeBytes = 128 * 1024;    // 测量吞吐量时下载的长度
+    private long timeout = 800; // 整个选择过程的时限，毫秒
+    private long ttl = 10 * 60 * 1000;  // 排名缓存的有效时间，毫秒
+    private DownloadWorkerPool workerPool = DownloadWorkerPool.getDefault();    // 运行探测的线程池
+
+    /**
+     * 初始化一个服务器选择器
+     *
+     * @param candidates 候选服务器上的测速文件地址，不能为空
+     */
+    public ServerSelector(List<URL> candidates) {
+        if (candidates.isEmpty()) {
+            throw new IllegalArgumentException("no candidate servers");
+        }
+        this.candidates = Collections.unmodifiableList(new ArrayList<URL>(candidates));
+        this.key = this.candidates.toString();
+    }
+
+    /**
+     * 从文本中读取候选服务器，每行一个地址，忽略空行和以#开头的注释行
+     *
+     * @param in 输入流，读完后关闭
+     * @return 地址列表
+     * @throws IOException
+     */
+    public static List<URL> readCandidates(InputStream in) throws IOException {
+        List<URL> urls = new ArrayList<URL>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) continue;
+                try {
+                    urls.add(new URL(line));
+                } catch (MalformedURLException e) {
+                    Log.w(TAG, "Ignored candidate " + line + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return urls;
+    }
+
+    /**
+     * 从本地文件中读取候选服务器，格式同readCandidates(InputStream)
+     *
+     * @param file 服务器列表文件
+     * @return 地址列表
+     * @throws IOException
+     */
+    public static List<URL> readCandidates(File file) throws IOException {
+        return readCandidates(new FileInputStream(file));
+    }
+
+    /**
+     * 清除所有网络类型的排名缓存，例如候选服务器列表更新之后
+     */
+    public static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    public List<URL> getCandidates() {
+        return candidates;
+    }
+
+    public int getLatencyRounds() {
+        return latencyRounds;
+    }
+
+    /**
+     * 设置每个服务器测量延迟的次数，取其中的最小值
+     *
+     * @param rounds 次数
+     */
+    public void setLatencyRounds(int rounds) {
+        this.latencyRounds = Math.max(1, rounds);
+    }
+
+    public int getProbeBytes() {
+        return probeBytes;
+    }
+
+    /**
+     * 设置测量吞吐量时下载的长度，为0时只测延迟
+     *
+     * @param bytes 字节数
+     */
+    public void setProbeBytes(int bytes) {
+        this.probeBytes = Math.max(0, bytes);
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * 设置整个选择过程的时限
+     *
+     * @param millis 毫秒
+     */
+    public void setTimeout(long millis) {
+        this.timeout = Math.max(1, millis);
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * 设置排名缓存的有效时间
+     *
+     * @param millis 毫秒，0为不使用缓存
+     */
+    public void setTtl(long millis) {
+        this.ttl = Math.max(0, millis);
+    }
+
+    /**
+     * 设置运行探测的线程池，默认使用共享线程池
+     *
+     * @param workerPool 线程池
+     */
+    public void setWorkerPool(DownloadWorkerPool workerPool) {
+        this.workerPool = workerPool;
+    }
+
+    /**
+     * 选择当前网络下最好的测速服务器，有未过期的缓存时直接返回，否则会阻塞当前线程进行探测，不能在主线程中调用
+     *
+     * @param networkType 网络类型，例如NetworkInfo.getTypeName()，用作缓存的键
+     * @return 排名第一的服务器地址，所有服务器都探测失败时返回第一个候选服务器
+     * @throws InterruptedException
+     */
+    public URL select(String networkType) throws InterruptedException {
+        List<Result> ranking = rank(networkType);
+        return ranking.get(0).isReachable() ? ranking.get(0).getUrl() : this.candidates.get(0);
+    }
+
+    /**
+     * 获取当前网络下所有候选服务器的排名，有未过期的缓存时直接返回，否则会阻塞当前线程进行探测
+     *
+     * @param networkType 网络类型，用作缓存的键
+     * @return 从好到差排列的探测结果，不可修改
+     * @throws InterruptedException
+     */
+    public List<Result> rank(String networkType) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        synchronized (CACHE) {
+            Ranking cached = CACHE.get(networkType);
+            if (cached != null && cached.key.equals(this.key) && now - cached.time < this.ttl) {
+                return cached.results;
+            }
+        }
+        List<Result> results = probeAll();
+        Log.i(TAG, "Servers on " + networkType + ": " + results);
+        if (results.get(0).isReachable()) {  // 全部失败时不缓存，下次重新探测
+            synchronized (CACHE) {
+                CACHE.put(networkType, new Ranking(this.key, results, now));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 并行探测所有候选服务器，到达时限后按已经得到的结果排名
+     *
+     * @return 从好到差排列的探测结果
+     * @throws InterruptedException
+     */
+    private List<Result> probeAll() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + this.timeout;
+        final CountDownLatch done = new CountDownLatch(this.candidates.size());
+        final Result[] results = new Result[this.candidates.size()];
+        for (int i = 0; i < results.length; i++) {
+            final Result result = results[i] = new Result(this.candidates.get(i));
+            this.workerPool.executeTransfer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        probe(result, deadline);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, 0);
+        }
+        done.await(this.timeout, TimeUnit.MILLISECONDS);
+        Result[] ranked = new Result[results.length];
+        for (int i = 0; i < results.length; i++) {
+            ranked[i] = results[i].copy();  // 超时的探测还在继续，排名使用此刻的结果
+        }
+        Arrays.sort(ranked, RANK_ORDER);
+        return Collections.unmodifiableList(Arrays.asList(ranked));
+    }
+
+    /**
+     * 探测一个服务器，先测延迟，再测短时吞吐量，超过时限后立即停止
+     *
+     * @param result   记录探测结果
+     * @param deadline 时限，System.currentTimeMillis()的时间
+     */
+    private void probe(Result result, long deadline) {
+        byte[] buffer = new byte[8 * 1024];
+        try {
+            for (int i = 0; i < this.latencyRounds && System.currentTimeMillis() < deadline; i++) {
+                long begin = System.nanoTime();
+                HttpURLConnection http = open(result.getUrl(), "bytes=0-0", deadline);
+                int code = http.getResponseCode();
+                long elapsed = System.nanoTime() - begin;   // 第一次包括建立连接的时间，之后复用长连接，只有往返时间
+                if (code != HttpURLConnection.HTTP_PARTIAL && code != HttpURLConnection.HTTP_OK) {
+                    HttpConnector.discardError(http, buffer);
+                    throw new HttpStatusException(code, "Unexpected response code " + code);
+                }
+                HttpConnector.release(http.getInputStream(), code == HttpURLConnection.HTTP_PARTIAL ? 1 : 0, buffer);
+                result.latency(elapsed);
+            }
+            if (this.probeBytes <= 0 || System.currentTimeMillis() >= deadline) return;
+            HttpURLConnection http = open(result.getUrl(), "bytes=0-" + (this.probeBytes - 1), deadline);
+            InputStream in = http.getInputStream();
+            long begin = System.nanoTime();
+            long total = 0;
+            int n;
+            while (total < this.probeBytes && (n = in.read(buffer)) != -1) {
+                total += n;
+                result.throughput(total, System.nanoTime() - begin);
+                if (System.currentTimeMillis() >= deadline) break;
+            }
+            HttpConnector.release(in, total >= this.probeBytes ? 0 : Long.MAX_VALUE, buffer);
+        } catch (IOException e) {
+            result.failed();
+            Log.w(TAG, "Probe " + result.getUrl() + " failed: " + e);
+        }
+    }
+
+    /**
+     * 打开一个探测请求，连接和读取的超时都不超过剩余的时间
+     */
+    private static HttpURLConnection open(URL url, String range, long deadline) throws IOException {
+        HttpURLConnection http = HttpConnector.open(url, range);
+        int remaining = (int) Math.max(1, deadline - System.currentTimeMillis());
+        http.setConnectTimeout(remaining);
+        http.setReadTimeout(remaining);
+        return http;
+    }
+
+    /**
+     * 排名的顺序：能连通的在前，都测到了吞吐量时吞吐量高的在前，相差不到20%时延迟低的在前，没有测到吞吐量时按延迟排名
+     */
+    private static final Comparator<Result> RANK_ORDER = new Comparator<Result>() {
+        @Override
+        public int compare(Result a, Result b) {
+            if (a.isReachable() != b.isReachable()) return a.isReachable() ? -1 : 1;
+            double ta = a.getThroughput(), tb = b.getThroughput();
+            if (ta > 0 && tb > 0 && Math.abs(ta - tb) > THROUGHPUT_TIE * Math.max(ta, tb)) {
+                return ta > tb ? -1 : 1;
+            }
+            if ((ta > 0) != (tb > 0)) return ta > 0 ? -1 : 1;
+            return Double.compare(a.getLatency(), b.getLatency());
+        }
+    };
+
+    /**
+     * 一个候选服务器的探测结果
+     */
+    public static final class Result {
+        private final URL url;  // 服务器上的测速文件地址
+        private long latency = -1;  // 最小的请求往返时间，纳秒，没有测到时为-1
+        private double throughput;  // 短时吞吐量，字节/秒，没有测到时为0
+        private boolean failed; // 探测出错
+
+        Result(URL url) {
+            this.url = url;
+        }
+
+        public URL getUrl() {
+            return url;
+        }
+
+        /**
+         * 获取最小的请求往返时间
+         *
+         * @return 毫秒，没有测到时为-1
+         */
+        public synchronized double getLatency() {
+            return latency < 0 ? -1 : latency / 1000000.0;
+        }
+
+        /**
+         * 获取短时吞吐量，只下载了一小段数据，通常低于正式测速的结果，只用于比较服务器
+         *
+         * @return 字节/秒，没有测到时为0
+         */
+        public synchronized double getThroughput() {
+            return throughput;
+        }
+
+        /**
+         * 判断服务器是否能连通，至少成功测到一次延迟
+         *
+         * @return 是为true，否则为false
+         */
+        public synchronized boolean isReachable() {
+            return latency >= 0;
+        }
+
+        /**
+         * 判断探测过程中是否出错
+         *
+         * @return 是为true，否则为false
+         */
+        public synchronized boolean isFailed() {
+            return failed;
+        }
+
+        synchronized void latency(long nanos) {
+            if (latency < 0 || nanos < latency) {
+                latency = nanos;
+            }
+        }
+
+        synchronized void throughput(long bytes, long nanos) {
+            if (nanos > 0) {
+                throughput = bytes * 1e9 / nanos;
+            }
+        }
+
+        synchronized void failed() {
+            failed = true;
+        }
+
+        synchronized Result copy() {
+            Result result = new Result(url);
+            result.latency = latency;
+            result.throughput = throughput;
+            result.failed = failed;
+            return result;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return url + "(" + (latency < 0 ? "unreachable" : String.format("%.1fms %dKB/s", latency / 1000000.0, (long) throughput / 1024)) + ")";
+        }
+    }
+
+    /**
+     * 一种网络类型下缓存的排名
+     */
+    private static final class Ranking {
+        final String key;   // 排名时的候选服务器列表
+        final List<Result> results; // 从好到差排列的探测结果
+        final long time;    // 排名的时间
+
+        Ranking(String key, List<Result> results, long time) {
+            this.key = key;
+            this.results = results;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.netspeedtest.droidown;
+
+/**
+ * 稳态检测器，先识别TCP慢启动和连接建立造成的爬升阶段并把它排除在结果之外，
+ * 之后按固定长度的时间块统计速度，当速度均值的95%置信区间相对宽度落在给定范围内时认为速度已经收敛
+ */
+final class SteadyStateDetector {
+    private static final long BLOCK = 500;  // 统计时间块的长度，毫秒
+    private static final double RAMP_TOLERANCE = 0.1;   // 相邻两块的速度增长低于10%时认为爬升结束
+    private static final int MIN_BLOCKS = 6;    // 判断收敛至少需要的稳态时间块数
+    private static final double Z95 = 1.96; // 95%置信区间对应的正态分位数
+
+    private double band;    // 收敛判定的置信区间相对半宽，例如0.05表示±5%
+    private boolean rampFinished;   // 爬升阶段是否已经结束
+    private long rampEndTime;   // 爬升结束的时间
+    private long rampEndBytes;  // 爬升结束时已下载的长度
+    private long blockTime; // 当前时间块的开始时间
+    private long blockBytes;    // 当前时间块开始时已下载的长度
+    private double lastBlockRate;   // 上一个时间块的速度
+    private long lastTime;  // 最近一次更新的时间
+    private long lastBytes; // 最近一次更新时已下载的长度
+    private int blocks; // 稳态时间块数
+    private double mean;    // 稳态时间块速度的均值
+    private double m2;  // 稳态时间块速度的离差平方和
+
+    synchronized double getBand() {
+        return band;
+    }
+
+    synchronized void setBand(double band) {
+        this.band = band;
+    }
+
+    /**
+     * 重新开始检测
+     *
+     * @param now        当前时间，毫秒
+     * @param downloaded 当前已下载的长度
+     */
+    synchronized void reset(long now, long downloaded) {
+        this.rampFinished = false;
+        this.rampEndTime = now;
+        this.rampEndBytes = downloaded;
+        this.blockTime = now;
+        this.blockBytes = downloaded;
+        this.lastBlockRate = 0;
+        this.lastTime = now;
+        this.lastBytes = downloaded;
+        this.blocks = 0;
+        this.mean = 0;
+        this.m2 = 0;
+    }
+
+    /**
+     * 输入一次采样
+     *
+     * @param now        当前时间，毫秒
+     * @param downloaded 当前已下载的长度
+     */
+    synchronized void update(long now, long downloaded) {
+        this.lastTime = now;
+        this.lastBytes = downloaded;
+        long elapsed = now - blockTime;
+        if (elapsed < BLOCK) return;
+        double rate = (downloaded - blockBytes) * 1000.0 / elapsed;
+        blockTime = now;
+        blockBytes = downloaded;
+        if (!rampFinished) {
+            if (rate > 0 && lastBlockRate > 0 && rate < lastBlockRate * (1 + RAMP_TOLERANCE)) {
+                rampFinished = true;    // 速度不再明显增长，从此刻开始统计稳态速度
+                rampEndTime = now;
+                rampEndBytes = downloaded;
+            }
+            lastBlockRate = rate;
+            return;
+        }
+        blocks++;   // Welford算法在线计算均值和方差
+        double delta = rate - mean;
+        mean += delta / blocks;
+        m2 += delta * (rate - mean);
+    }
+
+    /**
+     * 判断爬升阶段是否已经结束
+     *
+     * @return 结束了为true，否则为false
+     */
+    synchronized boolean isRampFinished() {
+        return rampFinished;
+    }
+
+    /**
+     * 获取爬升阶段的时长
+     *
+     * @param start 开始检测的时间
+     * @return 毫秒，爬升尚未结束时返回-1
+     */
+    synchronized long getRampDuration(long start) {
+        return rampFinished ? rampEndTime - start : -1;
+    }
+
+    /**
+     * 判断稳态速度是否已经收敛
+     *
+     * @return 收敛了为true，否则为false
+     */
+    synchronized boolean isConverged() {
+        if (band <= 0 || blocks < MIN_BLOCKS || mean <= 0) return false;
+        double halfWidth = Z95 * Math.sqrt(m2 / (blocks - 1) / blocks);
+        return halfWidth / mean <= band;
+    }
+
+    /**
+     * 获取爬升结束之后的平均速度
+     *
+     * @return 字节/秒，爬升尚未结束时返回0
+     */
+    synchronized double getSteadyRate() {
+        long elapsed = lastTime - rampEndTime;
+        return rampFinished && elapsed > 0 ? (lastBytes - rampEndBytes) * 1000.0 / elapsed : 0;
+    }
+}
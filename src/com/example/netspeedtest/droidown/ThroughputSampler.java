@@ -0,0 +1,183 @@
+package com.example.netspeedtest.droidown;
+
+import java.util.Arrays;
+
+/**
+ * 吞吐量采样器，按固定间隔把(时间, 已下载长度)记录到定长的环形缓冲区中，计算瞬时速度、平滑速度、峰值和分位数。
+ * 采样时不分配任何对象，所有速度的单位都是字节/秒
+ */
+final class ThroughputSampler {
+    private final long[] times; // 采样时间，毫秒
+    private final long[] bytes; // 采样时已下载的长度
+    private final double[] scratch; // 计算分位数时使用的临时数组
+    private int head;   // 下一个采样要写入的位置
+    private int count;  // 环形缓冲区中的有效采样数
+    private long interval = 100;    // 采样间隔，毫秒
+    private long window = 1000; // 计算瞬时速度的滑动窗口，毫秒
+    private long startTime; // 开始采样的时间
+    private long startBytes;    // 开始采样时已下载的长度
+    private double ewmaRate;    // 指数加权移动平均速度
+    private double peakRate;    // 滑动窗口速度的峰值
+
+    /**
+     * 初始化采样器
+     *
+     * @param capacity 环形缓冲区最多保存的采样数
+     */
+    ThroughputSampler(int capacity) {
+        this.times = new long[capacity];
+        this.bytes = new long[capacity];
+        this.scratch = new double[capacity];
+    }
+
+    synchronized long getInterval() {
+        return interval;
+    }
+
+    synchronized void setInterval(long interval) {
+        this.interval = Math.max(1, interval);
+    }
+
+    synchronized long getWindow() {
+        return window;
+    }
+
+    synchronized void setWindow(long window) {
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * 清空采样并以当前状态作为起点
+     *
+     * @param now        当前时间，毫秒
+     * @param downloaded 当前已下载的长度
+     */
+    synchronized void reset(long now, long downloaded) {
+        this.head = 0;
+        this.count = 0;
+        this.startTime = now;
+        this.startBytes = downloaded;
+        this.ewmaRate = 0;
+        this.peakRate = 0;
+        put(now, downloaded);
+    }
+
+    /**
+     * 记录一次采样，距离上一次采样不足采样间隔时忽略
+     *
+     * @param now        当前时间，毫秒
+     * @param downloaded 当前已下载的长度
+     * @return 记录了为true，被忽略为false
+     */
+    synchronized boolean sample(long now, long downloaded) {
+        if (count == 0) {
+            reset(now, downloaded);
+            return true;
+        }
+        int last = index(count - 1);
+        long elapsed = now - times[last];
+        if (elapsed < interval) return false;
+        double rate = (downloaded - bytes[last]) * 1000.0 / elapsed;
+        double alpha = 1 - Math.exp(-(double) elapsed / window);   // 时间常数取滑动窗口长度，采样间隔不均匀时权重也正确
+        ewmaRate = count == 1 ? rate : ewmaRate + alpha * (rate - ewmaRate);   // 第一个间隔直接作为初值，避免从0开始爬升
+        put(now, downloaded);
+        double windowRate = getWindowRate();
+        if (windowRate > peakRate) {
+            peakRate = windowRate;
+        }
+        return true;
+    }
+
+    /**
+     * 获取滑动窗口内的平均速度，即瞬时速度
+     *
+     * @return 字节/秒
+     */
+    synchronized double getWindowRate() {
+        if (count < 2) return 0;
+        int newest = index(count - 1);
+        int oldest = newest;
+        for (int i = count - 2; i >= 0; i--) {  // 从最新的采样往回找到窗口起点
+            int candidate = index(i);
+            oldest = candidate;
+            if (times[newest] - times[candidate] >= window) break;
+        }
+        long elapsed = times[newest] - times[oldest];
+        return elapsed > 0 ? (bytes[newest] - bytes[oldest]) * 1000.0 / elapsed : 0;
+    }
+
+    /**
+     * 获取指数加权移动平均速度
+     *
+     * @return 字节/秒
+     */
+    synchronized double getEwmaRate() {
+        return ewmaRate;
+    }
+
+    /**
+     * 获取滑动窗口速度的峰值
+     *
+     * @return 字节/秒
+     */
+    synchronized double getPeakRate() {
+        return peakRate;
+    }
+
+    /**
+     * 获取开始采样以来的平均速度
+     *
+     * @return 字节/秒
+     */
+    synchronized double getAverageRate() {
+        if (count == 0) return 0;
+        int newest = index(count - 1);
+        long elapsed = times[newest] - startTime;
+        return elapsed > 0 ? (bytes[newest] - startBytes) * 1000.0 / elapsed : 0;
+    }
+
+    /**
+     * 获取各采样间隔速度的分位数，只统计环形缓冲区中保留的采样
+     *
+     * @param percentile 0到100之间的百分位，例如10、50、90
+     * @return 字节/秒
+     */
+    synchronized double getPercentileRate(double percentile) {
+        int n = count - 1;
+        if (n <= 0) return 0;
+        for (int i = 0; i < n; i++) {
+            int from = index(i);
+            int to = index(i + 1);
+            long elapsed = times[to] - times[from];
+            scratch[i] = elapsed > 0 ? (bytes[to] - bytes[from]) * 1000.0 / elapsed : 0;
+        }
+        Arrays.sort(scratch, 0, n);
+        int rank = (int) Math.round(Math.max(0, Math.min(100, percentile)) / 100 * (n - 1));
+        return scratch[rank];
+    }
+
+    /**
+     * 获取环形缓冲区中的有效采样数
+     *
+     * @return 采样数
+     */
+    synchronized int getSampleCount() {
+        return count;
+    }
+
+    private void put(long now, long downloaded) {
+        times[head] = now;
+        bytes[head] = downloaded;
+        head = (head + 1) % times.length;
+        if (count < times.length) {
+            count++;
+        }
+    }
+
+    /**
+     * 把从旧到新的第i个采样换算成环形缓冲区中的下标
+     */
+    private int index(int i) {
+        return (head - count + i + times.length) % times.length;
+    }
+}
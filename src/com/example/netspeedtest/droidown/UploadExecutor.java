@@ -0,0 +1,639 @@
+package com.example.netspeedtest.droidown;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 上传测速器，多条连接并行地把生成的数据POST/PUT到服务器，以服务器确认收到的数据计算上传速度。
+ * 每次请求的长度按这条连接测得的速度调整，让一次请求大约持续REQUEST_NANOS，服务器的确认足够频繁，速度采样和停止条件都以确认的数据为准。
+ * 数据由每条线程重复使用的一块缓存生成，上传几百MB也不会按上传量分配内存
+ */
+public final class UploadExecutor {
+    private static final String TAG = "UploadExecutor";   // 设置LogCat日志标签
+    private static final long MIN_REQUEST_SIZE = 64 * 1024; // 每次请求上传的最小长度，也是每条连接第一次请求的长度
+    private static final long REQUEST_NANOS = 250 * 1000000L;   // 每次请求的目标时长，纳秒
+    private static final long DRAIN_MILLIS = 1000;  // 停止后等待正在进行的请求完成的最长时间，毫秒
+    private UploadListener listener;    // 上传进度监听器
+    private UploadWorker[] threads; // 根据线程数设置上传作业
+    private DownloadWorkerPool workerPool = DownloadWorkerPool.getDefault();   // 运行上传作业的共享线程池
+    private ProgressCounter progress;   // 各上传线程已发送的长度计数器
+    private final AtomicLong acknowledgedSize = new AtomicLong();  // 服务器已确认收到的长度
+    private final AtomicLong remaining = new AtomicLong();  // 还没有分配给上传线程的长度
+    private final ThroughputSampler sampler = new ThroughputSampler(1024);  // 上传速度采样器
+    private final SteadyStateDetector detector = new SteadyStateDetector(); // 稳态检测器
+    private URL uploadUrl;  // 上传路径
+    private String method = "POST"; // 上传使用的请求方法
+    private boolean chunked;    // 是否使用分块传输编码
+    private boolean initialized;    // 初始化上传标志
+    private boolean uploading;  // 上传进行中标志
+    private volatile boolean paused;    // 停止上传标志，上传线程不再发出新的请求
+    private volatile boolean aborted;   // 放弃正在进行的请求，停止后等待超过DRAIN_MILLIS时设置，上传线程每次写入都会检查
+    private volatile DownloadExecutor.StopReason stopReason;    // 上传停止的原因
+    private boolean finished;   // 完成上传标志
+    private boolean failed; // 上传失败标志
+    private long uploadSize;    // 要上传的总长度，0为不限制，直到满足停止条件
+    private long requestSize = 1024 * 1024 * 4; // 每次请求上传的最大长度
+    private long spentTime; // 上传过程使用了的时间
+    private long timeLimit; // 单次上传的最长时间，0为不限制
+    private long byteLimit; // 单次上传的最大长度，0为不限制
+    private long delay = 1000 * 5;  // 上传不正常时重新连接的等待时间
+    private int retryLimit = 35;    // 上传不正常时重新连接的最大次数
+    private int cacheSize = 1024 * 64;  // 上传缓冲区大小
+
+    /**
+     * 初始化一个上传测速器，默认每次请求的长度按连接速度在64KB到4MB之间调整，缓存空间为1024 * 64字节
+     *
+     * @param uploadUrl  上传路径
+     * @param uploadSize 要上传的总长度，0为不限制，直到调用pause()或者满足停止条件
+     * @param threadSize 上传线程的数量
+     * @throws MalformedURLException
+     */
+    public UploadExecutor(String uploadUrl, long uploadSize, Integer threadSize) throws MalformedURLException {
+        this(new URL(uploadUrl), uploadSize, threadSize);
+    }
+
+    /**
+     * 初始化一个上传测速器，默认每次请求的长度按连接速度在64KB到4MB之间调整，缓存空间为1024 * 64字节
+     *
+     * @param uploadUrl  上传路径
+     * @param uploadSize 要上传的总长度，0为不限制，直到调用pause()或者满足停止条件
+     * @param threadSize 上传线程的数量
+     */
+    public UploadExecutor(URL uploadUrl, long uploadSize, Integer threadSize) {
+        if (uploadSize < 0) {
+            throw new IllegalArgumentException("the upload size can't be negative");
+        }
+        this.uploadUrl = uploadUrl;
+        this.uploadSize = uploadSize;
+        this.threads = new UploadWorker[(threadSize != null && threadSize > 0 ? threadSize : 1)];
+        this.progress = new ProgressCounter(this.threads.length);
+    }
+
+    /**
+     * 获取上传路径
+     *
+     * @return 上传路径
+     */
+    public URL getUploadUrl() {
+        return uploadUrl;
+    }
+
+    /**
+     * 获取上传线程数量
+     *
+     * @return 线程数
+     */
+    public int getThreadSize() {
+        return threads.length;
+    }
+
+    /**
+     * 获取运行上传作业的线程池
+     *
+     * @return 线程池
+     */
+    public DownloadWorkerPool getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * 设置运行上传作业的线程池，默认使用所有任务共享的线程池
+     *
+     * @param workerPool 线程池
+     */
+    public void setWorkerPool(DownloadWorkerPool workerPool) {
+        this.workerPool = workerPool;
+    }
+
+    /**
+     * 设置上传使用的请求方法
+     *
+     * @param method "POST"或者"PUT"
+     */
+    public void setRequestMethod(String method) {
+        this.method = method;
+    }
+
+    /**
+     * 设置是否使用分块传输编码，默认每次请求使用固定长度
+     *
+     * @param chunked 是否分块
+     */
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    /**
+     * 获取每次请求上传的最大长度
+     *
+     * @return 字节数
+     */
+    public long getRequestSize() {
+        return requestSize;
+    }
+
+    /**
+     * 设置每次请求上传的最大长度，每次请求完成后服务器的响应确认这部分数据已经收到。
+     * 实际的长度按连接速度调整，让一次请求大约持续250ms，不会超过该值
+     *
+     * @param bytes 字节数
+     */
+    public void setRequestSize(long bytes) {
+        if (bytes <= 0 || bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("the request size must be between 1 and " + Integer.MAX_VALUE);
+        }
+        this.requestSize = bytes;
+    }
+
+    /**
+     * 获取上传缓冲区大小
+     *
+     * @return 缓冲区大小
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * 设置上传缓冲区大小，每条上传线程重复发送这块缓冲区中的数据
+     *
+     * @param cacheSize 缓冲区大小
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * 设置上传线程出错时重新连接的等待时间
+     *
+     * @param millis 毫秒
+     */
+    public void setDelay(long millis) {
+        this.delay = millis;
+    }
+
+    /**
+     * 设置允许上传线程的最大重新连接次数
+     *
+     * @param times 要设定的值
+     */
+    public void setRetryLimit(int times) {
+        this.retryLimit = times;
+    }
+
+    /**
+     * 设置自动停止上传的条件，任何一个条件满足都会停止
+     *
+     * @param band   稳态速度收敛的判定范围(置信区间相对半宽)，0为不检测收敛
+     * @param millis 单次上传的最长时间，0为不限制
+     * @param bytes  单次上传的最大长度，0为不限制
+     */
+    public void setStopCondition(double band, long millis, long bytes) {
+        this.detector.setBand(band);
+        this.timeLimit = millis;
+        this.byteLimit = bytes;
+    }
+
+    /**
+     * 设置上传速度的采样间隔
+     *
+     * @param millis 毫秒
+     */
+    public void setSampleInterval(long millis) {
+        sampler.setInterval(millis);
+    }
+
+    /**
+     * 获取要上传的总长度
+     *
+     * @return 字节数，0为不限制
+     */
+    public long getUploadSize() {
+        return uploadSize;
+    }
+
+    /**
+     * 获取已经发送的长度，包括服务器还没有确认的部分
+     *
+     * @return 字节数
+     */
+    public long getUploadedSize() {
+        return progress.sum();
+    }
+
+    /**
+     * 获取服务器已经确认收到的长度
+     *
+     * @return 字节数
+     */
+    public long getAcknowledgedSize() {
+        return acknowledgedSize.get();
+    }
+
+    /**
+     * 获取上传到目前为止的耗时
+     *
+     * @return 毫秒数
+     */
+    public long getSpentTime() {
+        return spentTime;
+    }
+
+    /**
+     * 获取当前的瞬时上传速度，以服务器确认收到的数据计算
+     *
+     * @return 字节/秒
+     */
+    public double getCurrentSpeed() {
+        return sampler.getWindowRate();
+    }
+
+    /**
+     * 获取排除了爬升阶段之后的稳态上传速度，以服务器确认收到的数据计算
+     *
+     * @return 字节/秒
+     */
+    public double getSteadySpeed() {
+        return detector.isRampFinished() ? detector.getSteadyRate() : sampler.getAverageRate();
+    }
+
+    /**
+     * 获取本次上传中瞬时速度的峰值
+     *
+     * @return 字节/秒
+     */
+    public double getPeakSpeed() {
+        return sampler.getPeakRate();
+    }
+
+    /**
+     * 获取各采样间隔速度的分位数
+     *
+     * @param percentile 0到100之间的百分位
+     * @return 字节/秒
+     */
+    public double getSpeedPercentile(double percentile) {
+        return sampler.getPercentileRate(percentile);
+    }
+
+    /**
+     * 获取以服务器确认收到的数据计算的平均上传速度，这是上传测速的结果
+     *
+     * @return 字节/秒
+     */
+    public double getAcknowledgedSpeed() {
+        return spentTime > 0 ? acknowledgedSize.get() * 1000.0 / spentTime : 0;
+    }
+
+    /**
+     * 获取上传停止的原因
+     *
+     * @return 停止原因，上传进行中或者正常完成时为null
+     */
+    public DownloadExecutor.StopReason getStopReason() {
+        return stopReason;
+    }
+
+    /**
+     * 设置上传状态监听器
+     *
+     * @param listener 监听器
+     */
+    public void setUploadListener(UploadListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 退出上传
+     */
+    public void pause() {
+        stop(DownloadExecutor.StopReason.PAUSED);
+    }
+
+    /**
+     * 判断上传是否被暂停
+     *
+     * @return 是为true，否则为false
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    private void stop(DownloadExecutor.StopReason reason) {
+        if (!this.paused) {
+            this.stopReason = reason;
+        }
+        this.paused = true;
+    }
+
+    /**
+     * 判断上传有没有被初始化
+     *
+     * @return 如果初始化了就返回true，否则为false
+     */
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * 判断上传是不是进行中
+     *
+     * @return 如果是就返回true，否则为false
+     */
+    public boolean isUploading() {
+        return uploading;
+    }
+
+    /**
+     * 判断上传是否已经完成了
+     *
+     * @return 如果完成了就返回true，否则为false
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * 判断上传是否失败了
+     *
+     * @return 如果是就返回true，否则为false
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * 初始化上传，发送一个空的请求确认服务器接受上传
+     */
+    public void initialize() {
+        if (isInitialized()) return;
+        try {
+            HttpURLConnection conn = openConnection(0);
+            try {
+                OutputStream out = conn.getOutputStream();
+                out.close();
+                int code = conn.getResponseCode();
+                if (code >= 400) {
+                    Log.w(TAG, "服务器响应错误:" + code + conn.getResponseMessage()); // 打印错误
+                    throw new RuntimeException("Server response error ");
+                }
+                this.uploadUrl = conn.getURL(); // 获取最终的URL以保证将要运行的UploadThread目标一致
+            } finally {
+                conn.disconnect();
+            }
+            this.initialized = true;
+            if (this.listener != null) {
+                this.listener.onInitialization(this, null);    // 通知上传初始化完成
+            }
+        } catch (Exception e) {
+            if (this.listener != null) {
+                this.listener.onInitialization(this, e);    // 通知上传初始化失败
+            }
+            throw new RuntimeException("Initialization error", e);
+        }
+    }
+
+    /**
+     * 调用此方法后上传正式开始
+     */
+    public void upload() {
+        if (isUploading() || isFinished()) return;
+        this.uploading = true;
+        this.paused = false;
+        this.aborted = false;
+        this.stopReason = null;
+        this.failed = false;
+        long beginTime = System.nanoTime() / 1000000;
+        try {
+            if (!isInitialized()) {
+                initialize();
+            }
+            if (this.listener != null) {
+                this.listener.onStart(this);  // 通知上传开始
+            }
+            this.progress.reset(0);
+            this.acknowledgedSize.set(0);
+            this.remaining.set(this.uploadSize > 0 ? this.uploadSize : Long.MAX_VALUE);
+            for (int i = 0; i < this.threads.length; i++) {
+                this.threads[i] = new UploadWorker(i + 1);
+                this.workerPool.executeTransfer(this.threads[i], 0);
+            }
+            int threadFailCount = 0;
+            long acknowledged = 0;
+            long superviseTime = 0;
+            this.sampler.reset(beginTime, 0);
+            this.detector.reset(beginTime, 0);
+            while (!paused && !isComplete()) {
+                Thread.sleep(Math.min(this.sampler.getInterval(), 900));
+                long now = System.nanoTime() / 1000000;
+                acknowledged = getAcknowledgedSize();   // 已发送但没有确认的数据可能只是停在本机的发送缓冲区里，不计入速度
+                if (this.sampler.sample(now, acknowledged)) {
+                    this.detector.update(now, acknowledged);
+                    if (this.detector.isConverged()) {
+                        stop(DownloadExecutor.StopReason.CONVERGED);
+                    } else if (this.timeLimit > 0 && now - beginTime >= this.timeLimit) {
+                        stop(DownloadExecutor.StopReason.TIME_LIMIT);
+                    } else if (this.byteLimit > 0 && acknowledged >= this.byteLimit) {
+                        stop(DownloadExecutor.StopReason.BYTE_LIMIT);
+                    }
+                }
+                this.spentTime = now - beginTime;
+                if (now < superviseTime) continue;
+                superviseTime = now + 900;
+                for (int i = 0; i < this.threads.length; i++) {
+                    if (!this.threads[i].isFinished() && !this.threads[i].isWorking()) {   // 线程出错了，重新开辟上传线程
+                        boolean anyWorking = false;
+                        for (UploadWorker worker : this.threads) {
+                            anyWorking |= worker.isWorking();
+                        }
+                        if (!anyWorking && ++threadFailCount > this.retryLimit) {
+                            throw new RuntimeException("No upload thread functional ");
+                        }
+                        this.threads[i] = new UploadWorker(i + 1);
+                        this.workerPool.executeTransfer(this.threads[i], this.delay);  // 延迟排队，等待期间不占用线程
+                    }
+                }
+                if (this.listener != null) {
+                    this.listener.onProgressing(this, acknowledged);  // 通知目前服务器已经确认收到的数据长度
+                }
+            }
+            this.spentTime = System.nanoTime() / 1000000 - beginTime;
+            if (isComplete()) {
+                this.finished = true;
+                if (this.listener != null) {
+                    this.listener.onFinish(this);  // 通知上传完成
+                }
+            } else {
+                long deadline = System.nanoTime() / 1000000 + DRAIN_MILLIS;
+                for (UploadWorker worker : this.threads) {
+                    while (worker.isWorking() && System.nanoTime() / 1000000 < deadline) {
+                        Thread.sleep(10);   // 等待正在进行的请求完成并被确认，让结果包含已发送的数据
+                    }
+                }
+                this.aborted = true;    // 还没有完成的请求不再等待
+                this.spentTime = System.nanoTime() / 1000000 - beginTime;
+                if (this.listener != null) {
+                    this.listener.onPause(this, getAcknowledgedSize());  // 通知上传被暂停了
+                }
+            }
+        } catch (Exception e) {
+            this.failed = true;
+            if (this.listener != null) {
+                this.listener.onFailure(this, e);  // 通知上传失败
+            }
+            throw new RuntimeException("Upload error ", e);
+        } finally {
+            this.uploading = false;
+        }
+    }
+
+    /**
+     * 判断所有数据是否都已经被服务器确认收到
+     */
+    private boolean isComplete() {
+        return this.uploadSize > 0 && this.acknowledgedSize.get() >= this.uploadSize;
+    }
+
+    /**
+     * 打开一个上传连接
+     *
+     * @param length 本次请求上传的长度
+     * @return HttpURLConnection对象
+     * @throws IOException
+     */
+    private HttpURLConnection openConnection(long length) throws IOException {
+        HttpURLConnection http = (HttpURLConnection) uploadUrl.openConnection();
+        http.setConnectTimeout(5 * 1000);   // 设置连接超时时间为5秒钟
+        http.setReadTimeout(30 * 1000);
+        http.setRequestMethod(method);
+        http.setDoOutput(true);
+        http.setUseCaches(false);
+        http.setRequestProperty("Content-Type", "application/octet-stream");
+        http.setRequestProperty("Connection", "Keep-Alive");    // 使用长连接
+        if (chunked) {
+            http.setChunkedStreamingMode(cacheSize);
+        } else {
+            http.setFixedLengthStreamingMode((int) length); // 直接写到网络，不在内存里缓存整个请求体
+        }
+        return http;
+    }
+
+    /**
+     * 上传作业，在共享线程池的传输通道中运行，每发送一个请求检查一次是否有其他作业排队，有就让出线程重新排队
+     */
+    private class UploadWorker implements Runnable {
+        private static final String TAG = "UploadWorker"; // 设置LogCat日志标签
+        private final int threadId; // 作业id，同时是进度计数槽的编号
+        private volatile boolean working = true;    // 该作业有否正常工作的标志，排队中也算正常工作
+        private volatile boolean finished;  // 该作业是否结束的标志
+        private final byte[] drain = new byte[1024];    // 读取响应用的缓存
+        private byte[] buffer;  // 重复发送的数据
+        private long nextSize = MIN_REQUEST_SIZE;   // 下一次请求的长度，按上一次请求的速度调整
+
+        UploadWorker(int threadId) {
+            this.threadId = threadId;
+        }
+
+        @Override
+        public void run() {
+            long claimed = 0;   // 本次请求领取了但服务器还没有确认的长度
+            try {
+                if (this.buffer == null) {
+                    this.buffer = new byte[cacheSize];
+                    new Random().nextBytes(this.buffer); // 随机数据不可压缩，避免中间设备压缩后测得的速度偏高
+                }
+                while (!paused && (claimed = claim()) > 0) {
+                    long begin = System.nanoTime();
+                    send(claimed, this.buffer);
+                    acknowledgedSize.addAndGet(claimed);    // 服务器响应成功，这部分数据已经确认收到
+                    adaptSize(claimed, System.nanoTime() - begin);
+                    claimed = 0;
+                    if (workerPool.hasWaitingTransfers() && !paused) {
+                        workerPool.executeTransfer(this, 0);    // 让其他任务的作业也能轮到
+                        return;
+                    }
+                }
+                this.finished = true;
+                this.working = false;
+            } catch (Exception e) {
+                this.finished = paused; // 停止后被放弃的请求不算出错
+                this.working = false;
+                Log.w(TAG, "Thread " + this.threadId + ":" + e);    // 打印出异常信息
+            } finally {
+                if (claimed > 0 && uploadSize > 0) {
+                    remaining.addAndGet(claimed);   // 没有被确认的数据交还给其他线程重新上传
+                }
+            }
+        }
+
+        /**
+         * 领取下一次请求要上传的长度
+         */
+        private long claim() {
+            while (true) {
+                long left = remaining.get();
+                if (left <= 0) return 0;
+                long size = Math.min(left, Math.min(nextSize, requestSize));
+                if (remaining.compareAndSet(left, left - size)) return size;
+            }
+        }
+
+        /**
+         * 按刚完成的请求的速度计算下一次请求的长度，让一次请求大约持续REQUEST_NANOS，每次最多增大到4倍，避免一次偶然的快速请求带来过大的请求
+         *
+         * @param length 请求上传的长度
+         * @param nanos  从发出请求到收到响应的时间，纳秒
+         */
+        private void adaptSize(long length, long nanos) {
+            long size = nanos > 0 ? length * REQUEST_NANOS / nanos : Long.MAX_VALUE;
+            this.nextSize = Math.max(MIN_REQUEST_SIZE, Math.min(size, Math.min(length * 4, requestSize)));
+        }
+
+        /**
+         * 用一次请求上传指定长度的数据，重复发送同一块缓存
+         */
+        private void send(long length, byte[] buffer) throws IOException {
+            HttpURLConnection http = openConnection(length);
+            OutputStream out = http.getOutputStream();
+            long sent = 0;
+            try {
+                while (sent < length) {
+                    if (aborted) {
+                        throw new IOException("Upload aborted");  // 请求体不完整，服务器不会确认这次请求
+                    }
+                    int size = (int) Math.min(buffer.length, length - sent);
+                    out.write(buffer, 0, size);
+                    sent += size;
+                    progress.add(this.threadId, size);
+                }
+            } finally {
+                out.close();
+            }
+            int code = http.getResponseCode();
+            InputStream in = code >= 400 ? http.getErrorStream() : http.getInputStream();
+            if (in != null) {
+                while (in.read(drain) != -1) ;  // 读完响应才能复用连接
+                in.close();
+            }
+            if (code < 200 || code >= 300) {
+                throw new IOException("Server response error " + code);
+            }
+        }
+
+        boolean isWorking() {
+            return working;
+        }
+
+        boolean isFinished() {
+            return finished;
+        }
+    }
+}
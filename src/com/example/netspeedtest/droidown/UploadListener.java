@@ -0,0 +1,51 @@
+package com.example.netspeedtest.droidown;
+
+/**
+ * 上传状态监听器
+ */
+public interface UploadListener {
+
+    /**
+     * 上传初始化时触发，可通过判断e的值确定初始化是否成功
+     *
+     * @param uploader UploadExecutor对象
+     * @param e        导致初始化失败的异常，初始化成功时其值为null
+     */
+    void onInitialization(UploadExecutor uploader, Exception e);
+
+    /**
+     * 上传开始时触发
+     *
+     * @param uploader UploadExecutor对象
+     */
+    void onStart(UploadExecutor uploader);
+
+    /**
+     * 在上传过程中触发，监听当前上传的最新进度
+     *
+     * @param uploader     UploadExecutor对象
+     * @param uploadedSize 当前服务器已确认收到的数据大小
+     */
+    void onProgressing(UploadExecutor uploader, long uploadedSize);
+
+    /**
+     * 上传被用户停止或者满足停止条件时触发
+     *
+     * @param uploader     UploadExecutor对象
+     * @param uploadedSize 当前服务器已确认收到的数据大小
+     */
+    void onPause(UploadExecutor uploader, long uploadedSize);
+
+    /**
+     * 上传失败时触发
+     *
+     * @param uploader UploadExecutor对象
+     * @param e        导致上传失败的异常
+     */
+    void onFailure(UploadExecutor uploader, Exception e);
+
+    /**
+     * 上传完成时触发
+     */
+    void onFinish(UploadExecutor uploader);
+}
@@ -0,0 +1,193 @@
+package com.example.netspeedtest.droidown;
+
+import android.util.Log;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * 上传任务，针对Android环境对UploadExecutor进行的封装，可避免上传的时候主线程阻塞
+ */
+public final class UploadTask implements Runnable {
+    private static final String TAG = "UploadTask";   // 设置LogCat日志标签
+    private boolean justGetReady;   // 标识即将执行的操作（准备或开始上传）
+    private UploadExecutor loader;  // 上传测速器(上传线程的容器)
+
+    /**
+     * 初始化一个上传任务
+     *
+     * @param uploadUrl  上传路径
+     * @param uploadSize 要上传的总长度，0为不限制，直到调用stop()或者满足停止条件
+     * @param threadSize 上传线程的数量
+     * @throws MalformedURLException
+     */
+    public UploadTask(String uploadUrl, long uploadSize, Integer threadSize) throws MalformedURLException {
+        this.loader = new UploadExecutor(uploadUrl, uploadSize, threadSize);
+    }
+
+    /**
+     * 初始化一个上传任务
+     *
+     * @param uploadUrl  上传路径
+     * @param uploadSize 要上传的总长度，0为不限制，直到调用stop()或者满足停止条件
+     * @param threadSize 上传线程的数量
+     */
+    public UploadTask(URL uploadUrl, long uploadSize, Integer threadSize) {
+        this.loader = new UploadExecutor(uploadUrl, uploadSize, threadSize);
+    }
+
+    /**
+     * 获取上传路径
+     *
+     * @return 上传路径
+     */
+    public URL getUploadUrl() {
+        return loader.getUploadUrl();
+    }
+
+    /**
+     * 获取用于上传的线程数量
+     *
+     * @return 线程数量
+     */
+    public int getThreadSize() {
+        return loader.getThreadSize();
+    }
+
+    /**
+     * 设置自动停止上传的条件，任何一个条件满足都会停止
+     *
+     * @param band   稳态速度收敛的判定范围(置信区间相对半宽)，0为不检测收敛
+     * @param millis 单次上传的最长时间，0为不限制
+     * @param bytes  单次上传的最大长度，0为不限制
+     */
+    public void setStopCondition(double band, long millis, long bytes) {
+        loader.setStopCondition(band, millis, bytes);
+    }
+
+    /**
+     * 获取已经发送的长度
+     *
+     * @return 字节数
+     */
+    public long getUploadedSize() {
+        return loader.getUploadedSize();
+    }
+
+    /**
+     * 获取服务器已经确认收到的长度
+     *
+     * @return 字节数
+     */
+    public long getAcknowledgedSize() {
+        return loader.getAcknowledgedSize();
+    }
+
+    /**
+     * 获得执行当前上传任务的UploadExecutor实例
+     *
+     * @return UploadExecutor实例
+     */
+    public UploadExecutor getUploadExecutor() {
+        return loader;
+    }
+
+    /**
+     * 设置上传状态监听器
+     *
+     * @param listener 监听器
+     */
+    public void setTaskStatusListener(UploadListener listener) {
+        loader.setUploadListener(listener);
+    }
+
+    /**
+     * 判断上传任务是否失败了
+     *
+     * @return 失败了为true，否则为false
+     */
+    public boolean isFailed() {
+        return loader.isFailed();
+    }
+
+    /**
+     * 判断上传任务是否已经成功完成
+     *
+     * @return 完成了为true，否则为false
+     */
+    public boolean isDone() {
+        return loader.isFinished();
+    }
+
+    /**
+     * 退出上传
+     */
+    public void stop() {
+        loader.pause();
+    }
+
+    /**
+     * 判断上传暂停是否人为的
+     *
+     * @return 人为暂停为true，否则为false
+     */
+    public boolean isStopped() {
+        return loader.isPaused();
+    }
+
+    /**
+     * 开始上传
+     */
+    public void start() {
+        if (!loader.isUploading()) {
+            justGetReady = false;
+            loader.getWorkerPool().executeControl(this);   // 在共享线程池中开始上传
+        }
+    }
+
+    /**
+     * 判断上传任务是否已经开始了
+     *
+     * @return 开始了为true，否则为false
+     */
+    public boolean isStarted() {
+        return loader.isUploading();
+    }
+
+    /**
+     * 初始化为正式上传做准备
+     */
+    public void prepare() {
+        if (!loader.isInitialized()) {
+            justGetReady = true;
+            loader.getWorkerPool().executeControl(this);
+        }
+    }
+
+    /**
+     * 判断上传任务是否已经准备就绪
+     *
+     * @return 准备好了为true，否则为false
+     */
+    public boolean isReady() {
+        return loader.isInitialized();
+    }
+
+    /**
+     * 上传任务的核心执行方法 内部调用函数
+     */
+    @Override
+    public void run() {
+        try {
+            if (!loader.isInitialized()) {
+                loader.initialize();
+            }
+            if (!justGetReady) {
+                loader.upload();
+            }
+
+        } catch (Exception e) {
+            Log.w(TAG, Log.getStackTraceString(e));
+        }
+    }
+}